@@ -0,0 +1,42 @@
+package norswap.sigh;
+
+import norswap.sigh.SighRunner.Engine;
+import norswap.sigh.ast.RootNode;
+import norswap.uranium.Reactor;
+import norswap.utils.IO;
+import java.nio.file.Paths;
+
+/**
+ * Times the execution of a Sigh program with each {@link Engine}. Parsing and semantic analysis
+ * are performed once and are not included in the measurements.
+ *
+ * <p>Usage: {@code Benchmark [file] [iterations]}, where the file defaults to {@code
+ * examples/fib.si} and the number of iterations to 20. Every engine first runs the program as many
+ * times without measurement, to let the JIT compiler warm up.
+ */
+public final class Benchmark
+{
+    public static void main (String[] args)
+    {
+        String file = args.length > 0 ? args[0] : "examples/fib.si";
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        String src = IO.slurp(Paths.get(file).toAbsolutePath().toString());
+
+        SighRunner runner = new SighRunner();
+        RootNode root = runner.parse(src);
+        Reactor reactor = runner.analyze(root);
+
+        for (Engine engine: Engine.values()) {
+            for (int i = 0; i < iterations; ++i)
+                runner.execute(root, reactor, engine);
+
+            long start = System.nanoTime();
+            Object result = null;
+            for (int i = 0; i < iterations; ++i)
+                result = runner.execute(root, reactor, engine);
+            double average = (System.nanoTime() - start) / 1e6 / iterations;
+
+            System.out.printf("%-12s %10.3f ms/run  (result: %s)%n", engine, average, result);
+        }
+    }
+}
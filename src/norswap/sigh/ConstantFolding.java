@@ -0,0 +1,317 @@
+package norswap.sigh;
+
+import norswap.sigh.ast.*;
+import norswap.sigh.scopes.SyntheticDeclarationNode;
+import norswap.sigh.types.FloatType;
+import norswap.sigh.types.StringType;
+import norswap.uranium.Reactor;
+import norswap.utils.visitors.ReflectiveFieldWalker;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import static norswap.utils.visitors.WalkVisitType.POST_VISIT;
+import static norswap.utils.visitors.WalkVisitType.PRE_VISIT;
+
+/**
+ * An optimization pass, to be run after {@link SemanticAnalysis}, that computes the value of every
+ * expression that can be evaluated at compile time.
+ *
+ * <p>Constant expressions are literals, {@code true} and {@code false}, and operators whose
+ * operands are constant (with the usual promotion of {@code Int} to {@code Float}). References to
+ * variables that are never assigned after their declaration are also constant if their
+ * initializer is (constant propagation). Integer divisions by zero, as well as equality between
+ * strings or between an {@code Int} and a {@code Float}, are never folded, and retain their run
+ * time semantics.
+ *
+ * <p>The tree is not rewritten, as its nodes carry the attributes computed by semantic analysis.
+ * Instead, backends ask for the {@link #value(SighNode)} of an expression before evaluating it,
+ * and use it to only run the taken branch of {@code if} statements with a constant condition.
+ * Values use the representation of the {@link norswap.sigh.interpreter.Interpreter}: {@link
+ * Long}, {@link Double}, {@link Boolean} and {@link String}.
+ *
+ * <p>Backends that inline function calls can also fold the body of a function for the constant
+ * arguments of a given call site, see {@link #specialize(FunDeclarationNode, List)}.
+ *
+ * <p>The entry point into this class is {@link #fold(Reactor, SighNode)}.
+ */
+public final class ConstantFolding
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private final Reactor reactor;
+
+    /**
+     * For a folding returned by {@link #specialize}, the folding it specializes, which holds the
+     * values of the expressions outside of the specialized function body, else null.
+     */
+    private final ConstantFolding parent;
+
+    /** Values of the constant expressions (only in the specialized body, if {@link #parent}). */
+    private final IdentityHashMap<SighNode, Object> values = new IdentityHashMap<>();
+
+    /** Variables that are assigned after their declaration. */
+    private final Set<DeclarationNode> assigned;
+
+    /** Values of the parameters bound to constant arguments by {@link #specialize}. */
+    private final IdentityHashMap<ParameterNode, Object> arguments = new IdentityHashMap<>();
+
+    // ---------------------------------------------------------------------------------------------
+
+    private ConstantFolding (Reactor reactor) {
+        this.reactor = reactor;
+        this.parent = null;
+        this.assigned = Collections.newSetFromMap(new IdentityHashMap<>());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private ConstantFolding (ConstantFolding parent) {
+        this.reactor = parent.reactor;
+        this.parent = parent;
+        this.assigned = parent.assigned;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Runs the constant folding pass over the given tree, which must have been successfully
+     * analyzed using the given reactor.
+     */
+    public static ConstantFolding fold (Reactor reactor, SighNode root)
+    {
+        ConstantFolding folding = new ConstantFolding(reactor);
+
+        // First find the assigned variables, as they can be assigned after being referenced.
+
+        ReflectiveFieldWalker<SighNode> walker = new ReflectiveFieldWalker<>(
+            SighNode.class, PRE_VISIT, POST_VISIT);
+
+        walker.register(AssignmentNode.class,       PRE_VISIT,  folding::assignment);
+        walker.registerFallback(PRE_VISIT,  node -> {});
+        walker.registerFallback(POST_VISIT, node -> {});
+        walker.walk(root);
+
+        // Then fold bottom-up. Variables are declared before being used, so the value of
+        // initializers is known before visiting references.
+
+        folding.foldingWalker().walk(root);
+        return folding;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private ReflectiveFieldWalker<SighNode> foldingWalker ()
+    {
+        ReflectiveFieldWalker<SighNode> walker = new ReflectiveFieldWalker<>(
+            SighNode.class, PRE_VISIT, POST_VISIT);
+
+        walker.register(IntLiteralNode.class,       POST_VISIT, this::intLiteral);
+        walker.register(FloatLiteralNode.class,     POST_VISIT, this::floatLiteral);
+        walker.register(StringLiteralNode.class,    POST_VISIT, this::stringLiteral);
+        walker.register(ReferenceNode.class,        POST_VISIT, this::reference);
+        walker.register(ParenthesizedNode.class,    POST_VISIT, this::parenthesized);
+        walker.register(UnaryExpressionNode.class,  POST_VISIT, this::unaryExpression);
+        walker.register(BinaryExpressionNode.class, POST_VISIT, this::binaryExpression);
+        walker.registerFallback(PRE_VISIT,  node -> {});
+        walker.registerFallback(POST_VISIT, node -> {});
+        return walker;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the value of the given expression if it is constant, or null otherwise.
+     */
+    public Object value (SighNode node) {
+        Object value = values.get(node);
+        return value != null || parent == null ? value : parent.value(node);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the value of the constant argument bound to the given parameter, or null.
+     */
+    private Object argument (ParameterNode node) {
+        Object value = arguments.get(node);
+        return value != null || parent == null ? value : parent.argument(node);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the constant folding of the tree for a call to the given function whose arguments
+     * have the given values (null for non-constant arguments): references to the parameters
+     * bound to a constant argument are constant, unless the parameter is assigned, and so are
+     * the expressions of the function body that depend on them.
+     *
+     * <p>The returned folding only holds the values of the expressions of the function body, and
+     * delegates to this folding for the others, so that its cost is proportional to the size of
+     * the body. (Specializing can only make more expressions constant, never fewer.)
+     */
+    public ConstantFolding specialize (FunDeclarationNode function, List<Object> values)
+    {
+        ConstantFolding folding = new ConstantFolding(this);
+        for (int i = 0; i < values.size(); ++i) {
+            ParameterNode param = function.parameters.get(i);
+            Object value = values.get(i);
+            // implicit conversion of the argument
+            if (value instanceof Long && reactor.get(param, "type") instanceof FloatType)
+                value = ((Long) value).doubleValue();
+            if (value != null && !assigned.contains(param))
+                folding.arguments.put(param, value);
+        }
+        folding.foldingWalker().walk(function.block);
+        return folding;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void assignment (AssignmentNode node) {
+        if (node.left instanceof ReferenceNode)
+            assigned.add(reactor.get(node.left, "decl"));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void intLiteral (IntLiteralNode node) {
+        values.put(node, node.value);
+    }
+
+    private void floatLiteral (FloatLiteralNode node) {
+        values.put(node, node.value);
+    }
+
+    private void stringLiteral (StringLiteralNode node) {
+        values.put(node, node.value);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void reference (ReferenceNode node)
+    {
+        DeclarationNode decl = reactor.get(node, "decl");
+
+        if (decl instanceof SyntheticDeclarationNode) {
+            if (decl.name().equals("true"))  values.put(node, true);
+            if (decl.name().equals("false")) values.put(node, false);
+        }
+        else if (decl instanceof VarDeclarationNode && !assigned.contains(decl)) {
+            Object value = value(((VarDeclarationNode) decl).initializer);
+            // implicit conversion of the initializer
+            if (value instanceof Long && reactor.get(decl, "type") instanceof FloatType)
+                value = ((Long) value).doubleValue();
+            if (value != null)
+                values.put(node, value);
+        }
+        else if (decl instanceof ParameterNode) {
+            Object value = argument((ParameterNode) decl);
+            if (value != null)
+                values.put(node, value);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void parenthesized (ParenthesizedNode node) {
+        Object value = value(node.expression);
+        if (value != null) values.put(node, value);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void unaryExpression (UnaryExpressionNode node) {
+        // there is only NOT
+        Object value = value(node.operand);
+        if (value instanceof Boolean) values.put(node, !(Boolean) value);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void binaryExpression (BinaryExpressionNode node)
+    {
+        Object left  = value(node.left);
+        Object right = value(node.right);
+        Object value = null;
+
+        if (node.operator == BinaryOperator.AND || node.operator == BinaryOperator.OR) {
+            // the right operand is not evaluated if the left one determines the result
+            boolean isAnd = node.operator == BinaryOperator.AND;
+            if (left instanceof Boolean)
+                value = (Boolean) left != isAnd ? left : right;
+        }
+        else if (left == null || right == null) {
+            return;
+        }
+        else if (node.operator == BinaryOperator.ADD
+                && reactor.get(node, "type") instanceof StringType) {
+            // constant values have the same string representation in Java and Sigh
+            value = String.valueOf(left) + right;
+        }
+        else if (left instanceof Long && right instanceof Long) {
+            value = longOperation(node.operator, (Long) left, (Long) right);
+        }
+        else if (left instanceof Number && right instanceof Number && !isEquality(node.operator)) {
+            // (equality between Int and Float differs between backends, leave it be)
+            value = doubleOperation(node.operator,
+                ((Number) left).doubleValue(), ((Number) right).doubleValue());
+        }
+        else if (left instanceof Boolean && right instanceof Boolean) {
+            if (node.operator == BinaryOperator.EQUALITY)   value = left.equals(right);
+            if (node.operator == BinaryOperator.NOT_EQUALS) value = !left.equals(right);
+        }
+
+        if (value != null)
+            values.put(node, value);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static boolean isEquality (BinaryOperator operator) {
+        return operator == BinaryOperator.EQUALITY || operator == BinaryOperator.NOT_EQUALS;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static Object longOperation (BinaryOperator operator, long l, long r)
+    {
+        switch (operator) {
+            case MULTIPLY:      return l * r;
+            case DIVIDE:        return r == 0 ? null : l / r; // must fail at run time
+            case REMAINDER:     return r == 0 ? null : l % r;
+            case ADD:           return l + r;
+            case SUBTRACT:      return l - r;
+            case GREATER:       return l >  r;
+            case LOWER:         return l <  r;
+            case GREATER_EQUAL: return l >= r;
+            case LOWER_EQUAL:   return l <= r;
+            case EQUALITY:      return l == r;
+            case NOT_EQUALS:    return l != r;
+            default:            return null;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static Object doubleOperation (BinaryOperator operator, double l, double r)
+    {
+        switch (operator) {
+            case MULTIPLY:      return l * r;
+            case DIVIDE:        return l / r;
+            case REMAINDER:     return l % r;
+            case ADD:           return l + r;
+            case SUBTRACT:      return l - r;
+            case GREATER:       return l >  r;
+            case LOWER:         return l <  r;
+            case GREATER_EQUAL: return l >= r;
+            case LOWER_EQUAL:   return l <= r;
+            case EQUALITY:      return l == r;
+            case NOT_EQUALS:    return l != r;
+            default:            return null;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,316 @@
+package norswap.sigh;
+
+import norswap.autumn.Autumn;
+import norswap.autumn.ParseOptions;
+import norswap.autumn.ParseResult;
+import norswap.autumn.positions.Span;
+import norswap.sigh.ast.DeclarationNode;
+import norswap.sigh.ast.ReferenceNode;
+import norswap.sigh.ast.RootNode;
+import norswap.sigh.ast.SighNode;
+import norswap.sigh.ast.SimpleTypeNode;
+import norswap.sigh.ast.StatementNode;
+import norswap.sigh.scopes.RootScope;
+import norswap.uranium.Reactor;
+import norswap.uranium.SemanticError;
+import norswap.utils.visitors.ReflectiveFieldWalker;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import static norswap.utils.visitors.WalkVisitType.POST_VISIT;
+import static norswap.utils.visitors.WalkVisitType.PRE_VISIT;
+
+/**
+ * Parses and analyzes successive versions of a source unit, as produced by an editor, reusing the
+ * work done on the previous version where it is still valid.
+ *
+ * <p>On each {@link #update}, the top-level statements of the previous tree that end before the
+ * first changed character are candidates for reuse, except the last of them, as the parse of a
+ * statement can depend on the text that follows it (e.g. {@code return} followed by an
+ * expression). The candidates are further restricted to the longest prefix such that:
+ * <ul>
+ *     <li>no statement in the prefix had semantic errors;</li>
+ *     <li>no statement in the prefix mentions (as a reference or a type) a name declared at the top
+ *     level by a statement that follows the prefix, in either the previous or the new tree. Such a
+ *     statement may refer to a declaration that changed, or resolve a name differently.</li>
+ * </ul>
+ *
+ * <p>The statements of this prefix, and their attributes, are reused as-is, see {@link
+ * SemanticAnalysis#reanalyze}. Only the text after the prefix is parsed again, and only the
+ * resulting statements are walked by the semantic analysis, in a new {@link Reactor}.
+ *
+ * <p>The work that remains linear in the size of the source is light: the reused prefix is
+ * blanked out before parsing, which keeps the offsets of the new nodes relative to the whole
+ * source but still lets the parser skip it as whitespace, and the attributes of the reused nodes
+ * are copied to the new reactor. The nodes following an edit cannot be reused, as their spans are
+ * absolute.
+ *
+ * <p>Because the reused statements are shared with the previous tree, and because the root scope
+ * of the previous tree is reset for the new tree (see {@link RootScope#reset}), each update
+ * invalidates the tree and the reactor obtained for the previous source.
+ */
+public final class IncrementalAnalysis
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private final SighGrammar grammar = new SighGrammar();
+
+    private final ParseOptions parseOptions = ParseOptions.builder()
+            .wellFormednessCheck(false)
+            .get();
+
+    private String source = null;
+    private ParseResult parseResult = null;
+    private RootNode root = null;
+    private Reactor reactor = null;
+    private int reused = 0;
+
+    /** Number of top-level statements of {@link #root} that precede the first semantic error. */
+    private int clean = 0;
+
+    /** Names mentioned by the top-level statements of {@link #root}, computed on demand. */
+    private IdentityHashMap<StatementNode, Set<String>> mentions = new IdentityHashMap<>();
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Parses and analyzes the new version of the source, returning true if it could be parsed.
+     * If so, {@link #root()} and {@link #reactor()} hold the new tree and the result of its
+     * analysis, otherwise they are null and {@link #parseResult()} describes the parse error.
+     *
+     * <p>The tree and reactor obtained before this call must not be used afterwards: the root scope
+     * that their attributes refer to may be reset for the new tree.
+     */
+    public boolean update (String source)
+    {
+        if (source.equals(this.source))
+            return root != null;
+
+        int prefix = reusablePrefix(source);
+        RootNode tail = parse(source, prefix);
+
+        if (tail != null && prefix > 0) {
+            int closed = closedPrefix(prefix, tail);
+            if (closed < prefix) {
+                prefix = closed;
+                tail = parse(source, prefix);
+            }
+        }
+
+        RootNode previousRoot = root;
+        Reactor previousReactor = reactor;
+        this.source = source;
+        this.reused = prefix;
+        this.root = null;
+        this.reactor = null;
+
+        if (tail == null) {
+            mentions = new IdentityHashMap<>();
+            return false;
+        }
+
+        reactor = new Reactor();
+        if (prefix == 0) {
+            root = tail;
+            SemanticAnalysis.createWalker(reactor).walk(root);
+        } else {
+            List<StatementNode> statements = new ArrayList<>(prefix + tail.statements.size());
+            statements.addAll(previousRoot.statements.subList(0, prefix));
+            statements.addAll(tail.statements);
+            root = new RootNode(new Span(0, source.length()), statements);
+            RootScope scope = previousReactor.get(previousRoot, "scope");
+            SemanticAnalysis.reanalyze(reactor, root, previousReactor, scope, prefix);
+        }
+        reactor.run();
+
+        IdentityHashMap<StatementNode, Set<String>> kept = new IdentityHashMap<>();
+        for (StatementNode statement: root.statements.subList(0, prefix))
+            if (mentions.containsKey(statement))
+                kept.put(statement, mentions.get(statement));
+        mentions = kept;
+        clean = cleanStatements();
+        return true;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Parses the part of the source that follows the first {@code prefix} statements of the
+     * previous tree, returning the resulting tree, or null if it could not be parsed.
+     */
+    private RootNode parse (String source, int prefix)
+    {
+        int cut = prefix == 0 ? 0 : root.statements.get(prefix).span.start;
+        char[] input = source.toCharArray();
+        Arrays.fill(input, 0, cut, ' ');
+        parseResult = Autumn.parse(grammar.root, new String(input), parseOptions);
+        return parseResult.fullMatch ? parseResult.topValue() : null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the number of top-level statements of the previous tree that can be reused for the
+     * new source, as far as parsing is concerned.
+     */
+    private int reusablePrefix (String source)
+    {
+        if (root == null)
+            return 0;
+
+        int changed = 0;
+        int max = Math.min(source.length(), this.source.length());
+        while (changed < max && source.charAt(changed) == this.source.charAt(changed))
+            ++changed;
+
+        int before = 0;
+        while (before < root.statements.size()
+                && root.statements.get(before).span.end < changed)
+            ++before;
+
+        // the last statement before the change is parsed again
+        return Math.max(before - 1, 0);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Given the first {@code prefix} statements of the previous tree, which can be reused as far
+     * as parsing is concerned, and the new statements that follow them, returns the number of
+     * statements whose attributes can be reused (see the class documentation).
+     */
+    private int closedPrefix (int prefix, RootNode tail)
+    {
+        Set<String> later = new HashSet<>();
+        for (StatementNode statement: tail.statements)
+            addDeclaredName(later, statement);
+
+        int closed = Math.min(prefix, clean);
+        int end = root.statements.size();
+        while (true) {
+            // the statements past the prefix will be analyzed again
+            for (int i = closed; i < end; ++i)
+                addDeclaredName(later, root.statements.get(i));
+            end = closed;
+
+            int i = 0;
+            while (i < closed && Collections.disjoint(mentions(root.statements.get(i)), later))
+                ++i;
+            if (i == closed)
+                return closed;
+            closed = i;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static void addDeclaredName (Set<String> names, StatementNode statement) {
+        if (statement instanceof DeclarationNode)
+            names.add(((DeclarationNode) statement).name());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the names of the references and types in the given top-level statement of {@link
+     * #root}.
+     */
+    private Set<String> mentions (StatementNode statement)
+    {
+        return mentions.computeIfAbsent(statement, s -> {
+            Set<String> names = new HashSet<>();
+            ReflectiveFieldWalker<SighNode> walker = new ReflectiveFieldWalker<>(
+                SighNode.class, PRE_VISIT, POST_VISIT);
+            walker.register(ReferenceNode.class,  PRE_VISIT, node -> names.add(node.name));
+            walker.register(SimpleTypeNode.class, PRE_VISIT, node -> names.add(node.name));
+            walker.registerFallback(PRE_VISIT,  node -> {});
+            walker.registerFallback(POST_VISIT, node -> {});
+            walker.walk(s);
+            return names;
+        });
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the number of top-level statements of {@link #root} that precede the first statement
+     * containing the node of a semantic error.
+     */
+    private int cleanStatements ()
+    {
+        int clean = root.statements.size();
+        for (SemanticError error: reactor.errors()) {
+            if (!(error.node instanceof SighNode) || ((SighNode) error.node).span == null)
+                return 0;
+            int position = ((SighNode) error.node).span.start;
+            int i = 0;
+            while (i < clean && root.statements.get(i).span.end <= position)
+                ++i;
+            clean = i;
+        }
+        return clean;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** The last source passed to {@link #update}, or null. */
+    public String source () {
+        return source;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The result of the last parse. If statements were reused, this is the parse of the rest of
+     * the source only, but its offsets are still relative to the whole source.
+     */
+    public ParseResult parseResult () {
+        return parseResult;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The tree for the last source, or null if it could not be parsed. It is only valid until the
+     * next {@link #update}.
+     */
+    public RootNode root () {
+        return root;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The reactor holding the result of the analysis of {@link #root()}, or null if the last
+     * source could not be parsed. It is only valid until the next {@link #update}.
+     */
+    public Reactor reactor () {
+        return reactor;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The errors found by the analysis of the last source (empty if it could not be parsed).
+     */
+    public Set<SemanticError> errors () {
+        return reactor == null ? Collections.emptySet() : reactor.errors();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The number of top-level statements of the previous tree that were reused, along with their
+     * attributes, by the last {@link #update}.
+     */
+    public int reusedStatements () {
+        return reused;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
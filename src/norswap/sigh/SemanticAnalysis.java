@@ -13,6 +13,7 @@ import norswap.uranium.Rule;
 import norswap.utils.visitors.ReflectiveFieldWalker;
 import norswap.utils.visitors.Walker;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
 import java.util.stream.IntStream;
@@ -29,7 +30,10 @@ import static norswap.utils.visitors.WalkVisitType.PRE_VISIT;
  * Holds the logic implementing semantic analyzis for the language, including typing and name
  * resolution.
  *
- * <p>The entry point into this class is {@link #createWalker(Reactor)}.
+ * <p>The entry point into this class is {@link #createWalker(Reactor)}, or {@link #reanalyze} to
+ * analyze a new version of a tree while reusing the attributes of its unchanged statements. Once
+ * the reactor has run, backends call {@link #freeze(Reactor, SighNode)} to copy the attributes
+ * they use most into fields of the nodes.
  *
  * <h2>Big Principles
  * <ul>
@@ -60,6 +64,14 @@ import static norswap.utils.visitors.WalkVisitType.PRE_VISIT;
  *     <li>Every {@link TypeNode} instance must have its {@code value} set to the {@link Type} it
  *     denotes.</li>
  *
+ *     <li>Every {@link ReturnNode} must have its {@code tailCall} attribute set to a boolean
+ *     indicating whether its expression is a call to the function that contains the return
+ *     statement (a self tail call), which can be compiled into a jump.</li>
+ *
+ *     <li>Every {@link FieldAccessNode} on a struct must have its {@code fieldIndex} attribute set
+ *     to the index of the accessed field in the struct declaration, so that fields can be stored
+ *     in arrays at run time.</li>
+ *
  *     <li>Every {@link ReturnNode}, {@link BlockNode} and {@link IfNode} must have its {@code
  *     returns} attribute set to a boolean to indicate whether its execution causes
  *     unconditional exit from the surrounding function or main script.</li>
@@ -78,6 +90,13 @@ public final class SemanticAnalysis
     // region [Initialization]
     // =============================================================================================
 
+    /**
+     * Names of all the attributes that the analysis sets on nodes, which {@link #reanalyze} copies
+     * for reused nodes. Any new attribute must be added here.
+     */
+    public static final List<String> ATTRIBUTES = Collections.unmodifiableList(Arrays.asList(
+        "type", "decl", "scope", "declared", "value", "returns", "tailCall", "fieldIndex", "index"));
+
     private final Reactor R;
 
     /** Current scope. */
@@ -101,13 +120,17 @@ public final class SemanticAnalysis
      * Call this method to create a tree walker that will instantiate the typing rules defined
      * in this class when used on an AST, using the given {@code reactor}.
      */
-    public static Walker<SighNode> createWalker (Reactor reactor)
+    public static Walker<SighNode> createWalker (Reactor reactor) {
+        return createWalker(new SemanticAnalysis(reactor));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static Walker<SighNode> createWalker (SemanticAnalysis analysis)
     {
         ReflectiveFieldWalker<SighNode> walker = new ReflectiveFieldWalker<>(
             SighNode.class, PRE_VISIT, POST_VISIT);
 
-        SemanticAnalysis analysis = new SemanticAnalysis(reactor);
-
         // expressions
         walker.register(IntLiteralNode.class,           PRE_VISIT,  analysis::intLiteral);
         walker.register(FloatLiteralNode.class,         PRE_VISIT,  analysis::floatLiteral);
@@ -155,6 +178,97 @@ public final class SemanticAnalysis
         return walker;
     }
 
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Instantiates the typing rules for {@code root}, a new version of a tree analyzed by {@code
+     * previous} whose root scope was {@code scope}, and whose first {@code reused} top-level
+     * statements are the same nodes as in the previous tree. The attributes of these statements
+     * are copied from {@code previous} instead of being computed again, and the root scope is
+     * reused (see {@link RootScope#reset}), so that the copied attributes remain valid. As with
+     * {@link #createWalker}, the reactor must then be run.
+     *
+     * <p>This is only sound if the reused statements were analyzed without errors, and none of
+     * them mentions a name declared at the top level by a statement that follows them, in either
+     * version of the tree (see {@link IncrementalAnalysis}).
+     */
+    public static void reanalyze (
+            Reactor reactor, RootNode root, Reactor previous, RootScope scope, int reused)
+    {
+        SemanticAnalysis analysis = new SemanticAnalysis(reactor);
+        Walker<SighNode> walker = createWalker(analysis);
+
+        scope.reset(reactor);
+        reactor.set(root, "scope", scope);
+        analysis.scope = scope;
+
+        ReflectiveFieldWalker<SighNode> copier = new ReflectiveFieldWalker<>(
+            SighNode.class, PRE_VISIT, POST_VISIT);
+        copier.registerFallback(PRE_VISIT, node -> {
+            for (String attribute: ATTRIBUTES) {
+                Object value = previous.get(node, attribute);
+                if (value != null)
+                    reactor.set(node, attribute, value);
+            }
+        });
+        copier.registerFallback(POST_VISIT, node -> {});
+
+        for (int i = 0; i < root.statements.size(); ++i) {
+            StatementNode statement = root.statements.get(i);
+            if (i >= reused) {
+                walker.walk(statement);
+            } else {
+                copier.walk(statement);
+                if (statement instanceof DeclarationNode) {
+                    DeclarationNode decl = (DeclarationNode) statement;
+                    scope.declare(decl.name(), decl);
+                }
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Copies the attributes computed by the given reactor, which must have run over the given
+     * tree, into the corresponding fields of the nodes: {@link ExpressionNode#type()}, {@link
+     * ReferenceNode#decl()}, {@link ReferenceNode#scope()}, {@link BlockNode#scope()}, {@link
+     * VarDeclarationNode#variableType()}, {@link VarDeclarationNode#scope()}, {@link
+     * ReturnNode#tailCall()} and {@link FieldAccessNode#fieldIndex()}. Backends read these fields
+     * instead of looking up the attributes in the reactor.
+     *
+     * <p>The fields are written once: this can be called multiple times over the same tree, but
+     * only with reactors that computed the same attribute values (e.g. the same reactor).
+     *
+     * @throws IllegalStateException if an attribute was already frozen to another value.
+     */
+    public static void freeze (Reactor reactor, SighNode root)
+    {
+        ReflectiveFieldWalker<SighNode> walker = new ReflectiveFieldWalker<>(
+            SighNode.class, PRE_VISIT, POST_VISIT);
+
+        walker.register(ReferenceNode.class, PRE_VISIT, node -> {
+            node.freezeType(reactor.get(node, "type"));
+            node.freeze(reactor.get(node, "decl"), reactor.get(node, "scope"));
+        });
+        walker.register(FieldAccessNode.class, PRE_VISIT, node -> {
+            node.freezeType(reactor.get(node, "type"));
+            node.freezeFieldIndex(reactor.get(node, "fieldIndex"));
+        });
+        walker.register(BlockNode.class, PRE_VISIT, node ->
+            node.freezeScope(reactor.get(node, "scope")));
+        walker.register(VarDeclarationNode.class, PRE_VISIT, node ->
+            node.freeze(reactor.get(node, "type"), reactor.get(node, "scope")));
+        walker.register(ReturnNode.class, PRE_VISIT, node ->
+            node.freezeTailCall(reactor.get(node, "tailCall")));
+        walker.registerFallback(PRE_VISIT, node -> {
+            if (node instanceof ExpressionNode)
+                ((ExpressionNode) node).freezeType(reactor.get(node, "type"));
+        });
+        walker.registerFallback(POST_VISIT, node -> {});
+        walker.walk(root);
+    }
+
     // endregion
     // =============================================================================================
     // region [Expressions]
@@ -358,10 +472,15 @@ public final class SemanticAnalysis
 
             StructDeclarationNode decl = ((StructType) type).node;
 
-            for (DeclarationNode field: decl.fields)
+            for (int i = 0; i < decl.fields.size(); ++i)
             {
+                DeclarationNode field = decl.fields.get(i);
                 if (!field.name().equals(node.fieldName)) continue;
 
+                int index = i;
+                R.rule(node, "fieldIndex")
+                .by(rr -> rr.set(0, index));
+
                 R.rule(node, "type")
                 .using(field, "type")
                 .by(Rule::copyFirst);
@@ -921,6 +1040,7 @@ public final class SemanticAnalysis
         R.set(node, "returns", true);
 
         FunDeclarationNode function = currentFunction();
+        tailCall(node, function);
         if (function == null) // top-level return
             return;
 
@@ -950,6 +1070,26 @@ public final class SemanticAnalysis
 
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * Sets the {@code tailCall} attribute of the return statement, {@code function} being the
+     * function containing it (or null at the top-level).
+     */
+    private void tailCall (ReturnNode node, FunDeclarationNode function)
+    {
+        if (function == null
+                || !(node.expression instanceof FunCallNode)
+                || !(((FunCallNode) node.expression).function instanceof ReferenceNode)) {
+            R.set(node, "tailCall", false);
+            return;
+        }
+
+        R.rule(node, "tailCall")
+        .using(((FunCallNode) node.expression).function, "decl")
+        .by(r -> r.set(0, r.get(0) == function));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     private FunDeclarationNode currentFunction()
     {
         Scope scope = this.scope;
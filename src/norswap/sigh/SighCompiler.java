@@ -0,0 +1,66 @@
+package norswap.sigh;
+
+import norswap.sigh.bytecode.CompilationCache;
+import norswap.sigh.bytecode.CompilationResult;
+import norswap.utils.IO;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Compiles a Sigh program ahead of time to a runnable JAR file, which can then be started with
+ * {@code java -jar}, without parsing, semantic analysis or bytecode generation at run time.
+ *
+ * <p>Usage: {@code SighCompiler <file> [output] [class name]}, where the output defaults to the
+ * source file with a {@code .jar} extension, and the class name is derived from the file name.
+ * If the {@code sigh.cache} system property is set, it is used as the directory of a {@link
+ * CompilationCache}.
+ */
+public final class SighCompiler
+{
+    public static void main (String[] args) throws IOException
+    {
+        if (args.length == 0) {
+            System.err.println("usage: SighCompiler <file> [output] [class name]");
+            System.exit(1);
+        }
+
+        Path source = Paths.get(args[0]).toAbsolutePath();
+        String baseName = source.getFileName().toString().replaceFirst("\\.si$", "");
+        Path output = args.length > 1
+            ? Paths.get(args[1])
+            : source.resolveSibling(baseName + ".jar");
+        String className = args.length > 2 ? args[2] : className(baseName);
+
+        String cacheDirectory = System.getProperty("sigh.cache");
+        CompilationCache cache = cacheDirectory == null
+            ? null
+            : new CompilationCache(Paths.get(cacheDirectory));
+
+        CompilationResult result =
+            new SighRunner().compile(className, IO.slurp(source.toString()), cache);
+        result.writeJar(output);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Derives a valid Java class name from a file name, e.g. {@code fizz-buzz} to {@code FizzBuzz}.
+     */
+    static String className (String fileName)
+    {
+        StringBuilder b = new StringBuilder();
+        boolean upper = true;
+        for (char c: fileName.toCharArray()) {
+            if (!Character.isJavaIdentifierPart(c) || c == '$') {
+                upper = true;
+                continue;
+            }
+            b.append(upper ? Character.toUpperCase(c) : c);
+            upper = false;
+        }
+        if (b.length() == 0 || !Character.isJavaIdentifierStart(b.charAt(0)))
+            b.insert(0, "Sigh");
+        return b.toString();
+    }
+}
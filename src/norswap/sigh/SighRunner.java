@@ -5,14 +5,23 @@ import norswap.autumn.ParseOptions;
 import norswap.autumn.ParseResult;
 import norswap.sigh.ast.SighNode;
 import norswap.sigh.ast.RootNode;
+import norswap.sigh.bytecode.BytecodeCompiler;
+import norswap.sigh.bytecode.CompilationCache;
+import norswap.sigh.bytecode.CompilationResult;
+import norswap.sigh.closures.ClosureCompiler;
 import norswap.sigh.interpreter.Interpreter;
+import norswap.sigh.interpreter.RegisterCompiler;
+import norswap.sigh.interpreter.SlotResolution;
+import norswap.sigh.interpreter.TieredExecution;
 import norswap.uranium.AttributeTreeFormatter;
 import norswap.uranium.Reactor;
 import norswap.uranium.SemanticError;
+import norswap.utils.data.wrappers.Pair;
 import norswap.utils.visitors.ReflectiveFieldWalker;
 import norswap.utils.visitors.Walker;
 import java.text.ParseException;
 import java.util.Set;
+import java.util.function.Supplier;
 
 import static norswap.utils.visitors.WalkVisitType.POST_VISIT;
 import static norswap.utils.visitors.WalkVisitType.PRE_VISIT;
@@ -21,6 +30,26 @@ public final class SighRunner
 {
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * The execution engines that can run a program.
+     */
+    public enum Engine
+    {
+        /** The {@link Interpreter}, running in frame mode, with constant folding. */
+        INTERPRETER,
+        /**
+         * The {@link Interpreter} as for {@link #INTERPRETER}, which compiles hot functions to
+         * bytecode ({@link TieredExecution}).
+         */
+        TIERED,
+        /** The tree of executable nodes built by the {@link ClosureCompiler}. */
+        CLOSURES,
+        /** The register-based code produced by the {@link RegisterCompiler}, run by its VM. */
+        REGISTERS
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     private final SighGrammar grammar = new SighGrammar();
 
     private final ParseOptions parseOptions = ParseOptions.builder()
@@ -30,10 +59,19 @@ public final class SighRunner
     // ---------------------------------------------------------------------------------------------
 
     public Object run(String input) {
-        Reactor reactor = new Reactor();
-        Walker<SighNode> walker = SemanticAnalysis.createWalker(reactor);
-        Interpreter interpreter = new Interpreter(reactor);
+        return run(input, Engine.INTERPRETER);
+    }
+
+    // ---------------------------------------------------------------------------------------------
 
+    public Object run(String input, Engine engine) {
+        RootNode root = parse(input);
+        return execute(root, analyze(root), engine);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    public RootNode parse(String input) {
         ParseResult result = Autumn.parse(grammar.root, input, parseOptions);
         if (!result.fullMatch) {
             // TODO improve
@@ -45,7 +83,52 @@ public final class SighRunner
             throw new Error("parsing produced unexpected value: " + top);
         }
 
-        RootNode root = result.topValue();
+        return result.topValue();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Compiles the input to JVM classes with the default compiler options, the main one having
+     * the given (dot-separated) binary name. If {@code cache} is not null, the classes are reused
+     * from it when the same input has already been compiled, skipping parsing and semantic
+     * analysis.
+     */
+    public CompilationResult compile (String binaryName, String input, CompilationCache cache) {
+        return compile(binaryName, input, cache, BytecodeCompiler.INDY_CONCAT_AVAILABLE, false);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Like {@link #compile(String, String, CompilationCache)}, but with the given compiler options
+     * (see {@link BytecodeCompiler#BytecodeCompiler(Reactor, boolean, boolean)}).
+     */
+    public CompilationResult compile (String binaryName, String input, CompilationCache cache,
+            boolean indyConcat, boolean scalarReplacement)
+    {
+        Supplier<Pair<Reactor, SighNode>> analysis = () -> {
+            RootNode root = parse(input);
+            return new Pair<>(analyze(root), root);
+        };
+
+        if (cache != null)
+            return cache.getOrCompile(
+                binaryName, input, indyConcat, scalarReplacement, analysis);
+
+        Pair<Reactor, SighNode> analyzed = analysis.get();
+        return new BytecodeCompiler(analyzed.a, indyConcat, scalarReplacement)
+            .compile(binaryName, analyzed.b);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Runs semantic analysis on the tree, returning the reactor holding the computed attributes.
+     */
+    public Reactor analyze(RootNode root) {
+        Reactor reactor = new Reactor();
+        Walker<SighNode> walker = SemanticAnalysis.createWalker(reactor);
         walker.walk(root);
         reactor.run();
         Set<SemanticError> errors = reactor.errors();
@@ -61,7 +144,32 @@ public final class SighRunner
             throw new AssertionError("semantic errors");
         }
 
-        return interpreter.interpret(root);
+        return reactor;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Executes a tree that was successfully analyzed using the given reactor.
+     */
+    public Object execute(RootNode root, Reactor reactor, Engine engine) {
+        switch (engine) {
+            case INTERPRETER:
+                Interpreter interpreter = new Interpreter(reactor,
+                    SlotResolution.resolve(reactor, root), ConstantFolding.fold(reactor, root));
+                return interpreter.interpret(root);
+            case TIERED:
+                Interpreter tiered = new Interpreter(reactor,
+                    SlotResolution.resolve(reactor, root), ConstantFolding.fold(reactor, root),
+                    new TieredExecution(reactor, root));
+                return tiered.interpret(root);
+            case CLOSURES:
+                return new ClosureCompiler(reactor).compile(root).run();
+            case REGISTERS:
+                return new RegisterCompiler(reactor).compile(root).run();
+            default:
+                throw new Error("should not reach here");
+        }
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -1,6 +1,8 @@
 package norswap.sigh.ast;
 
 import norswap.autumn.positions.Span;
+import norswap.sigh.SemanticAnalysis;
+import norswap.sigh.scopes.Scope;
 import norswap.utils.Util;
 import java.util.List;
 
@@ -8,12 +10,32 @@ public final class BlockNode extends StatementNode
 {
     public final List<StatementNode> statements;
 
+    // Not public, so as to be excluded from structural equality.
+    private Scope scope;
+
     @SuppressWarnings("unchecked")
     public BlockNode (Span span, Object statements) {
         super(span);
         this.statements = Util.cast(statements, List.class);
     }
 
+    /**
+     * Returns the {@code scope} attribute of this block, or null if it has not been frozen by
+     * {@link SemanticAnalysis#freeze}.
+     */
+    public Scope scope () {
+        return scope;
+    }
+
+    /**
+     * Sets the frozen {@code scope} attribute of this block, see {@link SemanticAnalysis#freeze}.
+     *
+     * @throws IllegalStateException if it was already frozen to another value.
+     */
+    public void freezeScope (Scope scope) {
+        this.scope = frozen(this.scope, scope, "scope");
+    }
+
     @Override public String contents ()
     {
         if (statements.size() == 0)
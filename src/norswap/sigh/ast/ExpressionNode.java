@@ -1,10 +1,33 @@
 package norswap.sigh.ast;
 
 import norswap.autumn.positions.Span;
+import norswap.sigh.SemanticAnalysis;
+import norswap.sigh.types.Type;
 
 public abstract class ExpressionNode extends SighNode
 {
+    // Not public, so as to be excluded from structural equality.
+    private Type type;
+
     public ExpressionNode (Span span) {
         super(span);
     }
+
+    /**
+     * Returns the {@code type} attribute of this expression, or null if it has not been frozen
+     * by {@link SemanticAnalysis#freeze}.
+     */
+    public final Type type () {
+        return type;
+    }
+
+    /**
+     * Sets the frozen {@code type} attribute of this expression, see {@link
+     * SemanticAnalysis#freeze}.
+     *
+     * @throws IllegalStateException if it was already frozen to another value.
+     */
+    public final void freezeType (Type type) {
+        this.type = frozen(this.type, type, "type");
+    }
 }
@@ -1,6 +1,7 @@
 package norswap.sigh.ast;
 
 import norswap.autumn.positions.Span;
+import norswap.sigh.SemanticAnalysis;
 import norswap.utils.Util;
 
 public final class FieldAccessNode extends ExpressionNode
@@ -8,12 +9,33 @@ public final class FieldAccessNode extends ExpressionNode
     public final ExpressionNode stem;
     public final String fieldName;
 
+    // Not public, so as to be excluded from structural equality.
+    private Integer fieldIndex;
+
     public FieldAccessNode (Span span, Object stem, Object fieldName) {
         super(span);
         this.stem = Util.cast(stem, ExpressionNode.class);
         this.fieldName = Util.cast(fieldName, String.class);
     }
 
+    /**
+     * Returns the {@code fieldIndex} attribute of this field access, which must be on a struct
+     * and have been frozen by {@link SemanticAnalysis#freeze}.
+     */
+    public int fieldIndex () {
+        return fieldIndex;
+    }
+
+    /**
+     * Sets the frozen {@code fieldIndex} attribute of this field access (null if the field
+     * access is not on a struct), see {@link SemanticAnalysis#freeze}.
+     *
+     * @throws IllegalStateException if it was already frozen to another value.
+     */
+    public void freezeFieldIndex (Integer fieldIndex) {
+        this.fieldIndex = frozen(this.fieldIndex, fieldIndex, "fieldIndex");
+    }
+
     @Override public String contents ()
     {
         String candidate = String.format("%s.%s", stem.contents(), fieldName);
@@ -1,17 +1,50 @@
 package norswap.sigh.ast;
 
 import norswap.autumn.positions.Span;
+import norswap.sigh.SemanticAnalysis;
+import norswap.sigh.scopes.Scope;
 import norswap.utils.Util;
 
 public final class ReferenceNode extends ExpressionNode
 {
     public final String name;
 
+    // Not public, so as to be excluded from structural equality.
+    private DeclarationNode decl;
+    private Scope scope;
+
     public ReferenceNode (Span span, Object name) {
         super(span);
         this.name = Util.cast(name, String.class);
     }
 
+    /**
+     * Returns the {@code decl} attribute of this reference, or null if it has not been frozen by
+     * {@link SemanticAnalysis#freeze}.
+     */
+    public DeclarationNode decl () {
+        return decl;
+    }
+
+    /**
+     * Returns the {@code scope} attribute of this reference, or null if it has not been frozen by
+     * {@link SemanticAnalysis#freeze}.
+     */
+    public Scope scope () {
+        return scope;
+    }
+
+    /**
+     * Sets the frozen {@code decl} and {@code scope} attributes of this reference, see {@link
+     * SemanticAnalysis#freeze}.
+     *
+     * @throws IllegalStateException if they were already frozen to other values.
+     */
+    public void freeze (DeclarationNode decl, Scope scope) {
+        this.decl = frozen(this.decl, decl, "decl");
+        this.scope = frozen(this.scope, scope, "scope");
+    }
+
     @Override public String contents() {
         return name;
     }
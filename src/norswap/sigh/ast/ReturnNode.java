@@ -1,12 +1,16 @@
 package norswap.sigh.ast;
 
 import norswap.autumn.positions.Span;
+import norswap.sigh.SemanticAnalysis;
 import norswap.utils.Util;
 
 public class ReturnNode extends StatementNode
 {
     public final ExpressionNode expression;
 
+    // Not public, so as to be excluded from structural equality.
+    private Boolean tailCall;
+
     public ReturnNode (Span span, Object expression) {
         super(span);
         this.expression = expression == null
@@ -14,6 +18,24 @@ public class ReturnNode extends StatementNode
             : Util.cast(expression, ExpressionNode.class);
     }
 
+    /**
+     * Returns the {@code tailCall} attribute of this return statement, which must have been frozen
+     * by {@link SemanticAnalysis#freeze}.
+     */
+    public boolean tailCall () {
+        return tailCall;
+    }
+
+    /**
+     * Sets the frozen {@code tailCall} attribute of this return statement, see {@link
+     * SemanticAnalysis#freeze}.
+     *
+     * @throws IllegalStateException if it was already frozen to another value.
+     */
+    public void freezeTailCall (Boolean tailCall) {
+        this.tailCall = frozen(this.tailCall, tailCall, "tailCall");
+    }
+
     @Override public String contents () {
         return "return " + (expression == null ? "" : expression.contents());
     }
@@ -1,6 +1,7 @@
 package norswap.sigh.ast;
 
 import norswap.autumn.positions.Span;
+import norswap.sigh.SemanticAnalysis;
 import norswap.uranium.Attribute;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
@@ -21,6 +22,9 @@ public abstract class SighNode
 
     /**
      * Returns an attribute with the given name on this node.
+     *
+     * <p>Attributes compare nodes by identity, so looking up their value never calls {@link
+     * #hashCode} or {@link #equals}.
      */
     public final Attribute attr (String name) {
         return new Attribute(this, name);
@@ -28,6 +32,24 @@ public abstract class SighNode
 
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * Returns the value to assign to a field holding a frozen attribute (see {@link
+     * SemanticAnalysis#freeze}), given its {@code current} value and the new {@code value}.
+     * Frozen attributes are written once: freezing them again (e.g. when running several
+     * backends over the same tree) must yield the same value.
+     *
+     * @throws IllegalStateException if the attribute was already frozen to another value.
+     */
+    protected final <T> T frozen (T current, T value, String attribute)
+    {
+        if (current != null && current != value)
+            throw new IllegalStateException(
+                "attribute " + attribute + " of " + this + " was already frozen to another value");
+        return value;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     /**
      * The size that the string returned by {@link #toString} should not exceed.
      */
@@ -77,6 +99,8 @@ public abstract class SighNode
     //    This is not ideal for performance, but these methods are currently only used in tests.
     //    Ideally we would replace all the AST classes by a small framework that generates code
     //    for them.
+    //    Everything else must key nodes by identity: attributes already do, side tables must use
+    //    IdentityHashMap, and objects wrapping a node must use System.identityHashCode.
 
     @Override public int hashCode() {
         try {
@@ -1,6 +1,9 @@
 package norswap.sigh.ast;
 
 import norswap.autumn.positions.Span;
+import norswap.sigh.SemanticAnalysis;
+import norswap.sigh.scopes.Scope;
+import norswap.sigh.types.Type;
 import norswap.utils.Util;
 
 public final class VarDeclarationNode extends DeclarationNode
@@ -9,6 +12,10 @@ public final class VarDeclarationNode extends DeclarationNode
     public final TypeNode type;
     public final ExpressionNode initializer;
 
+    // Not public, so as to be excluded from structural equality.
+    private Type variableType;
+    private Scope scope;
+
     public VarDeclarationNode (Span span, Object name, Object type, Object initializer) {
         super(span);
         this.name = Util.cast(name, String.class);
@@ -16,6 +23,34 @@ public final class VarDeclarationNode extends DeclarationNode
         this.initializer = Util.cast(initializer, ExpressionNode.class);
     }
 
+    /**
+     * Returns the {@code type} attribute of this declaration (the type of the variable, as
+     * opposed to the {@link #type} node denoting it), or null if it has not been frozen by {@link
+     * SemanticAnalysis#freeze}.
+     */
+    public Type variableType () {
+        return variableType;
+    }
+
+    /**
+     * Returns the {@code scope} attribute of this declaration, or null if it has not been frozen
+     * by {@link SemanticAnalysis#freeze}.
+     */
+    public Scope scope () {
+        return scope;
+    }
+
+    /**
+     * Sets the frozen {@code type} and {@code scope} attributes of this declaration, see {@link
+     * SemanticAnalysis#freeze}.
+     *
+     * @throws IllegalStateException if they were already frozen to other values.
+     */
+    public void freeze (Type variableType, Scope scope) {
+        this.variableType = frozen(this.variableType, variableType, "type");
+        this.scope = frozen(this.scope, scope, "scope");
+    }
+
     @Override public String name () {
         return name;
     }
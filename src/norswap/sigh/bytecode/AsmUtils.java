@@ -5,6 +5,12 @@ import org.objectweb.asm.Handle;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.IincInsnNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
+import org.objectweb.asm.tree.VarInsnNode;
 import java.lang.reflect.Method;
 import java.util.HashMap;
 import java.util.NoSuchElementException;
@@ -191,4 +197,72 @@ public final class AsmUtils {
     }
 
     // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns an upper bound on the size in bytes of the code of the given method, once written to
+     * a class file. The bound is exact, except for {@code ldc} instructions, which are assumed to
+     * take the wide form ({@code ldc_w}), as their size depends on the constant pool of the class.
+     */
+    public static int maxCodeSize (MethodNode method)
+    {
+        int size = 0;
+        int gotos = 0;
+        int conditionals = 0;
+
+        for (AbstractInsnNode insn: method.instructions.toArray()) {
+            int opcode = insn.getOpcode();
+            switch (insn.getType()) {
+                case AbstractInsnNode.LABEL:
+                case AbstractInsnNode.LINE:
+                case AbstractInsnNode.FRAME:
+                    break;
+                case AbstractInsnNode.INSN:
+                    size += 1; break;
+                case AbstractInsnNode.INT_INSN:
+                    size += opcode == SIPUSH ? 3 : 2; break;
+                case AbstractInsnNode.VAR_INSN: {
+                    int var = ((VarInsnNode) insn).var;
+                    // xLOAD_n and xSTORE_n for the first four variables, wide above 255
+                    size += var < 4 ? 1 : var <= 255 ? 2 : 4;
+                    break;
+                }
+                case AbstractInsnNode.IINC_INSN: {
+                    IincInsnNode iinc = (IincInsnNode) insn;
+                    boolean wide = iinc.var > 255 || iinc.incr != (byte) iinc.incr;
+                    size += wide ? 6 : 3;
+                    break;
+                }
+                case AbstractInsnNode.TYPE_INSN:
+                case AbstractInsnNode.FIELD_INSN:
+                case AbstractInsnNode.LDC_INSN:
+                    size += 3; break;
+                case AbstractInsnNode.METHOD_INSN:
+                    size += opcode == INVOKEINTERFACE ? 5 : 3; break;
+                case AbstractInsnNode.INVOKE_DYNAMIC_INSN:
+                    size += 5; break;
+                case AbstractInsnNode.MULTIANEWARRAY_INSN:
+                    size += 4; break;
+                case AbstractInsnNode.JUMP_INSN:
+                    size += 3;
+                    if (opcode == GOTO) ++gotos; else ++conditionals;
+                    break;
+                case AbstractInsnNode.TABLESWITCH_INSN:
+                    // opcode, up to 3 padding bytes, default, low, high, offsets
+                    size += 16 + 4 * ((TableSwitchInsnNode) insn).labels.size(); break;
+                case AbstractInsnNode.LOOKUPSWITCH_INSN:
+                    // opcode, up to 3 padding bytes, default, count, key-offset pairs
+                    size += 12 + 8 * ((LookupSwitchInsnNode) insn).labels.size(); break;
+                default:
+                    throw new Error("unreachable");
+            }
+        }
+
+        // Beyond 32KB, jump offsets may not fit in 16 bits: ASM then replaces GOTO by GOTO_W
+        // (+2 bytes), and conditional jumps by the opposite jump over a GOTO_W (+5 bytes).
+        return size <= Short.MAX_VALUE
+            ? size
+            : size + 2 * gotos + 5 * conditionals;
+    }
+
+    // ---------------------------------------------------------------------------------------------
 }
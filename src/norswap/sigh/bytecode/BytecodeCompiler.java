@@ -1,23 +1,35 @@
 package norswap.sigh.bytecode;
 
+import norswap.sigh.ConstantFolding;
+import norswap.sigh.SemanticAnalysis;
 import norswap.sigh.ast.*;
-import norswap.sigh.interpreter.Constructor;
 import norswap.sigh.scopes.Scope;
 import norswap.sigh.scopes.SyntheticDeclarationNode;
 import norswap.sigh.types.*;
 import norswap.uranium.Reactor;
 import norswap.utils.Vanilla;
 import norswap.utils.data.wrappers.Pair;
+import norswap.utils.visitors.ReflectiveFieldWalker;
 import norswap.utils.visitors.ValuedVisitor;
 import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.Handle;
 import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FieldNode;
+import org.objectweb.asm.tree.MethodNode;
 import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.stream.Collectors;
 
 import static norswap.sigh.ast.BinaryOperator.*;
@@ -25,14 +37,18 @@ import static norswap.sigh.bytecode.AsmUtils.*;
 import static norswap.sigh.bytecode.TypeUtils.fieldDescriptor;
 import static norswap.sigh.bytecode.TypeUtils.methodDescriptor;
 import static norswap.sigh.bytecode.TypeUtils.*;
+import static norswap.utils.visitors.WalkVisitType.POST_VISIT;
+import static norswap.utils.visitors.WalkVisitType.PRE_VISIT;
 import static org.objectweb.asm.Opcodes.*;
 
 /**
- * <h2>Limitations</h2>
- * <ul>
- *     <li>The compiled code currently doesn't support closures (using variables in functions that
- *     are declared in some surroudning scopes outside the function).</li>
- * </ul>
+ * <h2>Functions and Closures</h2>
+ * <p>Every function is lifted to a static method of the container class (nested functions are
+ * named after their enclosing functions, e.g. {@code outer$inner}, see {@link
+ * ClosureConversion#methodName}). Variables that a function uses but that are declared outside
+ * of it (including top-level variables) are passed as extra parameters, after the regular ones,
+ * as computed by {@link ClosureConversion}. Captured variables that are assigned are stored in
+ * one-element arrays (cells), so that all functions share them.
  *
  * <h2>Data Representation</h2>
  * <ul>
@@ -45,8 +61,10 @@ import static org.objectweb.asm.Opcodes.*;
  *     arrays, object arrays (e.g. {@code Object[][]}).</li>
  *     <li>Structs: A Java class encoding the structure, in the default package and using the
  *     structure's name.</li>
- *     <li>TODO: Functions: a {@link MethodHandle} to the method that implements the function in
- *     bytecode.</li>
+ *     <li>Functions: a {@link MethodHandle} to the method that implements the function in
+ *     bytecode (or to the constructor of the class encoding a structure). Calls through function
+ *     values use {@link MethodHandle#invokeExact}, with a call site type derived from the function
+ *     type, which lets the JIT inline the target when the handle is constant.</li>
  *     <li>Types: the {@link Class} object for the type representation. {@code Type} itself (the
  *     type of types) is represented by {@code Class.class}.</li>
  * </ul>
@@ -66,25 +84,137 @@ public class BytecodeCompiler
     // TODO: reference resolution test
     // TODO: check that a string variable is equal to itself
     // TODO: test with existing example source files
-    // TODO: inner methods should have name mangling
     // TODO: complete documentation (null, runtime, ...)
     // TODO: check (type) utils for ASM & GeneratorAdapter
     // TODO: prune util classes?
     // TODO: add a top type, and make print take it and convert
     //       (further: is operator, casts, flow casts)
-    // TODO: function objects
     // TODO: simplify with https://asm.ow2.io/javadoc/org/objectweb/asm/commons/GeneratorAdapter.html ?
 
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * Maximum size in bytes of the code of a method compiled from top-level code, see {@link
+     * #splitRunMethod}. This is the size above which HotSpot does not compile methods (its {@code
+     * HugeMethodLimit}), so that top-level code can run as compiled code.
+     */
+    public static final int MAX_CHUNK_SIZE = 8000;
+
+    /** Maximum size in bytes of the code of a method, imposed by the class file format. */
+    public static final int MAX_METHOD_SIZE = 65535;
+
+    /** Descriptor of the methods compiled from top-level code. */
+    private static final String RUN_DESCRIPTOR = "([Ljava/lang/String;)Ljava/lang/Object;";
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Version of the compiler, part of the key of {@link CompilationCache} entries. It must be
+     * incremented whenever a change to the compiler (or to semantic analysis) changes the emitted
+     * bytecode.
+     */
+    public static final int VERSION = 11;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether {@code java.lang.invoke.StringConcatFactory} (Java 9+) is available in this JVM,
+     * which is the default for {@link #indyConcat}.
+     */
+    public static final boolean INDY_CONCAT_AVAILABLE = isStringConcatFactoryAvailable();
+
+    private static boolean isStringConcatFactoryAvailable () {
+        try {
+            Class.forName("java.lang.invoke.StringConcatFactory");
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    /** Bootstrap method for invokedynamic string concatenations. */
+    private static final Handle CONCAT_BOOTSTRAP = new Handle(H_INVOKESTATIC,
+        "java/lang/invoke/StringConcatFactory", "makeConcat",
+        "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;)"
+            + "Ljava/lang/invoke/CallSite;", false);
+
+    /** Maximum number of operands for a single {@code StringConcatFactory} call (200 slots). */
+    private static final int MAX_CONCAT_OPERANDS = 100;
+
+    // ---------------------------------------------------------------------------------------------
+
     private final ValuedVisitor<SighNode, Object> visitor = new ValuedVisitor<>();
     private final Reactor reactor;
 
+    /**
+     * Whether string concatenations are emitted as invokedynamic calls to {@code
+     * StringConcatFactory}, or, if false, using {@link StringBuilder}. The generated classes
+     * always target Java 8, but concatenations can only be run on Java 9+ if this is true.
+     */
+    private final boolean indyConcat;
+
+    /**
+     * Whether structs that do not escape are replaced by one local variable per field, see {@link
+     * EscapeAnalysis}. Off by default: HotSpot's C2 already scalar-replaces these allocations once
+     * the code is compiled, so this only helps while the code is interpreted or compiled by C1, and
+     * makes the bytecode larger.
+     */
+    private final boolean scalarReplacement;
+
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * Creates a compiler for trees analyzed with the given reactor, emitting invokedynamic string
+     * concatenations if the current JVM supports them ({@link #INDY_CONCAT_AVAILABLE}).
+     */
     public BytecodeCompiler (Reactor reactor) {
+        this(reactor, INDY_CONCAT_AVAILABLE);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates a compiler for trees analyzed with the given reactor, see {@link #indyConcat}.
+     */
+    public BytecodeCompiler (Reactor reactor, boolean indyConcat) {
+        this(reactor, indyConcat, false);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates a compiler for trees analyzed with the given reactor, see {@link #indyConcat} and
+     * {@link #scalarReplacement}.
+     */
+    public BytecodeCompiler (Reactor reactor, boolean indyConcat, boolean scalarReplacement) {
         this.reactor = reactor;
+        this.indyConcat = indyConcat;
+        this.scalarReplacement = scalarReplacement;
+        registerVisitors();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates a compilation context for a single method or struct class of the source unit being
+     * compiled by {@code unit}, sharing its read-only state.
+     */
+    private BytecodeCompiler (BytecodeCompiler unit) {
+        this.reactor = unit.reactor;
+        this.indyConcat = unit.indyConcat;
+        this.scalarReplacement = unit.scalarReplacement;
+        this.containerName = unit.containerName;
+        this.closures = unit.closures;
+        this.constants = unit.constants;
+        this.escapes = unit.escapes;
+        this.inlining = unit.inlining;
+        registerVisitors();
+    }
+
+    // ---------------------------------------------------------------------------------------------
 
+    private void registerVisitors ()
+    {
         // expressions
         visitor.register(IntLiteralNode.class,           this::intLiteral);
         visitor.register(FloatLiteralNode.class,         this::floatLiteral);
@@ -101,7 +231,6 @@ public class BytecodeCompiler
         visitor.register(AssignmentNode.class,           this::assignment);
 
         // statement groups & declarations
-        visitor.register(RootNode.class,                 this::root);
         visitor.register(BlockNode.class,                this::block);
         visitor.register(VarDeclarationNode.class,       this::varDecl);
         visitor.register(FieldDeclarationNode.class,     this::fieldDecl);
@@ -122,41 +251,114 @@ public class BytecodeCompiler
      * unit. */
     private String containerName;
 
-    /* Class visitor for the class containing the emitted bytecode for the source unit. */
-    private ClassWriter container;
+    /** Result of the closure conversion pass over the source unit. */
+    private ClosureConversion closures;
 
-    /* Class writer for the class representing the struct currently being emitted. */
-    private ClassWriter struct;
+    /** Result of the constant folding pass over the source unit. */
+    private ConstantFolding constants;
+
+    /** Result of the escape analysis pass over the source unit, if {@link #scalarReplacement}. */
+    private EscapeAnalysis escapes;
 
-    /** The list of (class name, class writer) pairs for the classes representing the structures
-     * defined in the source unit. */
-    ArrayList<Pair<String, ClassWriter>> structs = new ArrayList<>();
+    /** Result of the inlining analysis over the source unit. */
+    private Inlining inlining;
+
+    // The fields below make up the state of a compilation context, and are only used by the
+    // instances created by BytecodeCompiler(BytecodeCompiler).
+
+    /* Class writer for the class representing the struct being emitted. */
+    private ClassWriter struct;
 
-    /* MethodVisitor for current method. */
-    private MethodVisitor method;
+    /* MethodVisitor for the method being emitted. */
+    private FrameTracker method;
 
-    /** Maps variables in a scope to a variable index. */
+    /** Maps variables in a scope to a variable index in the current method. */
     private final HashMap<Pair<Scope, String>, Integer> variables = new HashMap<>();
 
+    /** Variable indices of the fields of scalar-replaced structs, see {@link EscapeAnalysis}. */
+    private final IdentityHashMap<DeclarationNode, int[]> fieldVariables = new IdentityHashMap<>();
+
+    /**
+     * Top-level variables held in instance fields of the container (the frame of the top-level
+     * code), see {@link #splitRunMethod}.
+     */
+    private final Set<DeclarationNode> frameVariables =
+        Collections.newSetFromMap(new IdentityHashMap<>());
+
     /** Counter used to number variables in {@link #variables}. */
     private int variableCounter = 0;
 
     /** Whether we are in top-level code. */
     private boolean topLevel;
 
+    /** Declaration of the function being emitted, or null for top-level code. */
+    private FunDeclarationNode function;
+
+    /** Label at the start of the method being emitted, target of self tail calls. */
+    private Label functionStart;
+
+    /** Variable indices of the parameters of the function being emitted. */
+    private int[] parameterIndices;
+
+    /** Label at the end of the function body being inlined, or null if not inlining. */
+    private Label inlineEnd;
+
+    /** Return type of the function body being inlined. */
+    private Type inlineType;
+
+    /** Variable index of the result of the function body being inlined (-1 if void). */
+    private int inlineResult;
+
+    /** Number of nested inlined calls at the current point. */
+    private int inlineDepth = 0;
+
     // ---------------------------------------------------------------------------------------------
 
     /**
      * Compile the given source unit (given as its root AST node) into a class whose (dot-separated)
      * binary name is {@code binaryName}.
+     *
+     * <p>The top-level code, every function and every struct class are compiled concurrently on
+     * the common fork-join pool, each in its own compilation context. The methods are then added to
+     * the container class in declaration order, so that the output is deterministic.
      */
     public CompilationResult compile (String binaryName, SighNode root)
     {
         this.containerName = binaryName.replace('.', '/');
-        run(root);
+        SemanticAnalysis.freeze(reactor, root);
+        this.closures = ClosureConversion.convert(reactor, root);
+        this.constants = ConstantFolding.fold(reactor, root);
+        this.escapes = scalarReplacement
+            ? EscapeAnalysis.analyze(reactor, root, closures)
+            : null;
+        this.inlining = Inlining.analyze(reactor, root);
+
+        List<FunDeclarationNode> functions = new ArrayList<>();
+        List<StructDeclarationNode> structDecls = new ArrayList<>();
+        collectDeclarations(root, functions, structDecls);
+
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        ForkJoinTask<ClassNode> runTask =
+            pool.submit(() -> new BytecodeCompiler(this).topLevelCode((RootNode) root));
+        List<ForkJoinTask<MethodNode>> functionTasks = functions.stream()
+            .map(fun -> pool.submit(() -> new BytecodeCompiler(this).functionMethod(fun)))
+            .collect(Collectors.toList());
+        List<ForkJoinTask<GeneratedClass>> structTasks = structDecls.stream()
+            .map(decl -> pool.submit(() -> new BytecodeCompiler(this).structClass(decl)))
+            .collect(Collectors.toList());
+
+        ClassWriter container = new ClassWriter(0); // frames are emitted by FrameTracker
+        container.visit(V1_8, ACC_PUBLIC, containerName, null, "java/lang/Object", null);
+        ClassNode topLevelCode = runTask.join();
+        topLevelCode.fields.forEach(field -> field.accept(container));
+        topLevelCode.methods.forEach(run -> run.accept(container));
+        functionTasks.forEach(task -> task.join().accept(container));
+        mainMethod(container);
+        container.visitEnd();
+
         GeneratedClass mainClass = new GeneratedClass(containerName, container.toByteArray());
-        List<GeneratedClass> structClasses = structs.stream()
-            .map(it -> new GeneratedClass(it.a, it.b.toByteArray()))
+        List<GeneratedClass> structClasses = structTasks.stream()
+            .map(ForkJoinTask::join)
             .collect(Collectors.toList());
 
         return new CompilationResult(mainClass, structClasses);
@@ -164,61 +366,279 @@ public class BytecodeCompiler
 
     // ---------------------------------------------------------------------------------------------
 
-    private Object run (SighNode node) {
-        return visitor.apply(node);
+    /**
+     * Appends the function and struct declarations of the tree to the given lists, in declaration
+     * order.
+     */
+    private static void collectDeclarations (SighNode root,
+            List<FunDeclarationNode> functions, List<StructDeclarationNode> structs)
+    {
+        ReflectiveFieldWalker<SighNode> walker = new ReflectiveFieldWalker<>(
+            SighNode.class, PRE_VISIT, POST_VISIT);
+        walker.register(FunDeclarationNode.class,    PRE_VISIT, functions::add);
+        walker.register(StructDeclarationNode.class, PRE_VISIT, structs::add);
+        walker.registerFallback(PRE_VISIT,  node -> {});
+        walker.registerFallback(POST_VISIT, node -> {});
+        walker.walk(root);
     }
 
     // ---------------------------------------------------------------------------------------------
 
-    private Object root (RootNode node)
+    private Object run (SighNode node)
     {
-        container = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
-        container.visit(V1_8, ACC_PUBLIC, containerName, null, "java/lang/Object", null);
+        Object value = constants.value(node);
+        if (value == null)
+            return visitor.apply(node);
 
-        // Top-level code belongs in the run method.
-        method = container.visitMethod(ACC_PUBLIC | ACC_STATIC, "run",
-            "([Ljava/lang/String;)Ljava/lang/Object;", null, null);
-        method.visitCode();
-        topLevel = true;
+        // constant expression
+        if (value instanceof Boolean)
+            loadConstant(method, (Boolean) value ? 1 : 0);
+        else
+            loadConstant(method, value);
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Compiles the top-level code to the {@code run} method of the container class, returned in a
+     * class node along with the other members the top-level code requires.
+     *
+     * <p>If the code of the {@code run} method exceeds {@link #MAX_CHUNK_SIZE}, the top-level code
+     * is instead split into a chain of methods, see {@link #splitRunMethod}.
+     */
+    private ClassNode topLevelCode (RootNode node)
+    {
+        MethodNode run = runMethod(node);
+        if (maxCodeSize(run) > MAX_CHUNK_SIZE)
+            return new BytecodeCompiler(this).splitRunMethod(node);
+
+        ClassNode result = new ClassNode();
+        result.methods.add(run);
+        return result;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Compiles the top-level code to the {@code run} method of the container class.
+     */
+    private MethodNode runMethod (RootNode node)
+    {
+        MethodNode result = startRunMethod(ACC_PUBLIC | ACC_STATIC, "run");
         node.statements.forEach(this::run);
         // append "return null;" since we do not know if top-level code always returns
         loadConstant(method, null);
         method.visitInsn(ARETURN);
         method.visitEnd();
         method.visitMaxs(-1, -1);
-        container.visitEnd();
+        return result;
+    }
+
+    // ---------------------------------------------------------------------------------------------
 
-        // Traditional java main method to run standalone.
-        // This just calls run, ignoring its return value.
-        method = container.visitMethod(ACC_PUBLIC | ACC_STATIC, "main",
-            "([Ljava/lang/String;)V", null, null);
+    /**
+     * Compiles the top-level code to a chain of instance methods of the container class ({@code
+     * run$0}, {@code run$1}, ...), each of whose code is at most {@link #MAX_CHUNK_SIZE} bytes,
+     * unless it holds a single statement that exceeds it (such a method is valid but not compiled
+     * by HotSpot). Each method ends by returning the result of calling the next one, so that a
+     * top-level return statement in any method returns from {@code run}.
+     *
+     * <p>The variables declared directly in top-level code are held in instance fields of the
+     * container class, as they can be used in several methods. The {@code run} method creates a
+     * new instance (the frame of the top-level code) on which it calls {@code run$0}, so that
+     * concurrent or successive calls to {@code run} do not share any state, as with unsplit
+     * top-level code. Variables declared in nested blocks remain local variables, as statements
+     * are never split.
+     *
+     * @throws UnsupportedOperationException if the code of a single top-level statement exceeds
+     * {@link #MAX_METHOD_SIZE}.
+     */
+    private ClassNode splitRunMethod (RootNode node)
+    {
+        ClassNode result = new ClassNode();
+
+        for (StatementNode statement: node.statements) {
+            if (!(statement instanceof VarDeclarationNode)) continue;
+            VarDeclarationNode decl = (VarDeclarationNode) statement;
+            frameVariables.add(decl);
+            result.fields.add(new FieldNode(ACC_PRIVATE, decl.name,
+                variableAsmType(decl).getDescriptor(), null, null));
+        }
+
+        result.methods.add(frameConstructor());
+        result.methods.add(frameRunMethod());
+
+        // Compile every statement on its own, to measure its size. As statements start with the
+        // same local variables in a chunk (see #chunkStatement), its size is the same there.
+        int prologueSize = maxCodeSize(startRunMethod(ACC_PRIVATE, "run$"));
+        int[] sizes = new int[node.statements.size()];
+        for (int i = 0; i < sizes.length; ++i) {
+            MethodNode scratch = startRunMethod(ACC_PRIVATE, "run$");
+            chunkStatement(node.statements.get(i));
+            sizes[i] = maxCodeSize(scratch) - prologueSize;
+        }
+
+        // aload_0, aload_1, invokevirtual, areturn
+        int epilogueSize = 6;
+
+        MethodNode chunk = startRunMethod(ACC_PRIVATE, "run$0");
+        result.methods.add(chunk);
+        int chunkSize = prologueSize + epilogueSize;
+
+        for (int i = 0; i < sizes.length; ++i) {
+            StatementNode statement = node.statements.get(i);
+            if (prologueSize + sizes[i] + epilogueSize > MAX_METHOD_SIZE)
+                throw new UnsupportedOperationException(String.format(
+                    "top-level statement at %s compiles to %d bytes of bytecode, which exceeds the "
+                        + "maximum method size of %d bytes: split it into smaller statements",
+                    statement.span, sizes[i], MAX_METHOD_SIZE));
+
+            if (chunkSize > prologueSize + epilogueSize
+                    && chunkSize + sizes[i] > MAX_CHUNK_SIZE) {
+                String name = "run$" + (result.methods.size() - 2);
+                method.visitVarInsn(ALOAD, 0);
+                method.visitVarInsn(ALOAD, 1);
+                method.visitMethodInsn(INVOKEVIRTUAL, containerName, name, RUN_DESCRIPTOR, false);
+                method.visitInsn(ARETURN);
+                method.visitEnd();
+                method.visitMaxs(-1, -1);
+                chunk = startRunMethod(ACC_PRIVATE, name);
+                result.methods.add(chunk);
+                chunkSize = prologueSize + epilogueSize;
+            }
+
+            chunkStatement(statement);
+            chunkSize += sizes[i];
+        }
+
+        loadConstant(method, null);
+        method.visitInsn(ARETURN);
+        method.visitEnd();
+        method.visitMaxs(-1, -1);
+        return result;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Compiles a top-level statement in a method of the chain built by {@link #splitRunMethod}.
+     * The local variables it declares (in nested blocks) are dead after it, so their indices are
+     * reused by the next statement.
+     */
+    private void chunkStatement (StatementNode statement)
+    {
+        int counter = variableCounter;
+        HashMap<Pair<Scope, String>, Integer> chunkVariables = new HashMap<>(variables);
+        run(statement);
+        variableCounter = counter;
+        variables.clear();
+        variables.putAll(chunkVariables);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Emits the private no-argument constructor of the container class, used by {@link
+     * #frameRunMethod}.
+     */
+    private MethodNode frameConstructor ()
+    {
+        MethodNode result = startMethod(ACC_PRIVATE, "<init>", "()V");
         method.visitCode();
         method.visitVarInsn(ALOAD, 0);
-        method.visitMethodInsn(INVOKESTATIC, containerName,
-            "run", "([Ljava/lang/String;)Ljava/lang/Object;", false);
-        method.visitInsn(POP);
-        method.visitInsn(RETURN); // explicitly necessary
+        method.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+        method.visitInsn(RETURN);
         method.visitEnd();
         method.visitMaxs(-1, -1);
-        container.visitEnd();
-        return null;
+        return result;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Emits the {@code run} method for split top-level code, which calls {@code run$0} on a new
+     * instance of the container class, see {@link #splitRunMethod}.
+     */
+    private MethodNode frameRunMethod ()
+    {
+        MethodNode result = startMethod(ACC_PUBLIC | ACC_STATIC, "run", RUN_DESCRIPTOR);
+        method.visitCode();
+        method.visitTypeInsn(NEW, containerName);
+        method.visitInsn(DUP);
+        method.visitMethodInsn(INVOKESPECIAL, containerName, "<init>", "()V", false);
+        method.visitVarInsn(ALOAD, 0);
+        method.visitMethodInsn(INVOKEVIRTUAL, containerName, "run$0", RUN_DESCRIPTOR, false);
+        method.visitInsn(ARETURN);
+        method.visitEnd();
+        method.visitMaxs(-1, -1);
+        return result;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Starts a new method for top-level code, with the given access flags and name. Instance
+     * methods are the chunks of split top-level code, see {@link #splitRunMethod}.
+     */
+    private MethodNode startRunMethod (int access, String name)
+    {
+        MethodNode result = startMethod(access, name, RUN_DESCRIPTOR);
+        method.visitCode();
+        topLevel = true;
+        variables.clear();
+        fieldVariables.clear();
+        // the String[] parameter, preceded by the frame for instance methods
+        variableCounter = (access & ACC_STATIC) != 0 ? 1 : 2;
+        declareCapturedVariables(null);
+        return result;
     }
 
     // ---------------------------------------------------------------------------------------------
 
-    private Object funDecl (FunDeclarationNode node)
+    /**
+     * Emits a traditional java main method to run standalone. This just calls run, ignoring its
+     * return value.
+     */
+    private void mainMethod (ClassWriter container)
     {
-        int surroundingVariableCounter = variableCounter;
-        MethodVisitor surroundingMethod = method;
-        boolean surroundingIsTopLevel = topLevel;
+        MethodVisitor main = visitMethod(container, containerName, ACC_PUBLIC | ACC_STATIC, "main",
+            "([Ljava/lang/String;)V");
+        main.visitCode();
+        main.visitVarInsn(ALOAD, 0);
+        main.visitMethodInsn(INVOKESTATIC, containerName, "run", RUN_DESCRIPTOR, false);
+        main.visitInsn(POP);
+        main.visitInsn(RETURN); // explicitly necessary
+        main.visitEnd();
+        main.visitMaxs(-1, -1);
+    }
 
-        variableCounter = 0;
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Compiles the given function to the static method it is lifted to.
+     */
+    private MethodNode functionMethod (FunDeclarationNode node)
+    {
         topLevel = false;
-        node.parameters.forEach(this::run);
+        function = node;
 
-        String descriptor = methodDescriptor(reactor.get(node, "type"));
-        method = container.visitMethod(ACC_PUBLIC | ACC_STATIC, node.name, descriptor, null, null);
+        String descriptor = liftedDescriptor(node);
+        MethodNode result = startMethod(ACC_PUBLIC | ACC_STATIC,
+            closures.methodName(node), descriptor);
         method.visitCode();
+
+        node.parameters.forEach(this::run);
+        parameterIndices = node.parameters.stream().mapToInt(this::variableIndex).toArray();
+
+        // captured variables are passed after the regular parameters
+        for (DeclarationNode decl: closures.freeVariables(node))
+            registerVariable(decl, variableAsmType(decl));
+
+        functionStart = new Label();
+        method.visitLabel(functionStart);
+        boxParameters(node);
+        declareCapturedVariables(node);
         run(node.block);
 
         // NOTE: The current semantic analysis check guarantee that there is we unconditionally
@@ -231,10 +651,13 @@ public class BytecodeCompiler
 
         method.visitEnd();
         method.visitMaxs(-1, -1);
+        return result;
+    }
 
-        method = surroundingMethod;
-        variableCounter = surroundingVariableCounter;
-        topLevel = surroundingIsTopLevel;
+    // ---------------------------------------------------------------------------------------------
+
+    private Object funDecl (FunDeclarationNode node) {
+        // compiled in its own context, see #compile
         return null;
     }
 
@@ -265,7 +688,7 @@ public class BytecodeCompiler
 
     private Object arrayLiteral (ArrayLiteralNode node)
     {
-        ArrayType type = reactor.get(node, "type");
+        ArrayType type = (ArrayType) node.type();
         Type compType = type.componentType;
 
         method.visitLdcInsn(node.components.size());
@@ -283,9 +706,9 @@ public class BytecodeCompiler
         } else if (compType instanceof StringType) {
             method.visitTypeInsn(ANEWARRAY, "java/lang/String");
         } else if (compType instanceof TypeType) {
-            method.visitTypeInsn(ANEWARRAY, "norswap/sigh/types/TypeType");
+            method.visitTypeInsn(ANEWARRAY, "java/lang/Class");
         } else if (compType instanceof FunType) {
-            throw new UnsupportedOperationException("TODO"); // TODO
+            method.visitTypeInsn(ANEWARRAY, "java/lang/invoke/MethodHandle");
         } else if (compType instanceof NullType) {
             method.visitTypeInsn(ANEWARRAY, "norswap/sigh/bytecode/Null");
         } else if (compType instanceof VoidType || compType instanceof ArrayType) {
@@ -313,34 +736,22 @@ public class BytecodeCompiler
     {
         if (isShortCircuit(node.operator))
             return shortCircuit(node);
+        if (isConcatenation(node))
+            return concatenation(node);
 
         run(node.left);
 
-        Type left  = reactor.get(node.left, "type");
-        Type right = reactor.get(node.right, "type");
+        Type left  = node.left.type();
+        Type right = node.right.type();
 
         // promote long to double for mixed operations
         if (enablesPromotion(node.operator) && left instanceof IntType && right instanceof FloatType)
             method.visitInsn(L2D);
 
-        // string concatenation: convert value to string
-        if (node.operator == ADD && right instanceof StringType)
-            convertToString(left);
-
         run(node.right);
 
         switch (node.operator) {
-            case ADD:
-                if (left instanceof StringType) {
-                    convertToString(right);
-                    invokeStatic(method, SighRuntime.class, "concat", String.class, String.class);
-                } else if (right instanceof StringType) {
-                    // left already converted to string in this case
-                    invokeStatic(method, SighRuntime.class, "concat", String.class, String.class);
-                } else {
-                    numOperation(LADD, DADD, left, right);
-                } break;
-
+            case ADD:       numOperation(LADD, DADD, left, right); break;
             case MULTIPLY:  numOperation(LMUL, DMUL, left, right); break;
             case DIVIDE:    numOperation(LDIV, DDIV, left, right); break;
             case REMAINDER: numOperation(LREM, DREM, left, right); break;
@@ -404,6 +815,105 @@ public class BytecodeCompiler
 
     // ---------------------------------------------------------------------------------------------
 
+    private boolean isConcatenation (ExpressionNode node) {
+        return node instanceof BinaryExpressionNode
+            && ((BinaryExpressionNode) node).operator == ADD
+            && node.type() instanceof StringType;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Emits a chain of string concatenations (e.g. {@code a + b + c}) as a single concatenation,
+     * so that no intermediate string is created: using an invokedynamic call to {@code
+     * StringConcatFactory} if {@link #indyConcat} is set, or a {@link StringBuilder} otherwise.
+     */
+    private Object concatenation (BinaryExpressionNode node)
+    {
+        List<ExpressionNode> operands = new ArrayList<>();
+        flattenConcatenation(node, operands);
+
+        if (indyConcat) {
+            StringBuilder params = new StringBuilder("(");
+            int count = 0;
+            for (ExpressionNode operand: operands) {
+                if (count == MAX_CONCAT_OPERANDS) {
+                    // the concatenated prefix becomes the first operand of the next call
+                    invokeConcat(params.toString());
+                    params = new StringBuilder("(Ljava/lang/String;");
+                    count = 1;
+                }
+                params.append(concatOperand(operand));
+                ++count;
+            }
+            invokeConcat(params.toString());
+        } else {
+            method.visitTypeInsn(NEW, "java/lang/StringBuilder");
+            method.visitInsn(DUP);
+            method.visitMethodInsn(INVOKESPECIAL, "java/lang/StringBuilder", "<init>", "()V", false);
+            for (ExpressionNode operand: operands)
+                method.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "append",
+                    "(" + concatOperand(operand) + ")Ljava/lang/StringBuilder;", false);
+            method.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "toString",
+                "()Ljava/lang/String;", false);
+        }
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Appends the operands of the concatenation chain rooted at {@code node} to {@code operands}.
+     * Concatenation is associative, so parenthesized sub-chains are flattened too.
+     */
+    private void flattenConcatenation (ExpressionNode node, List<ExpressionNode> operands)
+    {
+        ExpressionNode unwrapped = node;
+        while (unwrapped instanceof ParenthesizedNode)
+            unwrapped = ((ParenthesizedNode) unwrapped).expression;
+
+        if (isConcatenation(unwrapped)) {
+            BinaryExpressionNode binary = (BinaryExpressionNode) unwrapped;
+            flattenConcatenation(binary.left, operands);
+            flattenConcatenation(binary.right, operands);
+        } else {
+            operands.add(node);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Pushes an operand of a concatenation and returns the descriptor of the pushed value. Values
+     * whose Java string conversion matches Sigh's are pushed as-is, the others are converted to
+     * strings first.
+     */
+    private String concatOperand (ExpressionNode node)
+    {
+        run(node);
+        Type type = reactor.get(node, "type");
+        if (type instanceof IntType)
+            return "J";
+        else if (type instanceof FloatType)
+            return "D";
+        else if (type instanceof BoolType)
+            return "Z";
+        else if (type instanceof StringType || type instanceof ArrayType || type instanceof NullType) {
+            convertToString(type);
+            return "Ljava/lang/String;";
+        }
+        else
+            return "Ljava/lang/Object;";
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void invokeConcat (String params) {
+        method.visitInvokeDynamicInsn("concat", params + ")Ljava/lang/String;", CONCAT_BOOTSTRAP);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     @SuppressWarnings("StatementWithEmptyBody")
     private void convertToString (Type type)
     {
@@ -428,7 +938,8 @@ public class BytecodeCompiler
             // String.valueOf -> Type#toString -> Type#name
             invokeStatic(method, String.class, "valueOf", Object.class);
         } else if (type instanceof FunType) {
-            throw new UnsupportedOperationException("TODO"); // TODO
+            // String.valueOf -> MethodHandle#toString (shows the function's signature)
+            invokeStatic(method, String.class, "valueOf", Object.class);
         } else if (type instanceof StructType) {
             // String.valueOf -> Object#toString (or override)
             invokeStatic(method, String.class, "valueOf", Object.class);
@@ -528,42 +1039,113 @@ public class BytecodeCompiler
 
     private Object funCall (FunCallNode node)
     {
-        FunType funType = reactor.get(node.function, "type");
+        FunType funType = (FunType) node.function.type();
 
-        // The function part can either be a reference, in which case we emit a call,
-        // or a more complex expression, which will evaluate to a lambda.
+        // The function part can either be a reference to a function or a constructor, in which
+        // case we emit a direct call, or any other expression, which will evaluate to a method
+        // handle.
 
-        if (node.function instanceof ReferenceNode) {
-            DeclarationNode decl = reactor.get(node.function, "decl");
-            if (decl instanceof SyntheticDeclarationNode) {
-                return builtin(funType, decl.name(), node.arguments);
-            }
-            else if (decl instanceof FunDeclarationNode) {
-                runArguments(funType, node.arguments);
-                method.visitMethodInsn(INVOKESTATIC, containerName,
-                    decl.name(), methodDescriptor(funType), false);
-            }
-            else { // TODO
-                throw new UnsupportedOperationException("variables or parameters containing a function value");
-            }
+        DeclarationNode decl = node.function instanceof ReferenceNode
+            ? ((ReferenceNode) node.function).decl()
+            : null;
+
+        if (decl instanceof SyntheticDeclarationNode) {
+            return builtin(funType, decl.name(), node.arguments);
+        }
+        else if (decl instanceof FunDeclarationNode && isInlined((FunDeclarationNode) decl)) {
+            inlineCall((FunDeclarationNode) decl, funType, node.arguments);
+        }
+        else if (decl instanceof FunDeclarationNode) {
+            FunDeclarationNode fun = (FunDeclarationNode) decl;
+            runArguments(funType, node.arguments);
+            closures.freeVariables(fun).forEach(this::loadVariable);
+            method.visitMethodInsn(INVOKESTATIC, containerName,
+                closures.methodName(fun), liftedDescriptor(fun), false);
         }
         else if (node.function instanceof ConstructorNode) {
-            StructDeclarationNode decl = reactor.get(((ConstructorNode) node.function).ref, "decl");
-            String binaryName = structBinaryName(reactor.get(decl, "declared"));
+            StructDeclarationNode struct = reactor.get(((ConstructorNode) node.function).ref, "decl");
+            String binaryName = structBinaryName(reactor.get(struct, "declared"));
             method.visitTypeInsn(NEW, binaryName);
             method.visitInsn(DUP);
             runArguments(funType, node.arguments);
             String descriptor = methodDescriptor(VoidType.INSTANCE, funType.paramTypes);
             method.visitMethodInsn(INVOKESPECIAL, binaryName, "<init>", descriptor, false);
         }
-        else
-            throw new UnsupportedOperationException("complex expression evaluating to a function value");
+        else {
+            run(node.function);
+            runArguments(funType, node.arguments);
+            method.visitMethodInsn(INVOKEVIRTUAL, "java/lang/invoke/MethodHandle",
+                "invokeExact", methodDescriptor(funType), false);
+        }
 
         return null;
     }
 
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * Whether a direct call to the given function, emitted at the current point, is inlined.
+     * Functions with loops are only inlined if the operand stack is empty, see {@link Inlining}.
+     */
+    private boolean isInlined (FunDeclarationNode fun) {
+        return inlining.isInlinable(fun)
+            && inlineDepth < Inlining.MAX_DEPTH
+            && (!inlining.hasLoops(fun) || method.stackHeight() == 0);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Emits the body of the given function in place of a call to it: the arguments are stored
+     * into fresh variables for the parameters, and return statements store their value into a
+     * result variable then jump to the end of the body, where the result is loaded. The body is
+     * compiled with the constant folding specialized for the constant arguments.
+     */
+    private void inlineCall (FunDeclarationNode fun, FunType funType, List<ExpressionNode> arguments)
+    {
+        runArguments(funType, arguments);
+
+        // registered after evaluating the arguments, which may inline the same function
+        int[] indices = fun.parameters.stream().mapToInt(this::registerVariable).toArray();
+        for (int i = indices.length - 1; i >= 0; --i)
+            method.visitVarInsn(nodeAsmType(fun.parameters.get(i)).getOpcode(ISTORE), indices[i]);
+
+        Label end = inlineEnd;
+        Type type = inlineType;
+        int result = inlineResult;
+        ConstantFolding folding = constants;
+
+        inlineType = funType.returnType;
+        if (!(inlineType instanceof VoidType)) {
+            org.objectweb.asm.Type asmType = asmType(inlineType);
+            inlineResult = variableCounter;
+            variableCounter += asmType.getSize();
+            method.declareLocal(inlineResult, asmType);
+        } else {
+            inlineResult = -1;
+        }
+
+        List<Object> values = new ArrayList<>();
+        arguments.forEach(arg -> values.add(constants.value(arg)));
+        if (values.stream().anyMatch(Objects::nonNull))
+            constants = constants.specialize(fun, values);
+
+        inlineEnd = new Label();
+        ++inlineDepth;
+        run(fun.block);
+        --inlineDepth;
+        method.visitLabel(inlineEnd);
+        if (inlineResult >= 0)
+            method.visitVarInsn(asmType(funType.returnType).getOpcode(ILOAD), inlineResult);
+
+        inlineEnd = end;
+        inlineType = type;
+        inlineResult = result;
+        constants = folding;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     private Object builtin (FunType funType, String name, List<ExpressionNode> arguments)
     {
         assert name.equals("print"); // only one at the moment
@@ -586,7 +1168,7 @@ public class BytecodeCompiler
     {
         Vanilla.forEachIndexed(arguments, (i, arg) -> {
             run(arg);
-            implicitConversion(funType.paramTypes[i], reactor.get(arg, "type"));
+            implicitConversion(funType.paramTypes[i], arg.type());
         });
     }
 
@@ -595,9 +1177,9 @@ public class BytecodeCompiler
     private Object expressionStmt (ExpressionStatementNode node) {
         run(node.expression);
         if (node.expression instanceof AssignmentNode)
-            pop(reactor.get(node.expression, "type"));
+            pop(node.expression.type());
         else if (node.expression instanceof FunCallNode) {
-            Type type = reactor.get(node.expression, "type");
+            Type type = node.expression.type();
             if (!(type instanceof VoidType)) pop(type);
         }
         return null;
@@ -606,6 +1188,9 @@ public class BytecodeCompiler
     // ---------------------------------------------------------------------------------------------
 
     private Object returnStmt (ReturnNode node) {
+        if (inlineEnd != null)
+            return inlinedReturn(node);
+
         if (node.expression == null) {
             if (topLevel) {
                 loadConstant(method, null);
@@ -616,16 +1201,15 @@ public class BytecodeCompiler
             return null;
         }
 
+        if (reactor.get(node, "tailCall")) {
+            selfTailCall((FunCallNode) node.expression);
+            return null;
+        }
+
         run(node.expression);
 
         if (topLevel) {
-            Type type = reactor.get(node.expression, "type");
-            if (type instanceof IntType)
-                invokeStatic(method, Long.class, "valueOf", long.class);
-            else if (type instanceof FloatType)
-                invokeStatic(method, Double.class, "valueOf", double.class);
-            else if (type instanceof BoolType)
-                invokeStatic(method, Boolean.class, "valueOf", boolean.class);
+            box(node.expression.type());
             method.visitInsn(ARETURN);
         } else {
             method.visitInsn(nodeAsmType(node.expression).getOpcode(IRETURN));
@@ -636,6 +1220,43 @@ public class BytecodeCompiler
 
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * Emits a return statement of a function body being inlined, see {@link #inlineCall}.
+     */
+    private Object inlinedReturn (ReturnNode node)
+    {
+        if (node.expression != null) {
+            run(node.expression);
+            implicitConversion(inlineType, node.expression.type());
+            method.visitVarInsn(asmType(inlineType).getOpcode(ISTORE), inlineResult);
+        }
+        method.visitJumpInsn(GOTO, inlineEnd);
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Emits a self-recursive tail call as a jump to the start of the current method: the
+     * arguments are evaluated on the stack, then stored into the parameter variables (in reverse
+     * order, as they are popped from the stack).
+     */
+    private void selfTailCall (FunCallNode call)
+    {
+        FunType funType = reactor.get(call.function, "type");
+        runArguments(funType, call.arguments);
+
+        // captured variables are left untouched
+        for (int i = function.parameters.size() - 1; i >= 0; --i) {
+            ParameterNode param = function.parameters.get(i);
+            method.visitVarInsn(nodeAsmType(param).getOpcode(ISTORE), parameterIndices[i]);
+        }
+
+        method.visitJumpInsn(GOTO, functionStart);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     private Object block (BlockNode node) {
         node.statements.forEach(this::run);
         return null;
@@ -645,6 +1266,16 @@ public class BytecodeCompiler
 
     private Object ifStmt (IfNode node)
     {
+        Object condition = constants.value(node.condition);
+        if (condition != null) {
+            // only emit the taken branch
+            if ((Boolean) condition)
+                run(node.trueStatement);
+            else if (node.falseStatement != null)
+                run(node.falseStatement);
+            return null;
+        }
+
         Label elseLabel = new Label();
         Label endLabel = new Label();
         boolean hasElse = node.falseStatement != null;
@@ -679,11 +1310,14 @@ public class BytecodeCompiler
 
     private Object reference (ReferenceNode node)
     {
-        DeclarationNode decl = reactor.get(node, "decl");
+        DeclarationNode decl = node.decl();
 
-        // TODO distinguish local variables from closures
         if (decl instanceof VarDeclarationNode || decl instanceof ParameterNode) {
-            method.visitVarInsn(nodeAsmType(node).getOpcode(ILOAD), varIndex(node));
+            loadVariable(decl);
+            if (closures.isBoxed(decl)) {
+                method.visitInsn(ICONST_0);
+                method.visitInsn(nodeAsmType(node).getOpcode(IALOAD));
+            }
         }
         else if (decl instanceof StructDeclarationNode) {
             // NOTE: This is not used when the reference is part of a constructor call, the
@@ -694,12 +1328,11 @@ public class BytecodeCompiler
         else if (decl instanceof FunDeclarationNode) {
             // NOTE: This is not used when the reference is part of a function call, the resolution
             // is handled in #funCall.
-
-            // TODO proper handling/representation of function object
-            //  For now I use a method handle. There is no way to use it in the language however.
+            FunDeclarationNode fun = (FunDeclarationNode) decl;
             method.visitLdcInsn(new Handle(
-                H_INVOKESTATIC, containerName, decl.name(),
-                methodDescriptor(reactor.get(decl, "type")), false));
+                H_INVOKESTATIC, containerName, closures.methodName(fun), liftedDescriptor(fun),
+                false));
+            bindFreeVariables(fun);
         }
         else if (decl instanceof SyntheticDeclarationNode) {
             switch (decl.name()) {
@@ -722,7 +1355,6 @@ public class BytecodeCompiler
                     method.visitLdcInsn(org.objectweb.asm.Type.getType(Class.class));
                     break;
                 case "print":
-                    // TODO cf FunDeclarationNode case above
                     method.visitLdcInsn(staticHandle(SighRuntime.class, "print", String.class));
                     break;
                 case "true":  loadConstant(method, 1);      break;
@@ -739,11 +1371,26 @@ public class BytecodeCompiler
 
     private Object varDecl (VarDeclarationNode node)
     {
-        org.objectweb.asm.Type type = nodeAsmType(node);
-        int index = registerVariable(node, type);
-        run(node.initializer);
-        implicitConversion(node, node.initializer);
-        method.visitVarInsn(type.getOpcode(ISTORE), index);
+        if (scalarReplacement && escapes.isScalarReplaced(node) && !frameVariables.contains(node))
+            return scalarReplacedDecl(node);
+
+        // captured variables are registered by #declareCapturedVariables
+        if (!closures.isCaptured(node) && !frameVariables.contains(node))
+            registerVariable(node, variableAsmType(node));
+
+        if (closures.isBoxed(node)) {
+            newCell(node);
+            method.visitInsn(DUP);
+            method.visitInsn(ICONST_0);
+            run(node.initializer);
+            implicitConversion(node, node.initializer);
+            method.visitInsn(nodeAsmType(node).getOpcode(IASTORE));
+        } else {
+            run(node.initializer);
+            implicitConversion(node, node.initializer);
+        }
+
+        storeVariable(node);
         // LATER: method.visitLocalVariable for debug information
         // https://stackoverflow.com/questions/28633731
         return null;
@@ -751,6 +1398,52 @@ public class BytecodeCompiler
 
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * Declares a variable holding a struct that does not escape: the constructor arguments are
+     * stored in one variable per field instead of allocating the struct.
+     */
+    private Object scalarReplacedDecl (VarDeclarationNode node)
+    {
+        FunCallNode call = (FunCallNode) node.initializer;
+        FunType funType = reactor.get(call.function, "type");
+        StructDeclarationNode struct = ((StructType) reactor.get(node, "type")).node;
+
+        int[] indices = new int[struct.fields.size()];
+        for (int i = 0; i < indices.length; ++i) {
+            org.objectweb.asm.Type type = nodeAsmType(struct.fields.get(i));
+            indices[i] = variableCounter;
+            variableCounter += type.getSize();
+            method.declareLocal(indices[i], type);
+        }
+        fieldVariables.put(node, indices);
+
+        // evaluate all arguments before storing any field, as a constructor call would
+        runArguments(funType, call.arguments);
+        for (int i = indices.length - 1; i >= 0; --i)
+            method.visitVarInsn(nodeAsmType(struct.fields.get(i)).getOpcode(ISTORE), indices[i]);
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * If the given field access is on a variable holding a scalar-replaced struct, returns the
+     * index of the variable holding the field, otherwise returns -1.
+     */
+    private int fieldVariable (FieldAccessNode node)
+    {
+        if (!(node.stem instanceof ReferenceNode)) return -1;
+        int[] indices = fieldVariables.get(((ReferenceNode) node.stem).decl());
+        if (indices == null) return -1;
+        StructDeclarationNode struct = ((StructType) node.stem.type()).node;
+        for (int i = 0; i < indices.length; ++i)
+            if (struct.fields.get(i).name.equals(node.fieldName))
+                return indices[i];
+        throw new Error("should not reach here");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     private Object parameter (ParameterNode node) {
         registerVariable(node);
         return null;
@@ -760,12 +1453,21 @@ public class BytecodeCompiler
 
     public Object assignment (AssignmentNode node)
     {
-        if (node.left instanceof ReferenceNode) {
+        if (node.left instanceof ReferenceNode && closures.isBoxed(((ReferenceNode) node.left).decl())) {
+            ReferenceNode left = (ReferenceNode) node.left;
+            loadVariable(left.decl());
+            method.visitInsn(ICONST_0);
+            run(node.right);
+            Type type = implicitConversion(node, node.right);
+            dup_x2(type);
+            method.visitInsn(nodeAsmType(node).getOpcode(IASTORE));
+        }
+        else if (node.left instanceof ReferenceNode) {
             ReferenceNode left = (ReferenceNode) node.left;
             run(node.right);
             Type type = implicitConversion(node, node.right);
             dup(type);
-            method.visitVarInsn(nodeAsmType(node).getOpcode(ISTORE), varIndex(left));
+            storeVariable(left.decl());
         }
         else if (node.left instanceof ArrayAccessNode) {
             ArrayAccessNode left = (ArrayAccessNode) node.left;
@@ -777,6 +1479,13 @@ public class BytecodeCompiler
             dup_x2(type);
             method.visitInsn(nodeAsmType(node).getOpcode(IASTORE));
         }
+        else if (node.left instanceof FieldAccessNode && fieldVariable((FieldAccessNode) node.left) >= 0) {
+            run(node.right);
+            Type type = implicitConversion(node, node.right);
+            dup(type);
+            method.visitVarInsn(nodeAsmType(node).getOpcode(ISTORE),
+                fieldVariable((FieldAccessNode) node.left));
+        }
         else if (node.left instanceof FieldAccessNode) {
             FieldAccessNode left = (FieldAccessNode) node.left;
             run(left.stem);
@@ -793,10 +1502,20 @@ public class BytecodeCompiler
 
     // ---------------------------------------------------------------------------------------------
 
-    private Object structDecl (StructDeclarationNode node)
+    private Object structDecl (StructDeclarationNode node) {
+        // compiled in its own context, see #compile
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Compiles the class representing the given struct.
+     */
+    private GeneratedClass structClass (StructDeclarationNode node)
     {
         String binaryName = node.name;
-        struct = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
+        struct = new ClassWriter(0);
         struct.visit(V1_8, ACC_PUBLIC, binaryName, null, "java/lang/Object", null);
         node.fields.forEach(this::run);
 
@@ -804,7 +1523,7 @@ public class BytecodeCompiler
         Type[] paramTypes =
             node.fields.stream().map(f -> (Type) reactor.get(f, "type")).toArray(Type[]::new);
         String descriptor = methodDescriptor(VoidType.INSTANCE, paramTypes);
-        MethodVisitor init = struct.visitMethod(ACC_PUBLIC, "<init>", descriptor, null, null);
+        MethodVisitor init = visitMethod(struct, binaryName, ACC_PUBLIC, "<init>", descriptor);
         init.visitCode();
         init.visitVarInsn(ALOAD, 0); // this
         init.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
@@ -821,9 +1540,7 @@ public class BytecodeCompiler
         init.visitEnd();
 
         struct.visitEnd();
-        structs.add(new Pair<>(binaryName, struct));
-        struct = null;
-        return null;
+        return new GeneratedClass(binaryName, struct.toByteArray());
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -836,17 +1553,37 @@ public class BytecodeCompiler
 
     // ---------------------------------------------------------------------------------------------
 
-    private Object fieldAccess (FieldAccessNode node) {
+    private Object fieldAccess (FieldAccessNode node)
+    {
+        int fieldVariable = fieldVariable(node);
+        if (fieldVariable >= 0) {
+            method.visitVarInsn(nodeAsmType(node).getOpcode(ILOAD), fieldVariable);
+            return null;
+        }
+
         run(node.stem);
-        String binaryName = asmType(reactor.get(node.stem, "type")).getClassName();
+        if (node.stem.type() instanceof ArrayType) {
+            assert node.fieldName.equals("length"); // the only field of arrays
+            method.visitInsn(ARRAYLENGTH);
+            method.visitInsn(I2L);
+            return null;
+        }
+        String binaryName = asmType(node.stem.type()).getClassName();
         method.visitFieldInsn(GETFIELD, binaryName, node.fieldName, nodeFieldDescriptor(node));
         return null;
     }
 
     // ---------------------------------------------------------------------------------------------
 
-    private Constructor constructor (ConstructorNode node) {
-        // not needed - handled in funCall instead
+    private Object constructor (ConstructorNode node)
+    {
+        // NOTE: This is not used when the constructor is called directly, the resolution is
+        // handled in #funCall.
+        StructDeclarationNode decl = reactor.get(node.ref, "decl");
+        FunType funType = reactor.get(node, "type");
+        method.visitLdcInsn(new Handle(
+            H_NEWINVOKESPECIAL, structBinaryName(reactor.get(decl, "declared")), "<init>",
+            methodDescriptor(VoidType.INSTANCE, funType.paramTypes), false));
         return null;
     }
 
@@ -854,6 +1591,30 @@ public class BytecodeCompiler
     // region [Utilities]
     // =============================================================================================
 
+    /**
+     * Starts a method in the given class (whose slash-separated binary name is {@code owner}),
+     * returning a visitor that computes its frames and maximum stack size and locals.
+     */
+    private static FrameTracker visitMethod (
+            ClassWriter writer, String owner, int access, String name, String descriptor) {
+        MethodVisitor visitor = writer.visitMethod(access, name, descriptor, null, null);
+        return new FrameTracker(visitor, owner, access, name, descriptor);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Starts a method of the container class, to be added to the class once complete. The
+     * method visitor for the method is assigned to {@link #method}.
+     */
+    private MethodNode startMethod (int access, String name, String descriptor) {
+        MethodNode node = new MethodNode(ASM5, access, name, descriptor, null, null);
+        method = new FrameTracker(node, containerName, access, name, descriptor);
+        return node;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     /**
      * Returns the {@link org.objectweb.asm.Type ASM Type} for the {@code type} attribute of the
      * given node.
@@ -892,16 +1653,188 @@ public class BytecodeCompiler
         int index = variableCounter;
         variableCounter += type.getSize();
         variables.put(new Pair<>(reactor.get(node, "scope"), node.name()), index);
+        method.declareLocal(index, type);
         return index;
     }
 
     // ---------------------------------------------------------------------------------------------
 
     /**
-     * Returns the variable index for the given reference, which must be a reference to a variable.
+     * Returns the variable index for the given variable declaration, which must have been
+     * registered in the current method.
+     */
+    private int variableIndex (DeclarationNode node) {
+        return variables.get(new Pair<>((Scope) reactor.get(node, "scope"), node.name()));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the ASM type of the JVM variable holding the given variable declaration: the type of
+     * the declaration, or an array of that type if the variable is boxed.
+     */
+    private org.objectweb.asm.Type variableAsmType (DeclarationNode node) {
+        return closures.isBoxed(node)
+            ? org.objectweb.asm.Type.getType("[" + nodeFieldDescriptor(node))
+            : nodeAsmType(node);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Loads the JVM variable (or frame field) holding the given variable declaration (the cell
+     * itself if the variable is boxed).
+     */
+    private void loadVariable (DeclarationNode node)
+    {
+        org.objectweb.asm.Type type = variableAsmType(node);
+        if (frameVariables.contains(node)) {
+            method.visitVarInsn(ALOAD, 0);
+            method.visitFieldInsn(GETFIELD, containerName, node.name(), type.getDescriptor());
+        } else
+            method.visitVarInsn(type.getOpcode(ILOAD), variableIndex(node));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Stores the value at the top of the stack into the JVM variable (or frame field) holding the
+     * given variable declaration (the cell itself if the variable is boxed).
+     */
+    private void storeVariable (DeclarationNode node)
+    {
+        org.objectweb.asm.Type type = variableAsmType(node);
+        if (frameVariables.contains(node)) {
+            // move the frame under the value
+            method.visitVarInsn(ALOAD, 0);
+            if (type.getSize() == 2) {
+                method.visitInsn(DUP_X2);
+                method.visitInsn(POP);
+            } else {
+                method.visitInsn(SWAP);
+            }
+            method.visitFieldInsn(PUTFIELD, containerName, node.name(), type.getDescriptor());
+        } else
+            method.visitVarInsn(type.getOpcode(ISTORE), variableIndex(node));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the descriptor of the method a function is lifted to: the descriptor for its type,
+     * with extra parameters for its free variables.
+     */
+    private String liftedDescriptor (FunDeclarationNode node)
+    {
+        String descriptor = methodDescriptor(reactor.get(node, "type"));
+        int end = descriptor.indexOf(')');
+        StringBuilder b = new StringBuilder(descriptor.substring(0, end));
+        for (DeclarationNode decl: closures.freeVariables(node))
+            b.append(variableAsmType(decl).getDescriptor());
+        return b.append(descriptor.substring(end)).toString();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Turns the method handle at the top of the stack, for the method the given function is
+     * lifted to, into a method handle of the function's type, by binding the extra parameters to
+     * the current values (or cells) of the free variables.
+     */
+    private void bindFreeVariables (FunDeclarationNode node)
+    {
+        List<DeclarationNode> free = closures.freeVariables(node);
+        if (free.isEmpty()) return;
+        loadConstant(method, node.parameters.size());
+        loadConstant(method, free.size());
+        method.visitTypeInsn(ANEWARRAY, "java/lang/Object");
+        for (int i = 0; i < free.size(); ++i) {
+            DeclarationNode decl = free.get(i);
+            method.visitInsn(DUP);
+            loadConstant(method, i);
+            loadVariable(decl);
+            if (!closures.isBoxed(decl)) box(reactor.get(decl, "type"));
+            method.visitInsn(AASTORE);
+        }
+        invokeStatic(method, MethodHandles.class, "insertArguments",
+            MethodHandle.class, int.class, Object[].class);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Moves the parameters of the given function that are boxed into fresh cells.
+     */
+    private void boxParameters (FunDeclarationNode node)
+    {
+        for (int i = 0; i < node.parameters.size(); ++i) {
+            ParameterNode param = node.parameters.get(i);
+            if (!closures.isBoxed(param)) continue;
+            newCell(param);
+            method.visitInsn(DUP);
+            method.visitInsn(ICONST_0);
+            method.visitVarInsn(nodeAsmType(param).getOpcode(ILOAD), parameterIndices[i]);
+            method.visitInsn(nodeAsmType(param).getOpcode(IASTORE));
+            method.visitVarInsn(ASTORE, registerVariable(param, variableAsmType(param)));
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Registers the captured variables declared directly in the given function (or the top-level
+     * code if null), and initializes them to a default value. This is required because a function
+     * capturing a variable can be called before the variable declaration is reached (functions can
+     * be used before their declaration).
+     */
+    private void declareCapturedVariables (FunDeclarationNode node)
+    {
+        for (DeclarationNode decl: closures.capturedVariables(node)) {
+            // frame fields are initialized to the same default values
+            if (frameVariables.contains(decl)) continue;
+            org.objectweb.asm.Type type = variableAsmType(decl);
+            switch (type.getSort()) {
+                case org.objectweb.asm.Type.LONG:    loadConstant(method, 0L); break;
+                case org.objectweb.asm.Type.DOUBLE:  loadConstant(method, 0d); break;
+                case org.objectweb.asm.Type.BOOLEAN: loadConstant(method, 0);  break;
+                default:                             loadConstant(method, null);
+            }
+            method.visitVarInsn(type.getOpcode(ISTORE), registerVariable(decl, type));
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Pushes a new cell (one-element array) for the given boxed variable declaration.
+     */
+    private void newCell (DeclarationNode node)
+    {
+        Type type = reactor.get(node, "type");
+        method.visitInsn(ICONST_1);
+        if (type instanceof IntType)
+            method.visitIntInsn(NEWARRAY, T_LONG);
+        else if (type instanceof FloatType)
+            method.visitIntInsn(NEWARRAY, T_DOUBLE);
+        else if (type instanceof BoolType)
+            method.visitIntInsn(NEWARRAY, T_BOOLEAN);
+        else
+            method.visitTypeInsn(ANEWARRAY, asmType(type).getInternalName());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Boxes the value at the top of the stack (of type {@code type}) if it has a primitive
+     * representation.
      */
-    private int varIndex (ReferenceNode node) {
-        return variables.get(new Pair<>((Scope) reactor.get(node, "scope"), node.name));
+    private void box (Type type) {
+        if (type instanceof IntType)
+            invokeStatic(method, Long.class, "valueOf", long.class);
+        else if (type instanceof FloatType)
+            invokeStatic(method, Double.class, "valueOf", double.class);
+        else if (type instanceof BoolType)
+            invokeStatic(method, Boolean.class, "valueOf", boolean.class);
     }
 
     // ---------------------------------------------------------------------------------------------
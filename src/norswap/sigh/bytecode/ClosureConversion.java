@@ -0,0 +1,276 @@
+package norswap.sigh.bytecode;
+
+import norswap.sigh.SemanticAnalysis;
+import norswap.sigh.ast.*;
+import norswap.uranium.Reactor;
+import norswap.utils.visitors.ReflectiveFieldWalker;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import static norswap.utils.visitors.WalkVisitType.POST_VISIT;
+import static norswap.utils.visitors.WalkVisitType.PRE_VISIT;
+
+/**
+ * A closure conversion pass, to be run after {@link SemanticAnalysis}, that enables the {@link
+ * BytecodeCompiler} to lift every function to a static method.
+ *
+ * <p>For each {@link FunDeclarationNode}, the pass computes its free variables: the variables
+ * ({@link VarDeclarationNode} and {@link ParameterNode}) declared outside of the function that
+ * the function uses, either directly or by calling (or otherwise referencing) a function that
+ * needs them. These variables are passed to the lifted method as extra parameters, after the
+ * regular ones.
+ *
+ * <p>Passing a copy of a variable is only correct if the variable is never assigned after its
+ * declaration. The variables that are captured by some function and also assigned are
+ * <i>boxed</i>: they are stored in a one-element array (a cell), and it is the cell that is
+ * passed to functions. Because cells never escape unless a function value is created, the JIT
+ * can usually scalar-replace them.
+ *
+ * <p>The entry point into this class is {@link #convert(Reactor, SighNode)}.
+ */
+public final class ClosureConversion
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private final Reactor reactor;
+
+    /** Maps variable declarations to their declaring function (absent for top-level variables). */
+    private final IdentityHashMap<DeclarationNode, FunDeclarationNode> owners =
+        new IdentityHashMap<>();
+
+    /** Variables declared by each function (or the top-level code, for the null key). */
+    private final IdentityHashMap<FunDeclarationNode, List<DeclarationNode>> declaredVariables =
+        new IdentityHashMap<>();
+
+    /** Variables declared elsewhere, directly referenced by each function (but not nested ones). */
+    private final IdentityHashMap<FunDeclarationNode, List<DeclarationNode>> usedVariables =
+        new IdentityHashMap<>();
+
+    /** Functions referenced by each function (but not by nested ones). */
+    private final IdentityHashMap<FunDeclarationNode, List<FunDeclarationNode>> usedFunctions =
+        new IdentityHashMap<>();
+
+    /** Variables that are assigned after their declaration. */
+    private final Set<DeclarationNode> assigned =
+        Collections.newSetFromMap(new IdentityHashMap<>());
+
+    /** Free variables of each function, in parameter order. */
+    private final IdentityHashMap<FunDeclarationNode, List<DeclarationNode>> freeVariables =
+        new IdentityHashMap<>();
+
+    /** Variables captured by some function and assigned. */
+    private final Set<DeclarationNode> boxed =
+        Collections.newSetFromMap(new IdentityHashMap<>());
+
+    /** Variables captured by some function. */
+    private final Set<DeclarationNode> captured =
+        Collections.newSetFromMap(new IdentityHashMap<>());
+
+    /** All functions, in declaration order (which keeps the computed orders deterministic). */
+    private final ArrayList<FunDeclarationNode> allFunctions = new ArrayList<>();
+
+    /** Names of the lifted methods. */
+    private final IdentityHashMap<FunDeclarationNode, String> methodNames = new IdentityHashMap<>();
+
+    /** Number of functions whose lifted method was given each name before disambiguation. */
+    private final HashMap<String, Integer> nameCounts = new HashMap<>();
+
+    /** Functions enclosing the node currently being walked, innermost first. */
+    private final ArrayDeque<FunDeclarationNode> functions = new ArrayDeque<>();
+
+    // ---------------------------------------------------------------------------------------------
+
+    private ClosureConversion (Reactor reactor) {
+        this.reactor = reactor;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Runs the closure conversion pass over the given tree, which must have been successfully
+     * analyzed using the given reactor.
+     */
+    public static ClosureConversion convert (Reactor reactor, SighNode root)
+    {
+        ReflectiveFieldWalker<SighNode> walker = new ReflectiveFieldWalker<>(
+            SighNode.class, PRE_VISIT, POST_VISIT);
+
+        ClosureConversion conversion = new ClosureConversion(reactor);
+
+        walker.register(FunDeclarationNode.class,   PRE_VISIT,  conversion::funDecl);
+        walker.register(VarDeclarationNode.class,   PRE_VISIT,  conversion::declare);
+        walker.register(ParameterNode.class,        PRE_VISIT,  conversion::declare);
+        walker.register(ReferenceNode.class,        PRE_VISIT,  conversion::reference);
+        walker.register(AssignmentNode.class,       PRE_VISIT,  conversion::assignment);
+
+        walker.register(FunDeclarationNode.class,   POST_VISIT, conversion::popFunction);
+
+        walker.registerFallback(PRE_VISIT,  node -> {});
+        walker.registerFallback(POST_VISIT, node -> {});
+
+        walker.walk(root);
+        conversion.computeFreeVariables();
+        return conversion;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the free variables of the given function, in the order in which they are passed to
+     * its lifted method.
+     */
+    public List<DeclarationNode> freeVariables (FunDeclarationNode node) {
+        return freeVariables.get(node);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether the given variable is captured by some function and assigned after its declaration,
+     * and must therefore be stored in a cell.
+     */
+    public boolean isBoxed (DeclarationNode node) {
+        return boxed.contains(node);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether the given variable is captured by some function.
+     */
+    public boolean isCaptured (DeclarationNode node) {
+        return captured.contains(node);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the variables (not parameters) declared by the given function (or the top-level
+     * code, if null) that are captured by some other function.
+     */
+    public List<DeclarationNode> capturedVariables (FunDeclarationNode node)
+    {
+        List<DeclarationNode> result = new ArrayList<>();
+        for (DeclarationNode decl: declaredVariables.getOrDefault(node, Collections.emptyList()))
+            if (captured.contains(decl)) result.add(decl);
+        return result;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the name of the method the given function is lifted to. Top-level functions keep
+     * their name, nested functions are prefixed by the name of the enclosing method and a dollar
+     * sign. Functions that would get the same name as a previous one (functions with the same name
+     * declared in different blocks) are suffixed by a dollar sign and a number (e.g. {@code g$1}),
+     * which cannot clash with identifiers.
+     */
+    public String methodName (FunDeclarationNode node) {
+        return methodNames.get(node);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void funDecl (FunDeclarationNode node)
+    {
+        FunDeclarationNode outer = functions.peek();
+        String name = outer == null ? node.name : methodNames.get(outer) + "$" + node.name;
+        int count = nameCounts.merge(name, 1, Integer::sum);
+        methodNames.put(node, count == 1 ? name : name + "$" + (count - 1));
+        usedVariables.put(node, new ArrayList<>());
+        usedFunctions.put(node, new ArrayList<>());
+        allFunctions.add(node);
+        functions.push(node);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void popFunction (FunDeclarationNode node) {
+        functions.pop();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void declare (DeclarationNode node)
+    {
+        FunDeclarationNode owner = functions.peek();
+        if (owner != null) owners.put(node, owner);
+        if (node instanceof VarDeclarationNode)
+            declaredVariables.computeIfAbsent(owner, k -> new ArrayList<>()).add(node);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void reference (ReferenceNode node)
+    {
+        FunDeclarationNode function = functions.peek();
+        if (function == null) return;
+        DeclarationNode decl = reactor.get(node, "decl");
+
+        if (decl instanceof FunDeclarationNode)
+            addNew(usedFunctions.get(function), (FunDeclarationNode) decl);
+        else if (isVariable(decl) && owners.get(decl) != function)
+            addNew(usedVariables.get(function), decl);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void assignment (AssignmentNode node) {
+        if (node.left instanceof ReferenceNode)
+            assigned.add(reactor.get(node.left, "decl"));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static boolean isVariable (DeclarationNode decl) {
+        return decl instanceof VarDeclarationNode || decl instanceof ParameterNode;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Adds the node to the list if not already present, returning true if it was added.
+     * (Nodes implement structural equality, but we need identity.)
+     */
+    private static <T extends SighNode> boolean addNew (List<T> list, T node) {
+        for (T it: list)
+            if (it == node) return false;
+        return list.add(node);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Computes the free variables of all functions as a fixpoint: a function needs the free
+     * variables of the functions it references, save for those it declares itself.
+     */
+    private void computeFreeVariables ()
+    {
+        for (FunDeclarationNode function: allFunctions)
+            freeVariables.put(function, new ArrayList<>(usedVariables.get(function)));
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (FunDeclarationNode function: allFunctions)
+                for (FunDeclarationNode callee: usedFunctions.get(function))
+                    for (DeclarationNode decl: freeVariables.get(callee))
+                        if (owners.get(decl) != function)
+                            changed |= addNew(freeVariables.get(function), decl);
+        }
+
+        for (FunDeclarationNode function: allFunctions) {
+            for (DeclarationNode decl: freeVariables.get(function)) {
+                captured.add(decl);
+                if (assigned.contains(decl)) boxed.add(decl);
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
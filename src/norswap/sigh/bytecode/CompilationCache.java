@@ -0,0 +1,182 @@
+package norswap.sigh.bytecode;
+
+import norswap.sigh.ast.SighNode;
+import norswap.uranium.Reactor;
+import norswap.utils.data.wrappers.Pair;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * A persistent cache of {@link CompilationResult}, stored in a local directory, that lets
+ * identical source units skip parsing, semantic analysis and compilation altogether.
+ *
+ * <p>Entries are keyed by a SHA-256 hash of the source text, the binary name of the main class
+ * (which is embedded in the bytecode), {@link BytecodeCompiler#VERSION} and the options of the
+ * compiler: whether it emits invokedynamic concatenations and whether it performs scalar
+ * replacement (see {@link BytecodeCompiler#BytecodeCompiler(Reactor, boolean, boolean)}).
+ * Each entry is a single file holding the bytes of all the generated classes, written to a
+ * temporary file then atomically renamed, so that concurrent JVMs sharing the directory never
+ * observe partial entries.
+ *
+ * <p>The cache is best effort: an entry that cannot be read is treated as a miss, and an entry
+ * that cannot be written is simply not cached.
+ */
+public final class CompilationCache
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /** Magic number at the start of every cache entry. */
+    private static final int MAGIC = 0x51C4CAC4;
+
+    /** Extension of cache entry files. */
+    private static final String EXTENSION = ".sighc";
+
+    // ---------------------------------------------------------------------------------------------
+
+    private final Path directory;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates a cache storing its entries in the given directory, which is created when the
+     * first entry is written.
+     */
+    public CompilationCache (Path directory) {
+        this.directory = directory;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the cached result for the given source unit compiled with the given options to a
+     * class with the given (dot-separated) binary name, or null if there is none.
+     */
+    public CompilationResult get (
+            String binaryName, String source, boolean indyConcat, boolean scalarReplacement)
+    {
+        Path path = entryPath(binaryName, source, indyConcat, scalarReplacement);
+        if (!Files.isRegularFile(path)) return null;
+
+        try (DataInputStream in =
+                 new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(path)))) {
+            if (in.readInt() != MAGIC) return null;
+            int count = in.readInt();
+            List<GeneratedClass> classes = new ArrayList<>(count);
+            for (int i = 0; i < count; ++i) {
+                String name = in.readUTF();
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                classes.add(new GeneratedClass(name, bytes));
+            }
+            List<GeneratedClass> structures = new ArrayList<>(classes.subList(1, count));
+            return new CompilationResult(classes.get(0), structures);
+        } catch (IOException | RuntimeException e) {
+            return null; // corrupted entry
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Stores the result of compiling the given source unit with the given options to a class with
+     * the given (dot-separated) binary name. Returns true if the entry could be written.
+     */
+    public boolean put (String binaryName, String source, boolean indyConcat,
+            boolean scalarReplacement, CompilationResult result)
+    {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(buffer)) {
+            out.writeInt(MAGIC);
+            out.writeInt(1 + result.structures.size());
+            write(out, result.mainClass);
+            for (GeneratedClass struct: result.structures)
+                write(out, struct);
+        } catch (IOException e) {
+            throw new Error("should not reach here", e); // in-memory stream
+        }
+
+        Path path = entryPath(binaryName, source, indyConcat, scalarReplacement);
+        Path temp = null;
+        try {
+            Files.createDirectories(directory);
+            temp = Files.createTempFile(directory, path.getFileName().toString(), ".tmp");
+            Files.write(temp, buffer.toByteArray());
+            Files.move(temp, path,
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            return true;
+        } catch (IOException e) {
+            try {
+                if (temp != null) Files.deleteIfExists(temp);
+            } catch (IOException ignored) {}
+            return false;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the cached result for the given source unit compiled with the given options if there
+     * is one. Otherwise, calls {@code analysis} to parse and analyze the source unit, compiles the
+     * resulting tree with these options, and caches the result.
+     */
+    public CompilationResult getOrCompile (String binaryName, String source, boolean indyConcat,
+            boolean scalarReplacement, Supplier<Pair<Reactor, SighNode>> analysis)
+    {
+        CompilationResult result = get(binaryName, source, indyConcat, scalarReplacement);
+        if (result == null) {
+            Pair<Reactor, SighNode> analyzed = analysis.get();
+            result = new BytecodeCompiler(analyzed.a, indyConcat, scalarReplacement)
+                .compile(binaryName, analyzed.b);
+            put(binaryName, source, indyConcat, scalarReplacement, result);
+        }
+        return result;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static void write (DataOutputStream out, GeneratedClass klass) throws IOException {
+        out.writeUTF(klass.slashBinaryName());
+        out.writeInt(klass.bytes().length);
+        out.write(klass.bytes());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the path of the cache entry for the given source unit, class name and options.
+     */
+    private Path entryPath (
+            String binaryName, String source, boolean indyConcat, boolean scalarReplacement)
+    {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new Error("should not reach here", e); // required on all platforms
+        }
+
+        String header = "sigh-" + BytecodeCompiler.VERSION
+            + "-" + indyConcat + "-" + scalarReplacement + "\0" + binaryName + "\0";
+        digest.update(header.getBytes(StandardCharsets.UTF_8));
+        digest.update(source.getBytes(StandardCharsets.UTF_8));
+
+        StringBuilder b = new StringBuilder();
+        for (byte x: digest.digest())
+            b.append(String.format("%02x", x));
+        return directory.resolve(b.append(EXTENSION).toString());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
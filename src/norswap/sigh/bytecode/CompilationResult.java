@@ -1,8 +1,19 @@
 package norswap.sigh.bytecode;
 
 import norswap.utils.exceptions.NoStackException;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.lang.reflect.InvocationTargetException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
 
 /**
  * Represents the result of compiling a single source unit (~ a source file, but it could
@@ -28,6 +39,14 @@ public final class CompilationResult
 
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * The classes of the Sigh runtime that the generated bytecode may reference.
+     */
+    public static final List<Class<?>> RUNTIME_CLASSES =
+        Collections.unmodifiableList(Arrays.asList(SighRuntime.class, Null.class));
+
+    // ---------------------------------------------------------------------------------------------
+
     public CompilationResult (GeneratedClass mainClass, List<GeneratedClass> structures) {
         this.mainClass = mainClass;
         this.structures = structures;
@@ -56,6 +75,55 @@ public final class CompilationResult
 
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * Writes the generated classes to a JAR file at the given path, alongside the runtime support
+     * classes they may reference ({@link #RUNTIME_CLASSES}). The JAR's manifest designates the
+     * main class as entry point, so that the program can be started with {@code java -jar}, without
+     * the compiler or its dependencies on the classpath.
+     */
+    public void writeJar (Path path) throws IOException
+    {
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, mainClass.binaryName());
+
+        try (JarOutputStream jar = new JarOutputStream(Files.newOutputStream(path), manifest)) {
+            writeEntry(jar, mainClass.slashBinaryName() + ".class", mainClass.bytes());
+            for (GeneratedClass struct: structures)
+                writeEntry(jar, struct.slashBinaryName() + ".class", struct.bytes());
+            for (Class<?> klass: RUNTIME_CLASSES) {
+                String name = klass.getName().replace('.', '/') + ".class";
+                writeEntry(jar, name, resourceBytes(klass, name));
+            }
+        }
+    }
+
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static void writeEntry (JarOutputStream jar, String name, byte[] bytes)
+            throws IOException {
+        jar.putNextEntry(new JarEntry(name));
+        jar.write(bytes);
+        jar.closeEntry();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static byte[] resourceBytes (Class<?> klass, String name) throws IOException
+    {
+        try (InputStream in = klass.getClassLoader().getResourceAsStream(name)) {
+            if (in == null) throw new IOException("class file not found: " + name);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            for (int n; (n = in.read(buffer)) > 0;)
+                out.write(buffer, 0, n);
+            return out.toByteArray();
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     /**
      * Call the {@code run} method of the given class, passing it the given arguments.
      *
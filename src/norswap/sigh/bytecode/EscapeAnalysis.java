@@ -0,0 +1,131 @@
+package norswap.sigh.bytecode;
+
+import norswap.sigh.SemanticAnalysis;
+import norswap.sigh.ast.*;
+import norswap.uranium.Reactor;
+import norswap.utils.visitors.ReflectiveFieldWalker;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import static norswap.utils.visitors.WalkVisitType.POST_VISIT;
+import static norswap.utils.visitors.WalkVisitType.PRE_VISIT;
+
+/**
+ * An escape analysis pass, to be run after {@link SemanticAnalysis} and {@link
+ * ClosureConversion}, that finds the struct allocations that the {@link BytecodeCompiler} can
+ * replace by one local variable per field (scalar replacement). The pass only runs if scalar
+ * replacement is enabled in the compiler, which it isn't by default.
+ *
+ * <p>The analysis is intra-procedural and conservative. It only considers variables whose
+ * initializer is a direct constructor call (e.g. {@code var p: Pair = $Pair(1, 2)}), and a
+ * variable's struct escapes unless all of the following hold:
+ * <ul>
+ *     <li>the variable is never assigned after its declaration;</li>
+ *     <li>the variable is not captured by any function;</li>
+ *     <li>every reference to the variable is the stem of a field access ({@code p.x}), either read
+ *     or assigned to.</li>
+ * </ul>
+ *
+ * <p>Under these conditions the struct object is never observable, so its identity does not
+ * matter and it can never be null.
+ *
+ * <p>The entry point into this class is {@link #analyze(Reactor, SighNode, ClosureConversion)}.
+ */
+public final class EscapeAnalysis
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private final Reactor reactor;
+    private final ClosureConversion closures;
+
+    /** Variables initialized by a constructor call. */
+    private final Set<DeclarationNode> candidates =
+        Collections.newSetFromMap(new IdentityHashMap<>());
+
+    /** Candidates whose struct escapes. */
+    private final Set<DeclarationNode> escaping =
+        Collections.newSetFromMap(new IdentityHashMap<>());
+
+    /** References that are the stem of a field access. */
+    private final Set<ReferenceNode> stems =
+        Collections.newSetFromMap(new IdentityHashMap<>());
+
+    // ---------------------------------------------------------------------------------------------
+
+    private EscapeAnalysis (Reactor reactor, ClosureConversion closures) {
+        this.reactor = reactor;
+        this.closures = closures;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Runs the escape analysis over the given tree, which must have been successfully analyzed
+     * using the given reactor, and converted by the given closure conversion.
+     */
+    public static EscapeAnalysis analyze (Reactor reactor, SighNode root, ClosureConversion closures)
+    {
+        ReflectiveFieldWalker<SighNode> walker = new ReflectiveFieldWalker<>(
+            SighNode.class, PRE_VISIT, POST_VISIT);
+
+        EscapeAnalysis analysis = new EscapeAnalysis(reactor, closures);
+
+        // Field accesses are visited before their stem, and declarations before their uses.
+        walker.register(VarDeclarationNode.class,   PRE_VISIT,  analysis::varDecl);
+        walker.register(FieldAccessNode.class,      PRE_VISIT,  analysis::fieldAccess);
+        walker.register(AssignmentNode.class,       PRE_VISIT,  analysis::assignment);
+        walker.register(ReferenceNode.class,        PRE_VISIT,  analysis::reference);
+
+        walker.registerFallback(PRE_VISIT,  node -> {});
+        walker.registerFallback(POST_VISIT, node -> {});
+
+        walker.walk(root);
+        return analysis;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether the given variable holds a struct that does not escape, and whose fields must
+     * therefore be stored in local variables. If so, its initializer is a {@link FunCallNode} whose
+     * function is a {@link ConstructorNode}.
+     */
+    public boolean isScalarReplaced (DeclarationNode node) {
+        return candidates.contains(node) && !escaping.contains(node);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void varDecl (VarDeclarationNode node)
+    {
+        if (node.initializer instanceof FunCallNode
+                && ((FunCallNode) node.initializer).function instanceof ConstructorNode
+                && !closures.isCaptured(node))
+            candidates.add(node);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void fieldAccess (FieldAccessNode node) {
+        if (node.stem instanceof ReferenceNode)
+            stems.add((ReferenceNode) node.stem);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void assignment (AssignmentNode node) {
+        if (node.left instanceof ReferenceNode)
+            escaping.add(reactor.get(node.left, "decl"));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void reference (ReferenceNode node) {
+        DeclarationNode decl = reactor.get(node, "decl");
+        if (candidates.contains(decl) && !stems.contains(node))
+            escaping.add(decl);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,673 @@
+package norswap.sigh.bytecode;
+
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * A method visitor that simulates the effect of the instructions it forwards on the types of the
+ * operand stack and local variables, in order to emit the stack map frames, maximum stack size
+ * and maximum number of locals itself. This lets the {@link BytecodeCompiler} use a {@link
+ * org.objectweb.asm.ClassWriter} without {@code COMPUTE_FRAMES} or {@code COMPUTE_MAXS}, which
+ * re-run a data-flow analysis over every method (and may load classes to compute common super
+ * classes).
+ *
+ * <p>The simulation is a single forward pass, which is sufficient because the compiler only emits
+ * structured control flow: every label is either the target of forward jumps only, or reached by
+ * falling through before any backward jump to it (loop heads and the start of methods). The frame
+ * of a label merges the states of all forward jumps to it (and of the preceding instruction if it
+ * can fall through); local variables with different types are merged to {@code TOP}. The operand
+ * stack is assumed to be identical on all paths.
+ *
+ * <p>For this to work with backward jumps, local variables must always be given the same type, so
+ * the compiler declares their type with {@link #declareLocal}. Storing a value to a declared local
+ * (e.g. {@code null}) gives it its declared type rather than the type of the value.
+ *
+ * <p>Instructions that cannot be reached (e.g. following a {@code return}) are not forwarded.
+ */
+final class FrameTracker extends MethodVisitor
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /** Types of the local variables, in frame format (longs and doubles use two slots). */
+    private ArrayList<Object> locals = new ArrayList<>();
+
+    /** Types of the operand stack values, in frame format (longs and doubles use two slots). */
+    private ArrayList<Object> stack = new ArrayList<>();
+
+    /** Declared types of local variables. */
+    private final HashMap<Integer, Object> declared = new HashMap<>();
+
+    /** States at the forward jumps to each label that has not been visited yet. */
+    private final IdentityHashMap<Label, State> incoming = new IdentityHashMap<>();
+
+    /** Labels visited so far. */
+    private final Set<Label> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    /** Whether the next instruction can be reached. */
+    private boolean reachable = true;
+
+    /** Whether a frame must be emitted before the next instruction. */
+    private boolean pendingFrame = false;
+
+    /** Slash-separated binary name of the class declaring the method. */
+    private final String owner;
+
+    private int maxStack = 0;
+    private int maxLocals = 0;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates a visitor that forwards to {@code mv}, which must be the visitor for a method of the
+     * class {@code owner} (slash-separated binary name), with the given access flags, name and
+     * descriptor.
+     */
+    FrameTracker (MethodVisitor mv, String owner, int access, String name, String descriptor)
+    {
+        super(ASM5, mv);
+        this.owner = owner;
+
+        if ((access & ACC_STATIC) == 0)
+            locals.add(name.equals("<init>") ? UNINITIALIZED_THIS : owner);
+        int index = locals.size();
+        for (Type type: Type.getArgumentTypes(descriptor)) {
+            declareLocal(index, type);
+            setLocal(index, frameType(type));
+            index += type.getSize();
+        }
+        maxLocals = locals.size();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Declares the type of the local variable with the given index.
+     */
+    void declareLocal (int index, Type type) {
+        declared.put(index, frameType(type));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the number of slots on the operand stack before the next instruction.
+     */
+    int stackHeight () {
+        return stack.size();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** A snapshot of the types of the locals and operand stack. */
+    private static final class State
+    {
+        final ArrayList<Object> locals;
+        final ArrayList<Object> stack;
+
+        State (List<Object> locals, List<Object> stack) {
+            this.locals = new ArrayList<>(locals);
+            this.stack = new ArrayList<>(stack);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the frame type of the values of the given type, or null for void.
+     */
+    private static Object frameType (Type type)
+    {
+        switch (type.getSort()) {
+            case Type.BOOLEAN:
+            case Type.CHAR:
+            case Type.BYTE:
+            case Type.SHORT:
+            case Type.INT:      return INTEGER;
+            case Type.FLOAT:    return FLOAT;
+            case Type.LONG:     return LONG;
+            case Type.DOUBLE:   return DOUBLE;
+            case Type.VOID:     return null;
+            default:            return type.getInternalName(); // descriptor for arrays
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static boolean isWide (Object frameType) {
+        return frameType == LONG || frameType == DOUBLE;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void push (Object frameType)
+    {
+        if (frameType == null) return; // void
+        stack.add(frameType);
+        if (isWide(frameType)) stack.add(TOP);
+        maxStack = Math.max(maxStack, stack.size());
+    }
+
+    private void push (Type type) {
+        push(frameType(type));
+    }
+
+    private Object pop () {
+        return stack.remove(stack.size() - 1);
+    }
+
+    private void pop (int slots) {
+        for (int i = 0; i < slots; ++i) pop();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Copies the {@code n} top slots of the stack under the {@code depth} slots below them.
+     */
+    private void dup (int n, int depth)
+    {
+        int top = stack.size();
+        List<Object> copied = new ArrayList<>(stack.subList(top - n, top));
+        stack.addAll(top - n - depth, copied);
+        maxStack = Math.max(maxStack, stack.size());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void setLocal (int index, Object frameType)
+    {
+        Object type = declared.getOrDefault(index, frameType);
+        int size = isWide(type) ? 2 : 1;
+        while (locals.size() < index + size)
+            locals.add(null);
+        // a long or double whose second slot is overwritten becomes invalid
+        if (index > 0 && isWide(locals.get(index - 1)))
+            locals.set(index - 1, TOP);
+        locals.set(index, type);
+        if (size == 2) locals.set(index + 1, TOP);
+        maxLocals = Math.max(maxLocals, locals.size());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Called before forwarding an instruction. Returns false if the instruction cannot be reached
+     * (and must therefore be dropped), otherwise emits the pending frame if any and returns true.
+     */
+    private boolean startInstruction ()
+    {
+        if (!reachable) return false;
+        if (pendingFrame) {
+            pendingFrame = false;
+            List<Object> frameLocals = compress(locals);
+            List<Object> frameStack = compress(stack);
+            super.visitFrame(F_NEW,
+                frameLocals.size(), frameLocals.toArray(),
+                frameStack.size(), frameStack.toArray());
+        }
+        return true;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Converts a list of types where long and doubles use two slots to the frame format (where
+     * they use a single entry), replacing unset locals by {@code TOP} and dropping trailing
+     * {@code TOP} entries.
+     */
+    private static List<Object> compress (List<Object> types)
+    {
+        List<Object> result = new ArrayList<>();
+        int end = types.size();
+        while (end > 0 && (types.get(end - 1) == null || types.get(end - 1) == TOP))
+            --end;
+        for (int i = 0; i < end; ++i) {
+            Object type = types.get(i);
+            result.add(type == null ? TOP : type);
+            if (isWide(type)) ++i;
+        }
+        return result;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Merges the current state into the state recorded for the given label.
+     */
+    private void recordJump (Label label)
+    {
+        State state = incoming.get(label);
+        incoming.put(label, state == null
+            ? new State(locals, stack)
+            : merge(state, locals, stack));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static State merge (State state, List<Object> locals, List<Object> stack)
+    {
+        if (state.stack.size() != stack.size())
+            throw new Error("inconsistent stack heights at jump target");
+
+        ArrayList<Object> mergedLocals = new ArrayList<>();
+        int size = Math.min(state.locals.size(), locals.size());
+        for (int i = 0; i < size; ++i)
+            mergedLocals.add(merge(state.locals.get(i), locals.get(i)));
+
+        ArrayList<Object> mergedStack = new ArrayList<>();
+        for (int i = 0; i < stack.size(); ++i) {
+            Object type = merge(state.stack.get(i), stack.get(i));
+            if (type == TOP && state.stack.get(i) != TOP)
+                throw new Error("inconsistent stack types at jump target");
+            mergedStack.add(type);
+        }
+
+        return new State(mergedLocals, mergedStack);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static Object merge (Object a, Object b)
+    {
+        if (a == null || b == null) return null;
+        if (a.equals(b)) return a;
+        // null is assignable to all reference types
+        if (a == NULL && b instanceof String) return b;
+        if (b == NULL && a instanceof String) return a;
+        return TOP;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public void visitLabel (Label label)
+    {
+        State state = incoming.remove(label);
+        if (state != null && reachable)
+            state = merge(state, locals, stack);
+        else if (state == null && reachable)
+            state = new State(locals, stack);
+
+        if (state != null) {
+            locals = state.locals;
+            stack = state.stack;
+            reachable = true;
+            // the label may be the target of a later backward jump
+            pendingFrame = true;
+        }
+        visited.add(label);
+        super.visitLabel(label);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public void visitFrame (
+            int type, int nLocal, Object[] local, int nStack, Object[] stack) {
+        throw new UnsupportedOperationException("frames are computed by " + getClass().getName());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public void visitInsn (int opcode)
+    {
+        if (!startInstruction()) return;
+        super.visitInsn(opcode);
+
+        switch (opcode) {
+            case NOP:
+                break;
+            case ACONST_NULL:
+                push(NULL); break;
+            case ICONST_M1: case ICONST_0: case ICONST_1: case ICONST_2:
+            case ICONST_3: case ICONST_4: case ICONST_5:
+                push(INTEGER); break;
+            case LCONST_0: case LCONST_1:
+                push(LONG); break;
+            case FCONST_0: case FCONST_1: case FCONST_2:
+                push(FLOAT); break;
+            case DCONST_0: case DCONST_1:
+                push(DOUBLE); break;
+
+            case IALOAD: case BALOAD: case CALOAD: case SALOAD:
+                pop(2); push(INTEGER); break;
+            case LALOAD:
+                pop(2); push(LONG); break;
+            case FALOAD:
+                pop(2); push(FLOAT); break;
+            case DALOAD:
+                pop(2); push(DOUBLE); break;
+            case AALOAD: {
+                pop();
+                Object array = pop();
+                push(array == NULL
+                    ? NULL
+                    : frameType(Type.getType(((String) array).substring(1))));
+                break;
+            }
+            case IASTORE: case BASTORE: case CASTORE: case SASTORE: case FASTORE: case AASTORE:
+                pop(3); break;
+            case LASTORE: case DASTORE:
+                pop(4); break;
+
+            case POP:       pop(1); break;
+            case POP2:      pop(2); break;
+            case DUP:       dup(1, 0); break;
+            case DUP_X1:    dup(1, 1); break;
+            case DUP_X2:    dup(1, 2); break;
+            case DUP2:      dup(2, 0); break;
+            case DUP2_X1:   dup(2, 1); break;
+            case DUP2_X2:   dup(2, 2); break;
+            case SWAP: {
+                Object top = pop(), below = pop();
+                push(top); push(below);
+                break;
+            }
+
+            case IADD: case ISUB: case IMUL: case IDIV: case IREM:
+            case ISHL: case ISHR: case IUSHR: case IAND: case IOR: case IXOR:
+            case L2I: case D2I: case LCMP: case DCMPL: case DCMPG:
+            case FCMPL: case FCMPG: case F2I: case INEG: case I2B: case I2C: case I2S:
+            case ARRAYLENGTH:
+                pop(operandSlots(opcode)); push(INTEGER); break;
+            case LADD: case LSUB: case LMUL: case LDIV: case LREM:
+            case LSHL: case LSHR: case LUSHR: case LAND: case LOR: case LXOR:
+            case I2L: case F2L: case D2L: case LNEG:
+                pop(operandSlots(opcode)); push(LONG); break;
+            case FADD: case FSUB: case FMUL: case FDIV: case FREM:
+            case I2F: case L2F: case D2F: case FNEG:
+                pop(operandSlots(opcode)); push(FLOAT); break;
+            case DADD: case DSUB: case DMUL: case DDIV: case DREM:
+            case I2D: case L2D: case F2D: case DNEG:
+                pop(operandSlots(opcode)); push(DOUBLE); break;
+
+            case IRETURN: case LRETURN: case FRETURN: case DRETURN: case ARETURN: case RETURN:
+            case ATHROW:
+                stack.clear();
+                reachable = false;
+                break;
+
+            case MONITORENTER: case MONITOREXIT:
+                pop(1); break;
+
+            default:
+                throw new Error("unsupported opcode: " + opcode);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the number of stack slots consumed by the given arithmetic, conversion or comparison
+     * instruction.
+     */
+    private static int operandSlots (int opcode)
+    {
+        switch (opcode) {
+            case INEG: case FNEG: case I2L: case I2F: case I2D: case F2I: case F2L: case F2D:
+            case I2B: case I2C: case I2S: case ARRAYLENGTH:
+                return 1;
+            case LNEG: case DNEG: case L2I: case L2F: case L2D: case D2I: case D2L: case D2F:
+            case IADD: case ISUB: case IMUL: case IDIV: case IREM: case ISHL: case ISHR:
+            case IUSHR: case IAND: case IOR: case IXOR: case FADD: case FSUB: case FMUL:
+            case FDIV: case FREM: case FCMPL: case FCMPG:
+                return 2;
+            case LSHL: case LSHR: case LUSHR:
+                return 3;
+            default: // long and double binary operations
+                return 4;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public void visitIntInsn (int opcode, int operand)
+    {
+        if (!startInstruction()) return;
+        super.visitIntInsn(opcode, operand);
+
+        switch (opcode) {
+            case BIPUSH: case SIPUSH:
+                push(INTEGER);
+                break;
+            case NEWARRAY:
+                pop(1);
+                switch (operand) {
+                    case T_BOOLEAN: push("[Z"); break;
+                    case T_CHAR:    push("[C"); break;
+                    case T_BYTE:    push("[B"); break;
+                    case T_SHORT:   push("[S"); break;
+                    case T_INT:     push("[I"); break;
+                    case T_FLOAT:   push("[F"); break;
+                    case T_LONG:    push("[J"); break;
+                    case T_DOUBLE:  push("[D"); break;
+                    default: throw new Error("unsupported array type: " + operand);
+                }
+                break;
+            default:
+                throw new Error("unsupported opcode: " + opcode);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public void visitVarInsn (int opcode, int var)
+    {
+        if (!startInstruction()) return;
+        super.visitVarInsn(opcode, var);
+
+        switch (opcode) {
+            case ILOAD: push(INTEGER); break;
+            case LLOAD: push(LONG);    break;
+            case FLOAD: push(FLOAT);   break;
+            case DLOAD: push(DOUBLE);  break;
+            case ALOAD: push(locals.get(var)); break;
+            case ISTORE: case FSTORE: case ASTORE:
+                setLocal(var, pop());
+                break;
+            case LSTORE: case DSTORE:
+                pop();
+                setLocal(var, pop());
+                break;
+            default:
+                throw new Error("unsupported opcode: " + opcode);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public void visitIincInsn (int var, int increment) {
+        if (!startInstruction()) return;
+        super.visitIincInsn(var, increment);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public void visitTypeInsn (int opcode, String type)
+    {
+        if (!startInstruction()) return;
+
+        if (opcode == NEW) {
+            // uninitialized values are identified by the label of the NEW instruction
+            Label label = new Label();
+            super.visitLabel(label);
+            super.visitTypeInsn(opcode, type);
+            push(label);
+            return;
+        }
+
+        super.visitTypeInsn(opcode, type);
+
+        switch (opcode) {
+            case ANEWARRAY:
+                pop(1);
+                push(type.startsWith("[") ? "[" + type : "[L" + type + ";");
+                break;
+            case CHECKCAST:
+                pop(1);
+                push(type);
+                break;
+            case INSTANCEOF:
+                pop(1);
+                push(INTEGER);
+                break;
+            default:
+                throw new Error("unsupported opcode: " + opcode);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public void visitFieldInsn (int opcode, String owner, String name, String descriptor)
+    {
+        if (!startInstruction()) return;
+        super.visitFieldInsn(opcode, owner, name, descriptor);
+        Type type = Type.getType(descriptor);
+
+        switch (opcode) {
+            case GETSTATIC:                                     push(type); break;
+            case PUTSTATIC: pop(type.getSize());                            break;
+            case GETFIELD:  pop(1);                             push(type); break;
+            case PUTFIELD:  pop(type.getSize() + 1);                        break;
+            default:
+                throw new Error("unsupported opcode: " + opcode);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public void visitMethodInsn (
+            int opcode, String owner, String name, String descriptor, boolean isInterface)
+    {
+        if (!startInstruction()) return;
+        super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+
+        popArguments(descriptor);
+        if (opcode != INVOKESTATIC) {
+            Object receiver = pop();
+            if (name.equals("<init>"))
+                initialize(receiver, receiver == UNINITIALIZED_THIS ? this.owner : owner);
+        }
+        push(Type.getReturnType(descriptor));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public void visitInvokeDynamicInsn (
+            String name, String descriptor, Handle bootstrap, Object... bootstrapArguments)
+    {
+        if (!startInstruction()) return;
+        super.visitInvokeDynamicInsn(name, descriptor, bootstrap, bootstrapArguments);
+        popArguments(descriptor);
+        push(Type.getReturnType(descriptor));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void popArguments (String descriptor) {
+        for (Type type: Type.getArgumentTypes(descriptor))
+            pop(type.getSize());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Replaces all occurrences of the given uninitialized value by the given (slash-separated)
+     * class name, after a constructor call.
+     */
+    private void initialize (Object uninitialized, String type)
+    {
+        for (int i = 0; i < stack.size(); ++i)
+            if (stack.get(i) == uninitialized) stack.set(i, type);
+        for (int i = 0; i < locals.size(); ++i)
+            if (locals.get(i) == uninitialized) locals.set(i, type);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public void visitJumpInsn (int opcode, Label label)
+    {
+        if (!startInstruction()) return;
+        super.visitJumpInsn(opcode, label);
+
+        switch (opcode) {
+            case IFEQ: case IFNE: case IFLT: case IFGE: case IFGT: case IFLE:
+            case IFNULL: case IFNONNULL:
+                pop(1); break;
+            case IF_ICMPEQ: case IF_ICMPNE: case IF_ICMPLT: case IF_ICMPGE:
+            case IF_ICMPGT: case IF_ICMPLE: case IF_ACMPEQ: case IF_ACMPNE:
+                pop(2); break;
+            case GOTO:
+                break;
+            default:
+                throw new Error("unsupported opcode: " + opcode);
+        }
+
+        // backward jumps target labels that already have a frame
+        if (!visited.contains(label))
+            recordJump(label);
+        if (opcode == GOTO)
+            reachable = false;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public void visitLdcInsn (Object value)
+    {
+        if (!startInstruction()) return;
+        super.visitLdcInsn(value);
+
+        if (value instanceof Integer)
+            push(INTEGER);
+        else if (value instanceof Float)
+            push(FLOAT);
+        else if (value instanceof Long)
+            push(LONG);
+        else if (value instanceof Double)
+            push(DOUBLE);
+        else if (value instanceof String)
+            push("java/lang/String");
+        else if (value instanceof Handle)
+            push("java/lang/invoke/MethodHandle");
+        else if (value instanceof Type)
+            push(((Type) value).getSort() == Type.METHOD
+                ? "java/lang/invoke/MethodType"
+                : "java/lang/Class");
+        else
+            throw new Error("unsupported constant: " + value);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public void visitTableSwitchInsn (int min, int max, Label dflt, Label... labels) {
+        throw new UnsupportedOperationException("switches are not supported");
+    }
+
+    @Override public void visitLookupSwitchInsn (Label dflt, int[] keys, Label[] labels) {
+        throw new UnsupportedOperationException("switches are not supported");
+    }
+
+    @Override public void visitMultiANewArrayInsn (String descriptor, int numDimensions) {
+        throw new UnsupportedOperationException("multi-dimensional arrays are not supported");
+    }
+
+    @Override public void visitTryCatchBlock (Label start, Label end, Label handler, String type) {
+        throw new UnsupportedOperationException("exception handlers are not supported");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public void visitMaxs (int maxStack, int maxLocals) {
+        super.visitMaxs(this.maxStack, this.maxLocals);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
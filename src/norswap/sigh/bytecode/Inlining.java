@@ -0,0 +1,191 @@
+package norswap.sigh.bytecode;
+
+import norswap.sigh.ConstantFolding;
+import norswap.sigh.SemanticAnalysis;
+import norswap.sigh.ast.*;
+import norswap.uranium.Reactor;
+import norswap.utils.visitors.ReflectiveFieldWalker;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import static norswap.utils.visitors.WalkVisitType.POST_VISIT;
+import static norswap.utils.visitors.WalkVisitType.PRE_VISIT;
+
+/**
+ * An analysis pass, to be run after {@link SemanticAnalysis}, that selects the functions whose
+ * direct calls the {@link BytecodeCompiler} inlines, instead of emitting a call to the method
+ * the function is lifted to.
+ *
+ * <p>A function is inlinable if its body contains at most {@link #MAX_SIZE} nodes, if it does not
+ * declare functions or structs, and if it is not (directly or indirectly) recursive. Calls to
+ * inlinable functions inside inlined bodies are themselves inlined, up to a nesting of {@link
+ * #MAX_DEPTH} calls.
+ *
+ * <p>Functions that contain loops are only inlined at call sites where the operand stack is empty
+ * (see {@link #hasLoops}): otherwise the values on the stack (e.g. the uninitialized object of
+ * a constructor call whose argument is the call) would live across the back edges of the loop.
+ *
+ * <p>Inlining lets the compiler fold the body of the function for the constant arguments of each
+ * call site (see {@link ConstantFolding#specialize}), and keeps the JIT from having to inline
+ * many small methods of the (potentially very large) container class.
+ *
+ * <p>The entry point into this class is {@link #analyze(Reactor, SighNode)}.
+ */
+public final class Inlining
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /** Maximum number of nodes in the body of an inlinable function. */
+    public static final int MAX_SIZE = 40;
+
+    /** Maximum number of nested inlined calls. */
+    public static final int MAX_DEPTH = 3;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Analysis state of a function. */
+    private static final class Summary
+    {
+        int size = 0;
+        boolean declares = false;
+        boolean loops = false;
+        final Set<FunDeclarationNode> callees =
+            Collections.newSetFromMap(new IdentityHashMap<>());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private final Reactor reactor;
+
+    private final IdentityHashMap<FunDeclarationNode, Summary> summaries = new IdentityHashMap<>();
+
+    /** Functions being walked, innermost first. */
+    private final ArrayDeque<Summary> functions = new ArrayDeque<>();
+
+    private final Set<FunDeclarationNode> inlinable =
+        Collections.newSetFromMap(new IdentityHashMap<>());
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Inlining (Reactor reactor) {
+        this.reactor = reactor;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Runs the inlining analysis over the given tree, which must have been successfully analyzed
+     * using the given reactor.
+     */
+    public static Inlining analyze (Reactor reactor, SighNode root)
+    {
+        ReflectiveFieldWalker<SighNode> walker = new ReflectiveFieldWalker<>(
+            SighNode.class, PRE_VISIT, POST_VISIT);
+
+        Inlining inlining = new Inlining(reactor);
+
+        walker.register(FunDeclarationNode.class,    PRE_VISIT,  inlining::funDecl);
+        walker.register(FunDeclarationNode.class,    POST_VISIT, node -> inlining.functions.pop());
+        walker.register(StructDeclarationNode.class, PRE_VISIT,  inlining::structDecl);
+        walker.register(FunCallNode.class,           PRE_VISIT,  inlining::funCall);
+        walker.register(WhileNode.class,             PRE_VISIT,  inlining::whileStmt);
+
+        walker.registerFallback(PRE_VISIT,  inlining::node);
+        walker.registerFallback(POST_VISIT, node -> {});
+
+        walker.walk(root);
+
+        inlining.summaries.forEach((function, summary) -> {
+            if (summary.size <= MAX_SIZE && !summary.declares
+                    && !inlining.reaches(summary, function, new HashSet<>()))
+                inlining.inlinable.add(function);
+        });
+
+        return inlining;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether direct calls to the given function are inlined.
+     */
+    public boolean isInlinable (FunDeclarationNode node) {
+        return inlinable.contains(node);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether the body of the given function contains a loop, in which case its calls must only
+     * be inlined when the operand stack is empty.
+     */
+    public boolean hasLoops (FunDeclarationNode node) {
+        return summaries.get(node).loops;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether {@code target} can be called (transitively) from the function with the given
+     * summary.
+     */
+    private boolean reaches (Summary summary, FunDeclarationNode target, Set<Summary> visited)
+    {
+        if (!visited.add(summary)) return false;
+        for (FunDeclarationNode callee: summary.callees)
+            if (callee == target || reaches(summaries.get(callee), target, visited))
+                return true;
+        return false;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void node (SighNode node) {
+        if (!functions.isEmpty())
+            ++functions.peek().size;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void funDecl (FunDeclarationNode node)
+    {
+        if (!functions.isEmpty())
+            functions.peek().declares = true;
+        Summary summary = new Summary();
+        summaries.put(node, summary);
+        functions.push(summary);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void structDecl (StructDeclarationNode node)
+    {
+        if (!functions.isEmpty())
+            functions.peek().declares = true;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void whileStmt (WhileNode node)
+    {
+        node(node);
+        if (!functions.isEmpty())
+            functions.peek().loops = true;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void funCall (FunCallNode node)
+    {
+        node(node);
+        if (functions.isEmpty() || !(node.function instanceof ReferenceNode)) return;
+        Object decl = reactor.get(node.function, "decl");
+        if (decl instanceof FunDeclarationNode)
+            functions.peek().callees.add((FunDeclarationNode) decl);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
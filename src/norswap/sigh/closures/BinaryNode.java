@@ -0,0 +1,472 @@
+package norswap.sigh.closures;
+
+import norswap.sigh.interpreter.Frame;
+
+import static norswap.sigh.interpreter.Interpreter.convertToString;
+
+/**
+ * Base class for binary operations, which holds the nested classes implementing each operation,
+ * specialized for the static type of the operands.
+ *
+ * <p>Numeric operations are specialized for {@code Int} ({@code Long...}) and {@code Float}
+ * ({@code Double...}) operands. When the operands are mixed, the {@code Int} operand is wrapped in
+ * an {@link ExpressionNodes.IntToFloatNode} at build time. Numeric and boolean operations evaluate
+ * their operands and compute their result through the unboxed entry points of {@link Node}.
+ */
+abstract class BinaryNode extends Node
+{
+    // ---------------------------------------------------------------------------------------------
+
+    final Node left;
+    final Node right;
+
+    // ---------------------------------------------------------------------------------------------
+
+    BinaryNode (Node left, Node right) {
+        this.left = left;
+        this.right = right;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Base class for binary operations producing an {@code Int}.
+     */
+    abstract static class LongBinaryNode extends BinaryNode
+    {
+        LongBinaryNode (Node left, Node right) {
+            super(left, right);
+        }
+
+        @Override public final Object execute (Frame frame) {
+            return executeLong(frame);
+        }
+
+        @Override public abstract long executeLong (Frame frame);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Base class for binary operations producing a {@code Float}.
+     */
+    abstract static class DoubleBinaryNode extends BinaryNode
+    {
+        DoubleBinaryNode (Node left, Node right) {
+            super(left, right);
+        }
+
+        @Override public final Object execute (Frame frame) {
+            return executeDouble(frame);
+        }
+
+        @Override public abstract double executeDouble (Frame frame);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Base class for binary operations producing a {@code Bool}.
+     */
+    abstract static class BooleanBinaryNode extends BinaryNode
+    {
+        BooleanBinaryNode (Node left, Node right) {
+            super(left, right);
+        }
+
+        @Override public final Object execute (Frame frame) {
+            return executeBoolean(frame);
+        }
+
+        @Override public abstract boolean executeBoolean (Frame frame);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static final class LongAddNode extends LongBinaryNode
+    {
+        LongAddNode (Node left, Node right) {
+            super(left, right);
+        }
+
+        @Override public long executeLong (Frame frame) {
+            return left.executeLong(frame) + right.executeLong(frame);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static final class LongSubtractNode extends LongBinaryNode
+    {
+        LongSubtractNode (Node left, Node right) {
+            super(left, right);
+        }
+
+        @Override public long executeLong (Frame frame) {
+            return left.executeLong(frame) - right.executeLong(frame);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static final class LongMultiplyNode extends LongBinaryNode
+    {
+        LongMultiplyNode (Node left, Node right) {
+            super(left, right);
+        }
+
+        @Override public long executeLong (Frame frame) {
+            return left.executeLong(frame) * right.executeLong(frame);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static final class LongDivideNode extends LongBinaryNode
+    {
+        LongDivideNode (Node left, Node right) {
+            super(left, right);
+        }
+
+        @Override public long executeLong (Frame frame) {
+            return left.executeLong(frame) / right.executeLong(frame);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static final class LongRemainderNode extends LongBinaryNode
+    {
+        LongRemainderNode (Node left, Node right) {
+            super(left, right);
+        }
+
+        @Override public long executeLong (Frame frame) {
+            return left.executeLong(frame) % right.executeLong(frame);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static final class LongLowerNode extends BooleanBinaryNode
+    {
+        LongLowerNode (Node left, Node right) {
+            super(left, right);
+        }
+
+        @Override public boolean executeBoolean (Frame frame) {
+            return left.executeLong(frame) < right.executeLong(frame);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static final class LongLowerEqualNode extends BooleanBinaryNode
+    {
+        LongLowerEqualNode (Node left, Node right) {
+            super(left, right);
+        }
+
+        @Override public boolean executeBoolean (Frame frame) {
+            return left.executeLong(frame) <= right.executeLong(frame);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static final class LongGreaterNode extends BooleanBinaryNode
+    {
+        LongGreaterNode (Node left, Node right) {
+            super(left, right);
+        }
+
+        @Override public boolean executeBoolean (Frame frame) {
+            return left.executeLong(frame) > right.executeLong(frame);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static final class LongGreaterEqualNode extends BooleanBinaryNode
+    {
+        LongGreaterEqualNode (Node left, Node right) {
+            super(left, right);
+        }
+
+        @Override public boolean executeBoolean (Frame frame) {
+            return left.executeLong(frame) >= right.executeLong(frame);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static final class LongEqualNode extends BooleanBinaryNode
+    {
+        LongEqualNode (Node left, Node right) {
+            super(left, right);
+        }
+
+        @Override public boolean executeBoolean (Frame frame) {
+            return left.executeLong(frame) == right.executeLong(frame);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static final class LongNotEqualNode extends BooleanBinaryNode
+    {
+        LongNotEqualNode (Node left, Node right) {
+            super(left, right);
+        }
+
+        @Override public boolean executeBoolean (Frame frame) {
+            return left.executeLong(frame) != right.executeLong(frame);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static final class DoubleAddNode extends DoubleBinaryNode
+    {
+        DoubleAddNode (Node left, Node right) {
+            super(left, right);
+        }
+
+        @Override public double executeDouble (Frame frame) {
+            return left.executeDouble(frame) + right.executeDouble(frame);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static final class DoubleSubtractNode extends DoubleBinaryNode
+    {
+        DoubleSubtractNode (Node left, Node right) {
+            super(left, right);
+        }
+
+        @Override public double executeDouble (Frame frame) {
+            return left.executeDouble(frame) - right.executeDouble(frame);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static final class DoubleMultiplyNode extends DoubleBinaryNode
+    {
+        DoubleMultiplyNode (Node left, Node right) {
+            super(left, right);
+        }
+
+        @Override public double executeDouble (Frame frame) {
+            return left.executeDouble(frame) * right.executeDouble(frame);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static final class DoubleDivideNode extends DoubleBinaryNode
+    {
+        DoubleDivideNode (Node left, Node right) {
+            super(left, right);
+        }
+
+        @Override public double executeDouble (Frame frame) {
+            return left.executeDouble(frame) / right.executeDouble(frame);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static final class DoubleRemainderNode extends DoubleBinaryNode
+    {
+        DoubleRemainderNode (Node left, Node right) {
+            super(left, right);
+        }
+
+        @Override public double executeDouble (Frame frame) {
+            return left.executeDouble(frame) % right.executeDouble(frame);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static final class DoubleLowerNode extends BooleanBinaryNode
+    {
+        DoubleLowerNode (Node left, Node right) {
+            super(left, right);
+        }
+
+        @Override public boolean executeBoolean (Frame frame) {
+            return left.executeDouble(frame) < right.executeDouble(frame);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static final class DoubleLowerEqualNode extends BooleanBinaryNode
+    {
+        DoubleLowerEqualNode (Node left, Node right) {
+            super(left, right);
+        }
+
+        @Override public boolean executeBoolean (Frame frame) {
+            return left.executeDouble(frame) <= right.executeDouble(frame);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static final class DoubleGreaterNode extends BooleanBinaryNode
+    {
+        DoubleGreaterNode (Node left, Node right) {
+            super(left, right);
+        }
+
+        @Override public boolean executeBoolean (Frame frame) {
+            return left.executeDouble(frame) > right.executeDouble(frame);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static final class DoubleGreaterEqualNode extends BooleanBinaryNode
+    {
+        DoubleGreaterEqualNode (Node left, Node right) {
+            super(left, right);
+        }
+
+        @Override public boolean executeBoolean (Frame frame) {
+            return left.executeDouble(frame) >= right.executeDouble(frame);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static final class DoubleEqualNode extends BooleanBinaryNode
+    {
+        DoubleEqualNode (Node left, Node right) {
+            super(left, right);
+        }
+
+        @Override public boolean executeBoolean (Frame frame) {
+            return left.executeDouble(frame) == right.executeDouble(frame);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static final class DoubleNotEqualNode extends BooleanBinaryNode
+    {
+        DoubleNotEqualNode (Node left, Node right) {
+            super(left, right);
+        }
+
+        @Override public boolean executeBoolean (Frame frame) {
+            return left.executeDouble(frame) != right.executeDouble(frame);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static final class AndNode extends BooleanBinaryNode
+    {
+        AndNode (Node left, Node right) {
+            super(left, right);
+        }
+
+        @Override public boolean executeBoolean (Frame frame) {
+            return left.executeBoolean(frame) && right.executeBoolean(frame);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static final class OrNode extends BooleanBinaryNode
+    {
+        OrNode (Node left, Node right) {
+            super(left, right);
+        }
+
+        @Override public boolean executeBoolean (Frame frame) {
+            return left.executeBoolean(frame) || right.executeBoolean(frame);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Equality over values of primitive types that are not numeric (e.g. {@code Bool}).
+     */
+    static final class ValueEqualNode extends BooleanBinaryNode
+    {
+        ValueEqualNode (Node left, Node right) {
+            super(left, right);
+        }
+
+        @Override public boolean executeBoolean (Frame frame) {
+            return left.execute(frame).equals(right.execute(frame));
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static final class ValueNotEqualNode extends BooleanBinaryNode
+    {
+        ValueNotEqualNode (Node left, Node right) {
+            super(left, right);
+        }
+
+        @Override public boolean executeBoolean (Frame frame) {
+            return !left.execute(frame).equals(right.execute(frame));
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Equality over values of reference types (strings included), compared by identity.
+     */
+    static final class ReferenceEqualNode extends BooleanBinaryNode
+    {
+        ReferenceEqualNode (Node left, Node right) {
+            super(left, right);
+        }
+
+        @Override public boolean executeBoolean (Frame frame) {
+            return left.execute(frame) == right.execute(frame);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static final class ReferenceNotEqualNode extends BooleanBinaryNode
+    {
+        ReferenceNotEqualNode (Node left, Node right) {
+            super(left, right);
+        }
+
+        @Override public boolean executeBoolean (Frame frame) {
+            return left.execute(frame) != right.execute(frame);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * String concatenation, when at least one of the operands is a string.
+     */
+    static final class ConcatNode extends BinaryNode
+    {
+        ConcatNode (Node left, Node right) {
+            super(left, right);
+        }
+
+        @Override public Object execute (Frame frame) {
+            return convertToString(left.execute(frame))
+                + convertToString(right.execute(frame));
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
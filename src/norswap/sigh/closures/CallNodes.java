@@ -0,0 +1,200 @@
+package norswap.sigh.closures;
+
+import norswap.sigh.ast.FunDeclarationNode;
+import norswap.sigh.ast.StructDeclarationNode;
+import norswap.sigh.interpreter.Constructor;
+import norswap.sigh.interpreter.Frame;
+import norswap.sigh.interpreter.Interpreter;
+import norswap.sigh.interpreter.Null;
+import norswap.sigh.interpreter.PassthroughException;
+import norswap.sigh.scopes.SyntheticDeclarationNode;
+import norswap.sigh.interpreter.Struct;
+import java.util.Map;
+
+/**
+ * Executable nodes for function calls, built-in calls and structure constructions.
+ */
+final class CallNodes
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private CallNodes () {}
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * A call whose target function is known at build time. The static link of the new frame is
+     * found by following {@code hops} static links from the caller's frame.
+     */
+    static final class DirectCallNode extends Node
+    {
+        final CompiledFunction function;
+        final int hops;
+        final Node[] arguments;
+
+        DirectCallNode (CompiledFunction function, int hops, Node[] arguments) {
+            this.function = function;
+            this.hops = hops;
+            this.arguments = arguments;
+        }
+
+        @Override public Object execute (Frame frame) {
+            Frame link = ExpressionNodes.outer(frame, hops);
+            Frame callee = new Frame(function.layout, link, frame, true);
+            for (int i = 0; i < arguments.length; ++i)
+                function.bind(callee, i, arguments[i], frame);
+            return function.invoke(callee);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * A return statement whose expression is a call to the function containing it. The arguments
+     * are stored in the current frame, which {@link CompiledFunction#invoke} then reuses to run
+     * the function body again, instead of growing the stack.
+     */
+    static final class SelfTailCallNode extends Node
+    {
+        final CompiledFunction function;
+        final Node[] arguments;
+
+        SelfTailCallNode (CompiledFunction function, Node[] arguments) {
+            this.function = function;
+            this.arguments = arguments;
+        }
+
+        @Override public Object execute (Frame frame) {
+            executeVoid(frame);
+            return null;
+        }
+
+        @Override public void executeVoid (Frame frame)
+        {
+            // all arguments must be evaluated before the parameters are overwritten
+            ValueKind[] kinds = function.parameterKinds;
+            long[] primitives = new long[arguments.length];
+            Object[] values = new Object[arguments.length];
+            for (int i = 0; i < arguments.length; ++i)
+                switch (kinds[i]) {
+                    case LONG:
+                        primitives[i] = arguments[i].executeLong(frame);
+                        break;
+                    case DOUBLE:
+                        primitives[i] =
+                            Double.doubleToRawLongBits(arguments[i].executeDouble(frame));
+                        break;
+                    case BOOLEAN:
+                        primitives[i] = arguments[i].executeBoolean(frame) ? 1 : 0;
+                        break;
+                    default:
+                        values[i] = arguments[i].execute(frame);
+                }
+
+            int[] indices = function.parameterIndices;
+            for (int i = 0; i < arguments.length; ++i)
+                if (kinds[i] == ValueKind.OBJECT)
+                    frame.values[indices[i]] = values[i];
+                else
+                    frame.primitives[indices[i]] = primitives[i];
+
+            frame.tailCall = true;
+            frame.returning = true;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * A call whose target is only known at run time, using the same function representations as
+     * the {@link Interpreter}.
+     */
+    static final class CallNode extends Node
+    {
+        final Node function;
+        final Node[] arguments;
+        final Map<FunDeclarationNode, CompiledFunction> functions;
+
+        CallNode (Node function, Node[] arguments,
+                  Map<FunDeclarationNode, CompiledFunction> functions) {
+            this.function = function;
+            this.arguments = arguments;
+            this.functions = functions;
+        }
+
+        @Override public Object execute (Frame frame)
+        {
+            Object decl = function.execute(frame);
+            Object[] args = evaluate(arguments, frame);
+
+            if (decl == Null.INSTANCE)
+                throw new PassthroughException(new NullPointerException("calling a null function"));
+
+            if (decl instanceof SyntheticDeclarationNode)
+                return print(args[0]); // only built-in at the moment
+
+            if (decl instanceof Constructor)
+                return new Struct(((Constructor) decl).declaration, args);
+
+            CompiledFunction function = functions.get((FunDeclarationNode) decl);
+            Frame callee = new Frame(function.layout, function.staticLink(frame), frame, true);
+            for (int i = 0; i < args.length; ++i)
+                function.bind(callee, i, args[i]);
+            return function.invoke(callee);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static final class PrintNode extends Node
+    {
+        final Node argument;
+
+        PrintNode (Node argument) {
+            this.argument = argument;
+        }
+
+        @Override public Object execute (Frame frame) {
+            return print(argument.execute(frame));
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static final class NewStructNode extends Node
+    {
+        final StructDeclarationNode declaration;
+        final Node[] arguments;
+
+        NewStructNode (StructDeclarationNode declaration, Node[] arguments) {
+            this.declaration = declaration;
+            this.arguments = arguments;
+        }
+
+        @Override public Object execute (Frame frame) {
+            return new Struct(declaration, evaluate(arguments, frame));
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static Object[] evaluate (Node[] nodes, Frame frame)
+    {
+        Object[] values = new Object[nodes.length];
+        for (int i = 0; i < nodes.length; ++i)
+            values[i] = nodes[i].execute(frame);
+        return values;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static String print (Object value)
+    {
+        String out = Interpreter.convertToString(value);
+        System.out.println(out);
+        return out;
+    }
+
+
+    // ---------------------------------------------------------------------------------------------
+}
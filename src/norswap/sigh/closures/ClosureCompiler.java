@@ -0,0 +1,515 @@
+package norswap.sigh.closures;
+
+import norswap.sigh.SemanticAnalysis;
+import norswap.sigh.ast.*;
+import norswap.sigh.interpreter.Constructor;
+import norswap.sigh.interpreter.Frame;
+import norswap.sigh.interpreter.FrameLayout;
+import norswap.sigh.interpreter.Interpreter;
+import norswap.sigh.interpreter.Slot;
+import norswap.sigh.interpreter.SlotResolution;
+import norswap.sigh.scopes.RootScope;
+import norswap.sigh.scopes.SyntheticDeclarationNode;
+import norswap.sigh.types.ArrayType;
+import norswap.sigh.types.FloatType;
+import norswap.sigh.types.FunType;
+import norswap.sigh.types.IntType;
+import norswap.sigh.types.StringType;
+import norswap.sigh.types.Type;
+import norswap.uranium.Reactor;
+import norswap.utils.visitors.ValuedVisitor;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import static norswap.sigh.closures.BinaryNode.*;
+import static norswap.sigh.closures.CallNodes.*;
+import static norswap.sigh.closures.ExpressionNodes.*;
+import static norswap.sigh.closures.StatementNodes.*;
+
+/**
+ * Translates a Sigh AST that was successfully analyzed by {@link SemanticAnalysis} into a tree of
+ * executable {@link Node nodes}, packaged as a {@link ClosureProgram}.
+ *
+ * <p>This is an alternative to the {@link Interpreter}. The AST is visited once, and every reactor
+ * attribute (types, declarations, frame slots) is resolved during this visit, in order to pick a
+ * node specialized for the operation and the static types of its operands. Running the program
+ * then only requires executing the nodes.
+ *
+ * <p>Runtime values have the same representation as in the {@link Interpreter}, and variables are
+ * stored in {@link Frame frames} laid out by {@link SlotResolution}. Unlike in the interpreter,
+ * implicit conversions from {@code Int} to {@code Float} also apply to function arguments, array
+ * elements, struct fields and returned values.
+ *
+ * <p>Expressions of type {@code Int}, {@code Float} and {@code Bool} are evaluated without boxing
+ * (see {@link Node}), and variables of these types are stored unboxed in the frames, except for
+ * the built-in {@code true} and {@code false}.
+ *
+ * <p>The entry point into this class is {@link #compile(SighNode)}.
+ */
+public final class ClosureCompiler
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private final ValuedVisitor<SighNode, Node> visitor = new ValuedVisitor<>();
+    private final Reactor reactor;
+    private SlotResolution slots;
+    private IdentityHashMap<FunDeclarationNode, CompiledFunction> functions;
+
+    /** Layout of the frame of the function (or main script) being compiled. */
+    private FrameLayout layout;
+
+    /** Function being compiled, or null for the main script. */
+    private FunDeclarationNode function;
+
+    // ---------------------------------------------------------------------------------------------
+
+    public ClosureCompiler (Reactor reactor)
+    {
+        this.reactor = reactor;
+
+        // expressions
+        visitor.register(IntLiteralNode.class,           this::intLiteral);
+        visitor.register(FloatLiteralNode.class,         this::floatLiteral);
+        visitor.register(StringLiteralNode.class,        this::stringLiteral);
+        visitor.register(ReferenceNode.class,            this::reference);
+        visitor.register(ConstructorNode.class,          this::constructor);
+        visitor.register(ArrayLiteralNode.class,         this::arrayLiteral);
+        visitor.register(ParenthesizedNode.class,        this::parenthesized);
+        visitor.register(FieldAccessNode.class,          this::fieldAccess);
+        visitor.register(ArrayAccessNode.class,          this::arrayAccess);
+        visitor.register(FunCallNode.class,              this::funCall);
+        visitor.register(UnaryExpressionNode.class,      this::unaryExpression);
+        visitor.register(BinaryExpressionNode.class,     this::binaryExpression);
+        visitor.register(AssignmentNode.class,           this::assignment);
+
+        // statement groups & declarations
+        visitor.register(RootNode.class,                 this::root);
+        visitor.register(BlockNode.class,                this::block);
+        visitor.register(VarDeclarationNode.class,       this::varDecl);
+        visitor.register(FunDeclarationNode.class,       this::funDecl);
+        // other declarations have no runtime behaviour (use fallback)
+
+        // statements
+        visitor.register(ExpressionStatementNode.class,  this::expressionStmt);
+        visitor.register(IfNode.class,                   this::ifStmt);
+        visitor.register(WhileNode.class,                this::whileStmt);
+        visitor.register(ReturnNode.class,               this::returnStmt);
+
+        visitor.registerFallback(node -> null);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Translates the given tree, which must have been successfully analyzed using the reactor
+     * passed to the constructor.
+     */
+    public ClosureProgram compile (SighNode root)
+    {
+        slots = SlotResolution.resolve(reactor, root);
+        functions = new IdentityHashMap<>();
+        layout = slots.layout(root);
+        function = null;
+        RootScope scope = reactor.get(root, "scope");
+        return new ClosureProgram(layout, scope, slots, visitor.apply(root));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Node[] compileAll (List<? extends SighNode> nodes)
+    {
+        List<Node> result = new ArrayList<>(nodes.size());
+        for (SighNode node: nodes) {
+            Node compiled = visitor.apply(node);
+            if (compiled != null) // skip declarations without runtime behaviour
+                result.add(compiled);
+        }
+        return result.toArray(new Node[0]);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Compiles an expression whose value will be stored in a location of type {@code target},
+     * inserting an implicit conversion if required.
+     */
+    private Node compileAs (ExpressionNode node, Type target)
+    {
+        Node compiled = visitor.apply(node);
+        Type type = reactor.get(node, "type");
+        return type instanceof IntType && target instanceof FloatType
+            ? new IntToFloatNode(compiled)
+            : compiled;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Node[] compileArguments (List<ExpressionNode> arguments, Type[] paramTypes)
+    {
+        Node[] result = new Node[arguments.size()];
+        for (int i = 0; i < result.length; ++i)
+            result[i] = compileAs(arguments.get(i), paramTypes[i]);
+        return result;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Node intLiteral (IntLiteralNode node) {
+        return new ConstantNode(node.value);
+    }
+
+    private Node floatLiteral (FloatLiteralNode node) {
+        return new ConstantNode(node.value);
+    }
+
+    private Node stringLiteral (StringLiteralNode node) {
+        return new ConstantNode(node.value);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Node parenthesized (ParenthesizedNode node) {
+        return visitor.apply(node.expression);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Node arrayLiteral (ArrayLiteralNode node)
+    {
+        ArrayType type = reactor.get(node, "type");
+        Node[] components = new Node[node.components.size()];
+        for (int i = 0; i < components.length; ++i)
+            components[i] = compileAs(node.components.get(i), type.componentType);
+        switch (ValueKind.of(type.componentType)) {
+            case LONG:    return new LongNewArrayNode(components);
+            case DOUBLE:  return new DoubleNewArrayNode(components);
+            case BOOLEAN: return new BooleanNewArrayNode(components);
+            default:      return new NewArrayNode(components);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Node reference (ReferenceNode node)
+    {
+        Slot slot = slots.slot(node);
+        DeclarationNode decl = reactor.get(node, "decl");
+        if (slot == null) // structure or function
+            return new ConstantNode(decl);
+        int hops = layout.depth - slot.depth;
+        switch (kind(decl)) {
+            case LONG:    return new LongLoadNode(hops, slot.index);
+            case DOUBLE:  return new DoubleLoadNode(hops, slot.index);
+            case BOOLEAN: return new BooleanLoadNode(hops, slot.index);
+        }
+        return hops == 0
+            ? new LocalLoadNode(slot.index)
+            : new OuterLoadNode(hops, slot.index);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Node store (DeclarationNode decl, Node value)
+    {
+        Slot slot = slots.slot(decl);
+        int hops = layout.depth - slot.depth;
+        switch (kind(decl)) {
+            case LONG:    return new LongStoreNode(hops, slot.index, value);
+            case DOUBLE:  return new DoubleStoreNode(hops, slot.index, value);
+            case BOOLEAN: return new BooleanStoreNode(hops, slot.index, value);
+        }
+        return hops == 0
+            ? new LocalStoreNode(slot.index, value)
+            : new OuterStoreNode(hops, slot.index, value);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the storage kind of the variable with the given declaration. Only user-declared
+     * variables are stored unboxed: the built-in variables are initialized by
+     * {@link Frame#initRoot}.
+     */
+    private ValueKind kind (DeclarationNode decl) {
+        return decl instanceof VarDeclarationNode || decl instanceof ParameterNode
+            ? ValueKind.of(reactor.get(decl, "type"))
+            : ValueKind.OBJECT;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Node constructor (ConstructorNode node) {
+        // guaranteed safe by semantic analysis
+        return new ConstantNode(new Constructor(reactor.get(node.ref, "decl")));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Node fieldAccess (FieldAccessNode node)
+    {
+        Type stemType = reactor.get(node.stem, "type");
+        Node stem = visitor.apply(node.stem);
+        return stemType instanceof ArrayType
+            ? new ArrayLengthNode(stem) // only field on arrays
+            : new FieldLoadNode(stem, reactor.get(node, "fieldIndex"));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Node arrayAccess (ArrayAccessNode node)
+    {
+        Node array = visitor.apply(node.array);
+        Node index = visitor.apply(node.index);
+        switch (ValueKind.of(reactor.get(node, "type"))) {
+            case LONG:    return new LongArrayLoadNode(array, index);
+            case DOUBLE:  return new DoubleArrayLoadNode(array, index);
+            case BOOLEAN: return new BooleanArrayLoadNode(array, index);
+            default:      return new ArrayLoadNode(array, index);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Node unaryExpression (UnaryExpressionNode node)
+    {
+        // there is only NOT
+        assert node.operator == UnaryOperator.NOT;
+        return new NotNode(visitor.apply(node.operand));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Node binaryExpression (BinaryExpressionNode node)
+    {
+        Type leftType  = reactor.get(node.left, "type");
+        Type rightType = reactor.get(node.right, "type");
+        Node left  = visitor.apply(node.left);
+        Node right = visitor.apply(node.right);
+
+        switch (node.operator) {
+            case OR:  return new OrNode(left, right);
+            case AND: return new AndNode(left, right);
+        }
+
+        if (node.operator == BinaryOperator.ADD
+                && (leftType instanceof StringType || rightType instanceof StringType))
+            return new ConcatNode(left, right);
+
+        boolean floating = leftType instanceof FloatType || rightType instanceof FloatType;
+        boolean numeric  = floating || leftType instanceof IntType;
+
+        if (floating) {
+            if (leftType instanceof IntType)  left  = new IntToFloatNode(left);
+            if (rightType instanceof IntType) right = new IntToFloatNode(right);
+            return floatingOp(node.operator, left, right);
+        }
+
+        if (numeric)
+            return integerOp(node.operator, left, right);
+
+        switch (node.operator) {
+            case EQUALITY:
+                return leftType.isPrimitive()
+                    ? new ValueEqualNode(left, right)
+                    : new ReferenceEqualNode(left, right);
+            case NOT_EQUALS:
+                return leftType.isPrimitive()
+                    ? new ValueNotEqualNode(left, right)
+                    : new ReferenceNotEqualNode(left, right);
+        }
+
+        throw new Error("should not reach here");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Node integerOp (BinaryOperator operator, Node left, Node right)
+    {
+        switch (operator) {
+            case MULTIPLY:      return new LongMultiplyNode(left, right);
+            case DIVIDE:        return new LongDivideNode(left, right);
+            case REMAINDER:     return new LongRemainderNode(left, right);
+            case ADD:           return new LongAddNode(left, right);
+            case SUBTRACT:      return new LongSubtractNode(left, right);
+            case GREATER:       return new LongGreaterNode(left, right);
+            case LOWER:         return new LongLowerNode(left, right);
+            case GREATER_EQUAL: return new LongGreaterEqualNode(left, right);
+            case LOWER_EQUAL:   return new LongLowerEqualNode(left, right);
+            case EQUALITY:      return new LongEqualNode(left, right);
+            case NOT_EQUALS:    return new LongNotEqualNode(left, right);
+            default:
+                throw new Error("should not reach here");
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Node floatingOp (BinaryOperator operator, Node left, Node right)
+    {
+        switch (operator) {
+            case MULTIPLY:      return new DoubleMultiplyNode(left, right);
+            case DIVIDE:        return new DoubleDivideNode(left, right);
+            case REMAINDER:     return new DoubleRemainderNode(left, right);
+            case ADD:           return new DoubleAddNode(left, right);
+            case SUBTRACT:      return new DoubleSubtractNode(left, right);
+            case GREATER:       return new DoubleGreaterNode(left, right);
+            case LOWER:         return new DoubleLowerNode(left, right);
+            case GREATER_EQUAL: return new DoubleGreaterEqualNode(left, right);
+            case LOWER_EQUAL:   return new DoubleLowerEqualNode(left, right);
+            case EQUALITY:      return new DoubleEqualNode(left, right);
+            case NOT_EQUALS:    return new DoubleNotEqualNode(left, right);
+            default:
+                throw new Error("should not reach here");
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Node assignment (AssignmentNode node)
+    {
+        Type type = reactor.get(node, "type");
+        Node value = compileAs(node.right, type);
+
+        if (node.left instanceof ReferenceNode)
+            return store(reactor.get(node.left, "decl"), value);
+
+        if (node.left instanceof ArrayAccessNode) {
+            ArrayAccessNode arrayAccess = (ArrayAccessNode) node.left;
+            Node array = visitor.apply(arrayAccess.array);
+            Node index = visitor.apply(arrayAccess.index);
+            switch (ValueKind.of(type)) {
+                case LONG:    return new LongArrayStoreNode(array, index, value);
+                case DOUBLE:  return new DoubleArrayStoreNode(array, index, value);
+                case BOOLEAN: return new BooleanArrayStoreNode(array, index, value);
+                default:      return new ArrayStoreNode(array, index, value);
+            }
+        }
+
+        if (node.left instanceof FieldAccessNode) {
+            FieldAccessNode fieldAccess = (FieldAccessNode) node.left;
+            return new FieldStoreNode(
+                visitor.apply(fieldAccess.stem), reactor.get(fieldAccess, "fieldIndex"), value);
+        }
+
+        throw new Error("should not reach here");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Node funCall (FunCallNode node)
+    {
+        FunType type = reactor.get(node.function, "type");
+        Node[] arguments = compileArguments(node.arguments, type.paramTypes);
+
+        if (node.function instanceof ReferenceNode) {
+            Object decl = reactor.get(node.function, "decl");
+            if (decl instanceof SyntheticDeclarationNode) // print, the only built-in
+                return new PrintNode(arguments[0]);
+            if (decl instanceof FunDeclarationNode) {
+                CompiledFunction callee = function((FunDeclarationNode) decl);
+                return new DirectCallNode(callee, layout.depth - callee.layout.parent.depth, arguments);
+            }
+        }
+
+        if (node.function instanceof ConstructorNode)
+            return new NewStructNode(
+                reactor.get(((ConstructorNode) node.function).ref, "decl"), arguments);
+
+        return new CallNode(visitor.apply(node.function), arguments, functions);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the compiled function for the given declaration, creating it if it is referenced
+     * before being compiled.
+     */
+    private CompiledFunction function (FunDeclarationNode decl)
+    {
+        return functions.computeIfAbsent(decl, it -> {
+            int[] indices = new int[it.parameters.size()];
+            ValueKind[] kinds = new ValueKind[indices.length];
+            for (int i = 0; i < indices.length; ++i) {
+                ParameterNode param = it.parameters.get(i);
+                indices[i] = slots.slot(param).index;
+                kinds[i] = kind(param);
+            }
+            return new CompiledFunction(it, slots.layout(it), indices, kinds);
+        });
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Node root (RootNode node) {
+        return new SequenceNode(compileAll(node.statements));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Node block (BlockNode node) {
+        return new SequenceNode(compileAll(node.statements));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Node varDecl (VarDeclarationNode node) {
+        return store(node, compileAs(node.initializer, reactor.get(node, "type")));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Node funDecl (FunDeclarationNode node)
+    {
+        CompiledFunction compiled = function(node);
+        FrameLayout oldLayout = layout;
+        FunDeclarationNode oldFunction = function;
+        layout = compiled.layout;
+        function = node;
+        try {
+            compiled.body = visitor.apply(node.block);
+        } finally {
+            layout = oldLayout;
+            function = oldFunction;
+        }
+        return null; // nothing to execute at the declaration site
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Node expressionStmt (ExpressionStatementNode node) {
+        return visitor.apply(node.expression); // value is discarded
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Node ifStmt (IfNode node) {
+        return new IfThenElseNode(
+            visitor.apply(node.condition),
+            visitor.apply(node.trueStatement),
+            node.falseStatement == null ? null : visitor.apply(node.falseStatement));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Node whileStmt (WhileNode node) {
+        return new WhileLoopNode(visitor.apply(node.condition), visitor.apply(node.body));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Node returnStmt (ReturnNode node)
+    {
+        if (node.expression == null)
+            return new ReturnValueNode(null);
+        if (function == null) // main script
+            return new ReturnValueNode(visitor.apply(node.expression));
+        FunType type = reactor.get(function, "type");
+        if (reactor.get(node, "tailCall"))
+            return new SelfTailCallNode(function(function), compileArguments(
+                ((FunCallNode) node.expression).arguments, type.paramTypes));
+        return new ReturnValueNode(compileAs(node.expression, type.returnType));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
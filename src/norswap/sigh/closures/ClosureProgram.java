@@ -0,0 +1,53 @@
+package norswap.sigh.closures;
+
+import norswap.sigh.interpreter.Frame;
+import norswap.sigh.interpreter.FrameLayout;
+import norswap.sigh.interpreter.InterpreterException;
+import norswap.sigh.interpreter.PassthroughException;
+import norswap.sigh.interpreter.SlotResolution;
+import norswap.sigh.scopes.RootScope;
+import norswap.utils.exceptions.Exceptions;
+
+/**
+ * A Sigh program translated by the {@link ClosureCompiler}, which can be run any number of times.
+ */
+public final class ClosureProgram
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private final FrameLayout layout;
+    private final RootScope rootScope;
+    private final SlotResolution slots;
+    private final Node body;
+
+    // ---------------------------------------------------------------------------------------------
+
+    ClosureProgram (FrameLayout layout, RootScope rootScope, SlotResolution slots, Node body) {
+        this.layout = layout;
+        this.rootScope = rootScope;
+        this.slots = slots;
+        this.body = body;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Runs the program and returns the value returned by the main script, or null if it does not
+     * return a value.
+     */
+    public Object run ()
+    {
+        Frame frame = new Frame(layout, null, null, true);
+        frame.initRoot(rootScope, slots);
+        try {
+            body.executeVoid(frame);
+            return frame.returnValue; // allow returning from the main script
+        } catch (PassthroughException e) {
+            throw Exceptions.runtime(e.getCause());
+        } catch (RuntimeException e) {
+            throw new InterpreterException("exception while executing compiled program", e);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,126 @@
+package norswap.sigh.closures;
+
+import norswap.sigh.ast.FunDeclarationNode;
+import norswap.sigh.interpreter.Frame;
+import norswap.sigh.interpreter.FrameLayout;
+
+/**
+ * A function translated by the {@link ClosureCompiler}.
+ *
+ * <p>Instances are created as soon as the function is first referenced, which may happen before
+ * the declaration is compiled, so {@link #body} is filled in later.
+ */
+final class CompiledFunction
+{
+    // ---------------------------------------------------------------------------------------------
+
+    final FunDeclarationNode declaration;
+    final FrameLayout layout;
+
+    /** Frame slot index of each parameter. */
+    final int[] parameterIndices;
+
+    /** Storage kind of each parameter. */
+    final ValueKind[] parameterKinds;
+
+    Node body;
+
+    // ---------------------------------------------------------------------------------------------
+
+    CompiledFunction (FunDeclarationNode declaration, FrameLayout layout,
+                      int[] parameterIndices, ValueKind[] parameterKinds) {
+        this.declaration = declaration;
+        this.layout = layout;
+        this.parameterIndices = parameterIndices;
+        this.parameterKinds = parameterKinds;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Evaluates the {@code i}-th argument in the caller's frame and stores it in the callee's
+     * frame, without boxing it if the parameter is stored unboxed.
+     */
+    void bind (Frame callee, int i, Node argument, Frame caller)
+    {
+        int index = parameterIndices[i];
+        switch (parameterKinds[i]) {
+            case LONG:
+                callee.primitives[index] = argument.executeLong(caller);
+                break;
+            case DOUBLE:
+                callee.primitives[index] =
+                    Double.doubleToRawLongBits(argument.executeDouble(caller));
+                break;
+            case BOOLEAN:
+                callee.primitives[index] = argument.executeBoolean(caller) ? 1 : 0;
+                break;
+            default:
+                callee.values[index] = argument.execute(caller);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Stores the already evaluated {@code i}-th argument in the callee's frame.
+     */
+    void bind (Frame callee, int i, Object argument)
+    {
+        int index = parameterIndices[i];
+        switch (parameterKinds[i]) {
+            case LONG:
+                callee.primitives[index] = (Long) argument;
+                break;
+            case DOUBLE:
+                callee.primitives[index] = Double.doubleToRawLongBits((Double) argument);
+                break;
+            case BOOLEAN:
+                callee.primitives[index] = (Boolean) argument ? 1 : 0;
+                break;
+            default:
+                callee.values[index] = argument;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Runs the function body in the given frame, which must already contain the arguments.
+     */
+    Object invoke (Frame frame)
+    {
+        body.executeVoid(frame);
+        while (frame.tailCall) {
+            frame.tailCall = false;
+            frame.returning = false;
+            body.executeVoid(frame);
+        }
+        return frame.returnValue;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the frame that the static link of a new frame for this function must point to,
+     * when called from the given frame: the latest active frame of the lexically enclosing
+     * function.
+     */
+    Frame staticLink (Frame frame)
+    {
+        if (layout.parent.depth == 0)
+            return ExpressionNodes.outer(frame, frame.layout.depth);
+        for (Frame caller = frame; caller != null; caller = caller.caller)
+            if (caller.layout == layout.parent)
+                return caller;
+        return null; // enclosing function is not active, using its variables will fail
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public String toString () {
+        return declaration.name;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
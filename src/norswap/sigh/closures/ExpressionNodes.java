@@ -0,0 +1,743 @@
+package norswap.sigh.closures;
+
+import norswap.sigh.interpreter.Frame;
+import norswap.sigh.interpreter.Null;
+import norswap.sigh.interpreter.PassthroughException;
+import norswap.sigh.interpreter.SighArrays;
+import norswap.sigh.interpreter.Struct;
+
+/**
+ * Executable nodes for expressions that are neither calls nor binary operations.
+ *
+ * <p>Array nodes are specialized for the storage used for the static component type of the array
+ * (see {@link SighArrays}).
+ */
+final class ExpressionNodes
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private ExpressionNodes () {}
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Literals, as well as references to functions and structures.
+     */
+    static final class ConstantNode extends Node
+    {
+        final Object value;
+
+        ConstantNode (Object value) {
+            this.value = value;
+        }
+
+        @Override public Object execute (Frame frame) {
+            return value;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Reads a variable from the current frame.
+     */
+    static final class LocalLoadNode extends Node
+    {
+        final int index;
+
+        LocalLoadNode (int index) {
+            this.index = index;
+        }
+
+        @Override public Object execute (Frame frame) {
+            return frame.values[index];
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Reads a variable from the frame of a lexically enclosing function (or of the main script),
+     * found by following {@code hops} static links.
+     */
+    static final class OuterLoadNode extends Node
+    {
+        final int hops;
+        final int index;
+
+        OuterLoadNode (int hops, int index) {
+            this.hops = hops;
+            this.index = index;
+        }
+
+        @Override public Object execute (Frame frame) {
+            return outer(frame, hops).values[index];
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Writes a variable of the current frame, returning the written value.
+     */
+    static final class LocalStoreNode extends Node
+    {
+        final int index;
+        final Node value;
+
+        LocalStoreNode (int index, Node value) {
+            this.index = index;
+            this.value = value;
+        }
+
+        @Override public Object execute (Frame frame) {
+            return frame.values[index] = value.execute(frame);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Writes a variable of the frame found by following {@code hops} static links, returning the
+     * written value.
+     */
+    static final class OuterStoreNode extends Node
+    {
+        final int hops;
+        final int index;
+        final Node value;
+
+        OuterStoreNode (int hops, int index, Node value) {
+            this.hops = hops;
+            this.index = index;
+            this.value = value;
+        }
+
+        @Override public Object execute (Frame frame) {
+            Object result = value.execute(frame);
+            outer(frame, hops).values[index] = result;
+            return result;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Reads a {@code Int} variable from the unboxed storage of the frame found by following {@code hops}
+     * static links.
+     */
+    static final class LongLoadNode extends Node
+    {
+        final int hops;
+        final int index;
+
+        LongLoadNode (int hops, int index) {
+            this.hops = hops;
+            this.index = index;
+        }
+
+        @Override public Object execute (Frame frame) {
+            return executeLong(frame);
+        }
+
+        @Override public long executeLong (Frame frame) {
+            frame = outer(frame, hops);
+            return frame.primitives[index];
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Writes a {@code Int} variable to the unboxed storage of the frame found by following {@code hops}
+     * static links, returning the written value.
+     */
+    static final class LongStoreNode extends Node
+    {
+        final int hops;
+        final int index;
+        final Node value;
+
+        LongStoreNode (int hops, int index, Node value) {
+            this.hops = hops;
+            this.index = index;
+            this.value = value;
+        }
+
+        @Override public Object execute (Frame frame) {
+            return executeLong(frame);
+        }
+
+        @Override public long executeLong (Frame frame) {
+            long result = value.executeLong(frame);
+            outer(frame, hops).primitives[index] = result;
+            return result;
+        }
+
+        @Override public void executeVoid (Frame frame) {
+            executeLong(frame);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Reads a {@code Float} variable from the unboxed storage of the frame found by following {@code hops}
+     * static links.
+     */
+    static final class DoubleLoadNode extends Node
+    {
+        final int hops;
+        final int index;
+
+        DoubleLoadNode (int hops, int index) {
+            this.hops = hops;
+            this.index = index;
+        }
+
+        @Override public Object execute (Frame frame) {
+            return executeDouble(frame);
+        }
+
+        @Override public double executeDouble (Frame frame) {
+            frame = outer(frame, hops);
+            return Double.longBitsToDouble(frame.primitives[index]);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Writes a {@code Float} variable to the unboxed storage of the frame found by following {@code hops}
+     * static links, returning the written value.
+     */
+    static final class DoubleStoreNode extends Node
+    {
+        final int hops;
+        final int index;
+        final Node value;
+
+        DoubleStoreNode (int hops, int index, Node value) {
+            this.hops = hops;
+            this.index = index;
+            this.value = value;
+        }
+
+        @Override public Object execute (Frame frame) {
+            return executeDouble(frame);
+        }
+
+        @Override public double executeDouble (Frame frame) {
+            double result = value.executeDouble(frame);
+            outer(frame, hops).primitives[index] = Double.doubleToRawLongBits(result);
+            return result;
+        }
+
+        @Override public void executeVoid (Frame frame) {
+            executeDouble(frame);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Reads a {@code Bool} variable from the unboxed storage of the frame found by following {@code hops}
+     * static links.
+     */
+    static final class BooleanLoadNode extends Node
+    {
+        final int hops;
+        final int index;
+
+        BooleanLoadNode (int hops, int index) {
+            this.hops = hops;
+            this.index = index;
+        }
+
+        @Override public Object execute (Frame frame) {
+            return executeBoolean(frame);
+        }
+
+        @Override public boolean executeBoolean (Frame frame) {
+            frame = outer(frame, hops);
+            return frame.primitives[index] != 0;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Writes a {@code Bool} variable to the unboxed storage of the frame found by following {@code hops}
+     * static links, returning the written value.
+     */
+    static final class BooleanStoreNode extends Node
+    {
+        final int hops;
+        final int index;
+        final Node value;
+
+        BooleanStoreNode (int hops, int index, Node value) {
+            this.hops = hops;
+            this.index = index;
+            this.value = value;
+        }
+
+        @Override public Object execute (Frame frame) {
+            return executeBoolean(frame);
+        }
+
+        @Override public boolean executeBoolean (Frame frame) {
+            boolean result = value.executeBoolean(frame);
+            outer(frame, hops).primitives[index] = result ? 1 : 0;
+            return result;
+        }
+
+        @Override public void executeVoid (Frame frame) {
+            executeBoolean(frame);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Follows {@code hops} static links from the given frame.
+     */
+    static Frame outer (Frame frame, int hops) {
+        for (int i = 0; i < hops; ++i)
+            frame = frame.link;
+        return frame;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Implicit conversion of an {@code Int} value where a {@code Float} is expected.
+     */
+    static final class IntToFloatNode extends Node
+    {
+        final Node operand;
+
+        IntToFloatNode (Node operand) {
+            this.operand = operand;
+        }
+
+        @Override public Object execute (Frame frame) {
+            return executeDouble(frame);
+        }
+
+        @Override public double executeDouble (Frame frame) {
+            return operand.executeLong(frame);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static final class NotNode extends Node
+    {
+        final Node operand;
+
+        NotNode (Node operand) {
+            this.operand = operand;
+        }
+
+        @Override public Object execute (Frame frame) {
+            return executeBoolean(frame);
+        }
+
+        @Override public boolean executeBoolean (Frame frame) {
+            return !operand.executeBoolean(frame);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static final class NewArrayNode extends Node
+    {
+        final Node[] components;
+
+        NewArrayNode (Node[] components) {
+            this.components = components;
+        }
+
+        @Override public Object execute (Frame frame) {
+            Object[] array = new Object[components.length];
+            for (int i = 0; i < components.length; ++i)
+                array[i] = components[i].execute(frame);
+            return array;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static final class LongNewArrayNode extends Node
+    {
+        final Node[] components;
+
+        LongNewArrayNode (Node[] components) {
+            this.components = components;
+        }
+
+        @Override public Object execute (Frame frame) {
+            long[] array = new long[components.length];
+            for (int i = 0; i < components.length; ++i)
+                array[i] = components[i].executeLong(frame);
+            return array;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static final class DoubleNewArrayNode extends Node
+    {
+        final Node[] components;
+
+        DoubleNewArrayNode (Node[] components) {
+            this.components = components;
+        }
+
+        @Override public Object execute (Frame frame) {
+            double[] array = new double[components.length];
+            for (int i = 0; i < components.length; ++i)
+                array[i] = components[i].executeDouble(frame);
+            return array;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static final class BooleanNewArrayNode extends Node
+    {
+        final Node[] components;
+
+        BooleanNewArrayNode (Node[] components) {
+            this.components = components;
+        }
+
+        @Override public Object execute (Frame frame) {
+            boolean[] array = new boolean[components.length];
+            for (int i = 0; i < components.length; ++i)
+                array[i] = components[i].executeBoolean(frame);
+            return array;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static final class ArrayLoadNode extends Node
+    {
+        final Node array;
+        final Node index;
+
+        ArrayLoadNode (Node array, Node index) {
+            this.array = array;
+            this.index = index;
+        }
+
+        @Override public Object execute (Frame frame) {
+            Object[] array = (Object[]) nonNullArray(this.array.execute(frame));
+            try {
+                return array[index(index.executeLong(frame))];
+            } catch (ArrayIndexOutOfBoundsException e) {
+                throw new PassthroughException(e);
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static final class LongArrayLoadNode extends Node
+    {
+        final Node array;
+        final Node index;
+
+        LongArrayLoadNode (Node array, Node index) {
+            this.array = array;
+            this.index = index;
+        }
+
+        @Override public Object execute (Frame frame) {
+            return executeLong(frame);
+        }
+
+        @Override public long executeLong (Frame frame) {
+            long[] array = (long[]) nonNullArray(this.array.execute(frame));
+            try {
+                return array[index(index.executeLong(frame))];
+            } catch (ArrayIndexOutOfBoundsException e) {
+                throw new PassthroughException(e);
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static final class DoubleArrayLoadNode extends Node
+    {
+        final Node array;
+        final Node index;
+
+        DoubleArrayLoadNode (Node array, Node index) {
+            this.array = array;
+            this.index = index;
+        }
+
+        @Override public Object execute (Frame frame) {
+            return executeDouble(frame);
+        }
+
+        @Override public double executeDouble (Frame frame) {
+            double[] array = (double[]) nonNullArray(this.array.execute(frame));
+            try {
+                return array[index(index.executeLong(frame))];
+            } catch (ArrayIndexOutOfBoundsException e) {
+                throw new PassthroughException(e);
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static final class BooleanArrayLoadNode extends Node
+    {
+        final Node array;
+        final Node index;
+
+        BooleanArrayLoadNode (Node array, Node index) {
+            this.array = array;
+            this.index = index;
+        }
+
+        @Override public Object execute (Frame frame) {
+            return executeBoolean(frame);
+        }
+
+        @Override public boolean executeBoolean (Frame frame) {
+            boolean[] array = (boolean[]) nonNullArray(this.array.execute(frame));
+            try {
+                return array[index(index.executeLong(frame))];
+            } catch (ArrayIndexOutOfBoundsException e) {
+                throw new PassthroughException(e);
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static final class ArrayStoreNode extends Node
+    {
+        final Node array;
+        final Node index;
+        final Node value;
+
+        ArrayStoreNode (Node array, Node index, Node value) {
+            this.array = array;
+            this.index = index;
+            this.value = value;
+        }
+
+        @Override public Object execute (Frame frame) {
+            Object[] array = (Object[]) nonNullArray(this.array.execute(frame));
+            int index = index(this.index.executeLong(frame));
+            try {
+                return array[index] = value.execute(frame);
+            } catch (ArrayIndexOutOfBoundsException e) {
+                throw new PassthroughException(e);
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static final class LongArrayStoreNode extends Node
+    {
+        final Node array;
+        final Node index;
+        final Node value;
+
+        LongArrayStoreNode (Node array, Node index, Node value) {
+            this.array = array;
+            this.index = index;
+            this.value = value;
+        }
+
+        @Override public Object execute (Frame frame) {
+            return executeLong(frame);
+        }
+
+        @Override public long executeLong (Frame frame) {
+            long[] array = (long[]) nonNullArray(this.array.execute(frame));
+            int index = index(this.index.executeLong(frame));
+            try {
+                return array[index] = value.executeLong(frame);
+            } catch (ArrayIndexOutOfBoundsException e) {
+                throw new PassthroughException(e);
+            }
+        }
+
+        @Override public void executeVoid (Frame frame) {
+            executeLong(frame);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static final class DoubleArrayStoreNode extends Node
+    {
+        final Node array;
+        final Node index;
+        final Node value;
+
+        DoubleArrayStoreNode (Node array, Node index, Node value) {
+            this.array = array;
+            this.index = index;
+            this.value = value;
+        }
+
+        @Override public Object execute (Frame frame) {
+            return executeDouble(frame);
+        }
+
+        @Override public double executeDouble (Frame frame) {
+            double[] array = (double[]) nonNullArray(this.array.execute(frame));
+            int index = index(this.index.executeLong(frame));
+            try {
+                return array[index] = value.executeDouble(frame);
+            } catch (ArrayIndexOutOfBoundsException e) {
+                throw new PassthroughException(e);
+            }
+        }
+
+        @Override public void executeVoid (Frame frame) {
+            executeDouble(frame);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static final class BooleanArrayStoreNode extends Node
+    {
+        final Node array;
+        final Node index;
+        final Node value;
+
+        BooleanArrayStoreNode (Node array, Node index, Node value) {
+            this.array = array;
+            this.index = index;
+            this.value = value;
+        }
+
+        @Override public Object execute (Frame frame) {
+            return executeBoolean(frame);
+        }
+
+        @Override public boolean executeBoolean (Frame frame) {
+            boolean[] array = (boolean[]) nonNullArray(this.array.execute(frame));
+            int index = index(this.index.executeLong(frame));
+            try {
+                return array[index] = value.executeBoolean(frame);
+            } catch (ArrayIndexOutOfBoundsException e) {
+                throw new PassthroughException(e);
+            }
+        }
+
+        @Override public void executeVoid (Frame frame) {
+            executeBoolean(frame);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static final class ArrayLengthNode extends Node
+    {
+        final Node array;
+
+        ArrayLengthNode (Node array) {
+            this.array = array;
+        }
+
+        @Override public Object execute (Frame frame) {
+            return executeLong(frame);
+        }
+
+        @Override public long executeLong (Frame frame) {
+            Object array = this.array.execute(frame);
+            if (array == Null.INSTANCE)
+                throw new PassthroughException(
+                    new NullPointerException("accessing field of null object"));
+            return SighArrays.length(array);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static Object nonNullArray (Object array)
+    {
+        if (array == Null.INSTANCE)
+            throw new PassthroughException(new NullPointerException("indexing null array"));
+        return array;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static int index (long index)
+    {
+        if (index < 0)
+            throw new PassthroughException(
+                new ArrayIndexOutOfBoundsException("Negative index: " + index));
+        if (index >= Integer.MAX_VALUE - 1)
+            throw new PassthroughException(new ArrayIndexOutOfBoundsException(
+                "Index exceeds max array index (2ˆ31 - 2): " + index));
+        return (int) index;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static final class FieldLoadNode extends Node
+    {
+        final Node stem;
+        final int index;
+
+        FieldLoadNode (Node stem, int index) {
+            this.stem = stem;
+            this.index = index;
+        }
+
+        @Override public Object execute (Frame frame) {
+            return nonNullStruct(stem.execute(frame)).fields[index];
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static final class FieldStoreNode extends Node
+    {
+        final Node stem;
+        final int index;
+        final Node value;
+
+        FieldStoreNode (Node stem, int index, Node value) {
+            this.stem = stem;
+            this.index = index;
+            this.value = value;
+        }
+
+        @Override public Object execute (Frame frame) {
+            Struct struct = nonNullStruct(stem.execute(frame));
+            Object result = value.execute(frame);
+            struct.fields[index] = result;
+            return result;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static Struct nonNullStruct (Object struct)
+    {
+        if (struct == Null.INSTANCE)
+            throw new PassthroughException(
+                new NullPointerException("accessing field of null object"));
+        return (Struct) struct;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
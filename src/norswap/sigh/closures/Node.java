@@ -0,0 +1,64 @@
+package norswap.sigh.closures;
+
+import norswap.sigh.interpreter.Frame;
+
+/**
+ * A node of the executable tree produced by the {@link ClosureCompiler}.
+ *
+ * <p>Unlike AST nodes, executable nodes are specialized at build time for the operation they
+ * perform and for the static types of their operands. They hold everything they need to run, so
+ * executing them never requires a reactor lookup or a dispatch on the class of an AST node.
+ *
+ * <p>Besides {@link #execute}, nodes have typed entry points that let expressions statically typed
+ * {@code Int}, {@code Float} and {@code Bool} be evaluated without boxing. A parent node whose
+ * operand has such a type calls the matching entry point, and nodes producing such values override
+ * it. The default implementations unbox the result of {@link #execute}, so values only get boxed at
+ * boundaries where an object is needed (arrays, struct fields, printing, dynamic calls...).
+ */
+public abstract class Node
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Executes the node in the given frame and returns its value, or null for statements.
+     */
+    public abstract Object execute (Frame frame);
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Executes a node whose static type is {@code Int}.
+     */
+    public long executeLong (Frame frame) {
+        return (Long) execute(frame);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Executes a node whose static type is {@code Float}.
+     */
+    public double executeDouble (Frame frame) {
+        return (Double) execute(frame);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Executes a node whose static type is {@code Bool}.
+     */
+    public boolean executeBoolean (Frame frame) {
+        return (Boolean) execute(frame);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Executes a node whose value is not used (e.g. statements).
+     */
+    public void executeVoid (Frame frame) {
+        execute(frame);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
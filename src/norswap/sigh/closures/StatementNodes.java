@@ -0,0 +1,120 @@
+package norswap.sigh.closures;
+
+import norswap.sigh.interpreter.Frame;
+
+/**
+ * Executable nodes for statements. Expression statements are represented directly by the node of
+ * their expression, whose value is ignored.
+ *
+ * <p>Return statements set {@link Frame#returning} instead of throwing an exception: sequences
+ * and loops check it after each statement and stop executing once it is set.
+ */
+final class StatementNodes
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private StatementNodes () {}
+
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * A block or the main script. Variables live in the frame of the surrounding function, so no
+     * allocation is needed when entering a block.
+     */
+    static final class SequenceNode extends Node
+    {
+        final Node[] statements;
+
+        SequenceNode (Node[] statements) {
+            this.statements = statements;
+        }
+
+        @Override public Object execute (Frame frame) {
+            executeVoid(frame);
+            return null;
+        }
+
+        @Override public void executeVoid (Frame frame) {
+            for (Node statement: statements) {
+                statement.executeVoid(frame);
+                if (frame.returning) return;
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static final class IfThenElseNode extends Node
+    {
+        final Node condition;
+        final Node trueStatement;
+        final Node falseStatement; // nullable
+
+        IfThenElseNode (Node condition, Node trueStatement, Node falseStatement) {
+            this.condition = condition;
+            this.trueStatement = trueStatement;
+            this.falseStatement = falseStatement;
+        }
+
+        @Override public Object execute (Frame frame) {
+            executeVoid(frame);
+            return null;
+        }
+
+        @Override public void executeVoid (Frame frame) {
+            if (condition.executeBoolean(frame))
+                trueStatement.executeVoid(frame);
+            else if (falseStatement != null)
+                falseStatement.executeVoid(frame);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static final class WhileLoopNode extends Node
+    {
+        final Node condition;
+        final Node body;
+
+        WhileLoopNode (Node condition, Node body) {
+            this.condition = condition;
+            this.body = body;
+        }
+
+        @Override public Object execute (Frame frame) {
+            executeVoid(frame);
+            return null;
+        }
+
+        @Override public void executeVoid (Frame frame) {
+            while (condition.executeBoolean(frame)) {
+                body.executeVoid(frame);
+                if (frame.returning) return;
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static final class ReturnValueNode extends Node
+    {
+        final Node value; // nullable
+
+        ReturnValueNode (Node value) {
+            this.value = value;
+        }
+
+        @Override public Object execute (Frame frame) {
+            executeVoid(frame);
+            return null;
+        }
+
+        @Override public void executeVoid (Frame frame) {
+            frame.returnValue = value == null ? null : value.execute(frame);
+            frame.returning = true;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,23 @@
+package norswap.sigh.closures;
+
+import norswap.sigh.types.BoolType;
+import norswap.sigh.types.FloatType;
+import norswap.sigh.types.IntType;
+import norswap.sigh.types.Type;
+
+/**
+ * Indicates how the closure engine stores values of a given static type: boxed (e.g. in {@code
+ * Frame#values} or {@code Object[]} arrays), or unboxed (e.g. in {@code Frame#primitives} or
+ * primitive arrays).
+ */
+enum ValueKind
+{
+    OBJECT, LONG, DOUBLE, BOOLEAN;
+
+    static ValueKind of (Type type) {
+        return type instanceof IntType   ? LONG
+             : type instanceof FloatType ? DOUBLE
+             : type instanceof BoolType  ? BOOLEAN
+             : OBJECT;
+    }
+}
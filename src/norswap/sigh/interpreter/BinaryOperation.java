@@ -0,0 +1,271 @@
+package norswap.sigh.interpreter;
+
+import norswap.sigh.ConstantFolding;
+import norswap.sigh.ast.BinaryExpressionNode;
+import norswap.sigh.ast.BinaryOperator;
+import norswap.sigh.types.FloatType;
+import norswap.sigh.types.IntType;
+import norswap.sigh.types.StringType;
+import norswap.sigh.types.Type;
+
+import static norswap.sigh.interpreter.Interpreter.convertToString;
+
+/**
+ * A binary operation specialized for the operator of a {@link BinaryExpressionNode} and for the
+ * types of its operands, used by the {@link Interpreter} instead of re-examining the operator and
+ * types on every evaluation of the node (short-circuiting operators excepted).
+ *
+ * <p>The specialization is picked on the first evaluation of the node, using both the static
+ * types of the operands and the runtime representation of their values. Because the interpreter
+ * does not apply implicit conversions everywhere, a {@code Float} expression can evaluate to a
+ * {@link Long}. Specializations that assume a representation therefore check it, and return
+ * {@link #DEOPTIMIZE} if the assumption does not hold: the interpreter then replaces them by
+ * their {@link #generic()} version, which handles all representations.
+ */
+abstract class BinaryOperation
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /** Returned by {@link #apply} when the operands do not match the specialization. */
+    static final Object DEOPTIMIZE = new Object();
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Applies the operation to the operand values, or returns {@link #DEOPTIMIZE} if they do not
+     * match the specialization.
+     */
+    abstract Object apply (Object left, Object right);
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Returns the operation to use once the specialization has failed. */
+    BinaryOperation generic () {
+        return this;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the operation specialized for the given (non-short-circuiting) operator, the static
+     * types of the operands and their first values.
+     */
+    static BinaryOperation specialize (
+            BinaryOperator operator, Type leftType, Type rightType, Object left, Object right)
+    {
+        if (operator == BinaryOperator.ADD
+                && (leftType instanceof StringType || rightType instanceof StringType))
+            return new Concat();
+
+        boolean floating = leftType instanceof FloatType || rightType instanceof FloatType;
+        boolean numeric  = floating || leftType instanceof IntType;
+
+        if (numeric) {
+            NumberOperation generic =
+                new NumberOperation(floating, longOperator(operator), doubleOperator(operator));
+            if (floating && left instanceof Double && right instanceof Double)
+                return new DoubleOperation(doubleOperator(operator), generic);
+            if (!floating && left instanceof Long && right instanceof Long)
+                return new LongOperation(longOperator(operator), generic);
+            return generic;
+        }
+
+        switch (operator) {
+            case EQUALITY:
+                return leftType.isPrimitive()
+                    ? new ValueEquality(false)
+                    : new ReferenceEquality(false);
+            case NOT_EQUALS:
+                return leftType.isPrimitive()
+                    ? new ValueEquality(true)
+                    : new ReferenceEquality(true);
+        }
+
+        throw new Error("should not reach here");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** An operator over longs, returning a boxed {@code Long} or {@code Boolean}. */
+    interface LongOperator {
+        Object apply (long left, long right);
+    }
+
+    /** An operator over doubles, returning a boxed {@code Double} or {@code Boolean}. */
+    interface DoubleOperator {
+        Object apply (double left, double right);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static LongOperator longOperator (BinaryOperator operator)
+    {
+        switch (operator) {
+            case MULTIPLY:      return (l, r) -> l *  r;
+            case DIVIDE:        return (l, r) -> l /  r;
+            case REMAINDER:     return (l, r) -> l %  r;
+            case ADD:           return (l, r) -> l +  r;
+            case SUBTRACT:      return (l, r) -> l -  r;
+            case GREATER:       return (l, r) -> l >  r;
+            case LOWER:         return (l, r) -> l <  r;
+            case GREATER_EQUAL: return (l, r) -> l >= r;
+            case LOWER_EQUAL:   return (l, r) -> l <= r;
+            case EQUALITY:      return (l, r) -> l == r;
+            case NOT_EQUALS:    return (l, r) -> l != r;
+            default:
+                throw new Error("should not reach here");
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static DoubleOperator doubleOperator (BinaryOperator operator)
+    {
+        switch (operator) {
+            case MULTIPLY:      return (l, r) -> l *  r;
+            case DIVIDE:        return (l, r) -> l /  r;
+            case REMAINDER:     return (l, r) -> l %  r;
+            case ADD:           return (l, r) -> l +  r;
+            case SUBTRACT:      return (l, r) -> l -  r;
+            case GREATER:       return (l, r) -> l >  r;
+            case LOWER:         return (l, r) -> l <  r;
+            case GREATER_EQUAL: return (l, r) -> l >= r;
+            case LOWER_EQUAL:   return (l, r) -> l <= r;
+            case EQUALITY:      return (l, r) -> l == r;
+            case NOT_EQUALS:    return (l, r) -> l != r;
+            default:
+                throw new Error("should not reach here");
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** The operation of an expression that was folded to a constant, see {@link ConstantFolding}. */
+    static final class Constant extends BinaryOperation
+    {
+        final Object value;
+
+        Constant (Object value) {
+            this.value = value;
+        }
+
+        @Override Object apply (Object left, Object right) {
+            return value;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Integer operation, assuming both operands are represented as {@link Long}. */
+    static final class LongOperation extends BinaryOperation
+    {
+        final LongOperator operator;
+        final BinaryOperation generic;
+
+        LongOperation (LongOperator operator, BinaryOperation generic) {
+            this.operator = operator;
+            this.generic = generic;
+        }
+
+        @Override Object apply (Object left, Object right) {
+            if (!(left instanceof Long && right instanceof Long))
+                return DEOPTIMIZE;
+            return operator.apply((Long) left, (Long) right);
+        }
+
+        @Override BinaryOperation generic () {
+            return generic;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Floating-point operation, assuming both operands are represented as {@link Double}. */
+    static final class DoubleOperation extends BinaryOperation
+    {
+        final DoubleOperator operator;
+        final BinaryOperation generic;
+
+        DoubleOperation (DoubleOperator operator, BinaryOperation generic) {
+            this.operator = operator;
+            this.generic = generic;
+        }
+
+        @Override Object apply (Object left, Object right) {
+            if (!(left instanceof Double && right instanceof Double))
+                return DEOPTIMIZE;
+            return operator.apply((Double) left, (Double) right);
+        }
+
+        @Override BinaryOperation generic () {
+            return generic;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Numeric operation accepting any {@link Number} representation for its operands. */
+    static final class NumberOperation extends BinaryOperation
+    {
+        final boolean floating;
+        final LongOperator longOperator;
+        final DoubleOperator doubleOperator;
+
+        NumberOperation (boolean floating,
+                         LongOperator longOperator, DoubleOperator doubleOperator) {
+            this.floating = floating;
+            this.longOperator = longOperator;
+            this.doubleOperator = doubleOperator;
+        }
+
+        @Override Object apply (Object left, Object right) {
+            Number l = (Number) left, r = (Number) right;
+            return floating
+                ? doubleOperator.apply(l.doubleValue(), r.doubleValue())
+                : longOperator.apply(l.longValue(), r.longValue());
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static final class Concat extends BinaryOperation
+    {
+        @Override Object apply (Object left, Object right) {
+            return convertToString(left) + convertToString(right);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Equality for primitive types, using {@link Object#equals}. */
+    static final class ValueEquality extends BinaryOperation
+    {
+        final boolean negated;
+
+        ValueEquality (boolean negated) {
+            this.negated = negated;
+        }
+
+        @Override Object apply (Object left, Object right) {
+            return left.equals(right) != negated;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Equality for reference types, using reference identity. */
+    static final class ReferenceEquality extends BinaryOperation
+    {
+        final boolean negated;
+
+        ReferenceEquality (boolean negated) {
+            this.negated = negated;
+        }
+
+        @Override Object apply (Object left, Object right) {
+            return (left == right) != negated;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
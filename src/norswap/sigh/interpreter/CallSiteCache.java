@@ -0,0 +1,147 @@
+package norswap.sigh.interpreter;
+
+import norswap.sigh.ast.FunCallNode;
+import norswap.sigh.ast.FunDeclarationNode;
+import norswap.sigh.ast.StructDeclarationNode;
+import norswap.sigh.scopes.Scope;
+import norswap.sigh.scopes.SyntheticDeclarationNode;
+
+/**
+ * A polymorphic inline cache attached to a {@link FunCallNode} by the {@link Interpreter}.
+ *
+ * <p>The cache remembers up to {@link #MAX_ENTRIES} callees seen at the call site, together with
+ * everything the interpreter needs to invoke them that does not depend on the current execution
+ * state (see {@link Target}). Repeat calls to a cached callee therefore skip the resolution of
+ * the callee entirely. Once full, the call site is considered megamorphic: new callees are
+ * resolved on every call and not cached anymore.
+ *
+ * <p>The cache counts its {@link #hits()} and {@link #misses()}, which can be used to tune
+ * {@link #MAX_ENTRIES}.
+ */
+public final class CallSiteCache
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /** Maximum number of callees remembered by a call site. */
+    public static final int MAX_ENTRIES = 4;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * A resolved callee. Exactly one of {@link #builtin}, {@link #struct} and {@link #function}
+     * is non-null.
+     */
+    static final class Target
+    {
+        /** The declaration node identifying the callee, used as cache key. */
+        final Object key;
+
+        final SyntheticDeclarationNode builtin;
+        final StructDeclarationNode struct;
+        final FunDeclarationNode function;
+
+        /** Scope of {@link #function} (scope mode only). */
+        final Scope scope;
+
+        /** Layout of the frames of {@link #function} (frame mode only). */
+        final FrameLayout layout;
+
+        /** Frame slot indices of the parameters of {@link #function} (frame mode only). */
+        final int[] parameterIndices;
+
+        Target (Object key, SyntheticDeclarationNode builtin, StructDeclarationNode struct,
+                FunDeclarationNode function, Scope scope, FrameLayout layout,
+                int[] parameterIndices)
+        {
+            this.key = key;
+            this.builtin = builtin;
+            this.struct = struct;
+            this.function = function;
+            this.scope = scope;
+            this.layout = layout;
+            this.parameterIndices = parameterIndices;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private final Target[] targets = new Target[MAX_ENTRIES];
+    private int size = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the key under which a callee (a function value, as represented at runtime by the
+     * interpreter) is cached.
+     */
+    static Object key (Object callee) {
+        return callee instanceof Constructor
+            ? ((Constructor) callee).declaration
+            : callee;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the cached target for the given key (see {@link #key(Object)}), or null on a miss.
+     */
+    Target lookup (Object key)
+    {
+        for (int i = 0; i < size; ++i) {
+            if (targets[i].key == key) {
+                ++hits;
+                return targets[i];
+            }
+        }
+        ++misses;
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Adds a newly resolved target to the cache, unless the cache is full.
+     */
+    void add (Target target) {
+        if (size < MAX_ENTRIES)
+            targets[size++] = target;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Number of calls whose callee was found in the cache. */
+    public long hits () {
+        return hits;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Number of calls whose callee had to be resolved. */
+    public long misses () {
+        return misses;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Number of distinct callees remembered by the cache. */
+    public int size () {
+        return size;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Whether the cache is full (and so new callees are not cached anymore). */
+    public boolean megamorphic () {
+        return size == MAX_ENTRIES;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public String toString () {
+        return "CallSiteCache(size=" + size + ", hits=" + hits + ", misses=" + misses + ")";
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -16,7 +16,7 @@ public final class Constructor
     }
 
     @Override public int hashCode () {
-        return 31 * declaration.hashCode() + 1;
+        return 31 * System.identityHashCode(declaration) + 1;
     }
 
     @Override public boolean equals (Object other) {
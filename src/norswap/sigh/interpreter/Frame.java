@@ -0,0 +1,107 @@
+package norswap.sigh.interpreter;
+
+import norswap.sigh.scopes.RootScope;
+import java.util.Arrays;
+
+/**
+ * The storage for a single function invocation (or for the main script) when the interpreter
+ * runs in frame mode (see {@link SlotResolution}).
+ *
+ * <p>Unlike {@link ScopeStorage}, a single frame holds the variables of all the blocks of
+ * the function, and variables are accessed by index rather than by name.
+ */
+public final class Frame
+{
+    // ---------------------------------------------------------------------------------------------
+
+    public final FrameLayout layout;
+
+    /**
+     * The frame of the lexically enclosing function (static link), or null for the root frame.
+     */
+    public final Frame link;
+
+    /**
+     * The frame of the caller (dynamic link), or null for the root frame.
+     */
+    public final Frame caller;
+
+    /**
+     * The values of the variables, indexed by {@link Slot#index}.
+     */
+    public final Object[] values;
+
+    /**
+     * Unboxed storage for variables of type {@code Int}, {@code Float} (as raw long bits) and
+     * {@code Bool} (0 or 1), indexed by {@link Slot#index}. Only used by the closure engine and the
+     * register VM, null for frames created without unboxed storage.
+     */
+    public final long[] primitives;
+
+    /**
+     * Set by the closure engine when a return statement executes in this frame, which stops the
+     * execution of the enclosing statement sequences and loops. The returned value (if any) is
+     * held in {@link #returnValue}.
+     */
+    public boolean returning;
+
+    public Object returnValue;
+
+    /**
+     * Set by the closure engine together with {@link #returning} when a return statement performs
+     * a self tail call, after storing the arguments in the parameter slots of this frame: the body
+     * of the function must be run again in the same frame.
+     */
+    public boolean tailCall;
+
+    // ---------------------------------------------------------------------------------------------
+
+    public Frame (FrameLayout layout, Frame link, Frame caller) {
+        this(layout, link, caller, false);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    public Frame (FrameLayout layout, Frame link, Frame caller, boolean unboxed) {
+        this.layout = layout;
+        this.link = link;
+        this.caller = caller;
+        this.values = new Object[layout.size()];
+        this.primitives = unboxed ? new long[layout.size()] : null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates a frame for the {@link RegisterVM}, with unboxed storage and room for {@code
+     * registers} values (at least the size of the layout) in both {@link #values} and {@link
+     * #primitives}.
+     */
+    public Frame (FrameLayout layout, Frame link, Frame caller, int registers) {
+        this.layout = layout;
+        this.link = link;
+        this.caller = caller;
+        this.values = new Object[registers];
+        this.primitives = new long[registers];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * To be called on the root frame to initialize its variables.
+     */
+    public void initRoot (RootScope root, SlotResolution slots)
+    {
+        values[slots.slot(root._true) .index] = true;
+        values[slots.slot(root._false).index] = false;
+        values[slots.slot(root._null) .index] = Null.INSTANCE;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public String toString() {
+        return "Frame " + Arrays.toString(values);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,65 @@
+package norswap.sigh.interpreter;
+
+import norswap.sigh.ast.FunDeclarationNode;
+import norswap.sigh.ast.RootNode;
+import norswap.sigh.ast.SighNode;
+
+/**
+ * Describes the shape of the {@link Frame frames} created for a function (or for the main
+ * script), as computed by {@link SlotResolution}.
+ */
+public final class FrameLayout
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The {@link FunDeclarationNode} or {@link RootNode} whose invocations use this layout.
+     */
+    public final SighNode node;
+
+    /**
+     * The layout of the lexically enclosing function (or of the main script), or null for the
+     * layout of the main script.
+     */
+    public final FrameLayout parent;
+
+    /**
+     * The function nesting depth, 0 for the main script.
+     */
+    public final int depth;
+
+    // ---------------------------------------------------------------------------------------------
+
+    private int size = 0;
+
+    // ---------------------------------------------------------------------------------------------
+
+    FrameLayout (SighNode node, FrameLayout parent) {
+        this.node = node;
+        this.parent = parent;
+        this.depth = parent == null ? 0 : parent.depth + 1;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Number of slots in frames using this layout.
+     */
+    public int size() {
+        return size;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    void reserve (int size) {
+        this.size = Math.max(this.size, size);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public String toString () {
+        return "FrameLayout(" + node + ", " + size + ")";
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
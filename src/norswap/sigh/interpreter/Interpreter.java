@@ -1,22 +1,27 @@
 package norswap.sigh.interpreter;
 
+import norswap.sigh.ConstantFolding;
+import norswap.sigh.SemanticAnalysis;
 import norswap.sigh.ast.*;
 import norswap.sigh.scopes.DeclarationKind;
 import norswap.sigh.scopes.RootScope;
 import norswap.sigh.scopes.Scope;
 import norswap.sigh.scopes.SyntheticDeclarationNode;
+import norswap.sigh.types.ArrayType;
 import norswap.sigh.types.FloatType;
+import norswap.sigh.types.FunType;
 import norswap.sigh.types.IntType;
 import norswap.sigh.types.StringType;
 import norswap.sigh.types.Type;
+import norswap.sigh.types.VoidType;
 import norswap.uranium.Reactor;
-import norswap.utils.Util;
 import norswap.utils.exceptions.Exceptions;
-import norswap.utils.exceptions.NoStackException;
 import norswap.utils.visitors.ValuedVisitor;
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
+import java.lang.invoke.MethodHandle;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
 
 import static norswap.utils.Util.cast;
 import static norswap.utils.Vanilla.coIterate;
@@ -37,13 +42,26 @@ import static norswap.utils.Vanilla.map;
  *     <li>{@code Int}, {@code Float}, {@code Bool}: {@link Long}, {@link Double}, {@link Boolean}</li>
  *     <li>{@code String}: {@link String}</li>
  *     <li>{@code null}: {@link Null#INSTANCE}</li>
- *     <li>Arrays: {@code Object[]}</li>
- *     <li>Structs: {@code HashMap<String, Object>}</li>
+ *     <li>Arrays: {@code long[]}, {@code double[]} and {@code boolean[]} for arrays of {@code Int},
+ *     {@code Float} and {@code Bool}, {@code Object[]} otherwise (see {@link SighArrays})</li>
+ *     <li>Structs: {@link Struct}</li>
  *     <li>Functions: the corresponding {@link DeclarationNode} ({@link FunDeclarationNode} or
  *     {@link SyntheticDeclarationNode}), excepted structure constructors, which are
  *     represented by {@link Constructor}</li>
  *     <li>Types: the corresponding {@link StructDeclarationNode}</li>
  * </ul>
+ *
+ * <p>If a {@link ConstantFolding} is supplied to the constructor, constant expressions evaluate
+ * directly to their folded value.
+ *
+ * <p>If a {@link TieredExecution} is supplied to the constructor, function invocations and loop
+ * back edges are reported to it, and calls to the functions it has compiled run the compiled code
+ * instead of being interpreted.
+ *
+ * <p>Variable storage: by default, variables are stored in a {@link ScopeStorage} per executed
+ * scope and looked up by name. If a {@link SlotResolution} is supplied to the constructor, the
+ * interpreter runs in frame mode instead: each function invocation gets a single {@link Frame} and
+ * variables are accessed by index.
  */
 public final class Interpreter
 {
@@ -55,10 +73,85 @@ public final class Interpreter
     private RootScope rootScope;
     private ScopeStorage rootStorage;
 
+    /**
+     * Set by a return statement, and cleared by the function call (or main script) it returns
+     * from. Statement sequences and loops stop executing as soon as it is set, which implements
+     * the control flow of the return statement without exceptions.
+     */
+    private boolean returning = false;
+    private Object returnValue;
+
+    /**
+     * Set instead of {@link #returnValue} by a return statement performing a self tail call: the
+     * arguments of the call, to be bound to the parameters before running the body of the function
+     * again.
+     */
+    private Object[] tailCallArguments;
+
+    /** Null unless running in frame mode. */
+    private final SlotResolution slots;
+
+    /** Null unless constant expressions have been folded. */
+    private final ConstantFolding constants;
+
+    /** Null unless hot functions are compiled. */
+    private final TieredExecution tiers;
+
+    /** Returned by {@link #compiledCall} when the compiled code cannot be called. */
+    private static final Object NOT_COMPILED = new Object();
+    private Frame frame = null;
+    private Frame rootFrame;
+
+    /** Specialized operations for the binary expressions executed so far. */
+    private final IdentityHashMap<BinaryExpressionNode, BinaryOperation> specializations =
+        new IdentityHashMap<>();
+
+    private int deoptimizations = 0;
+
+    /** Inline caches for the call sites executed so far. */
+    private final IdentityHashMap<FunCallNode, CallSiteCache> callSiteCaches =
+        new IdentityHashMap<>();
+
     // ---------------------------------------------------------------------------------------------
 
     public Interpreter (Reactor reactor) {
+        this(reactor, null);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates an interpreter running in frame mode if {@code slots} is non-null. The slots must
+     * have been resolved over the tree that will be interpreted.
+     */
+    public Interpreter (Reactor reactor, SlotResolution slots) {
+        this(reactor, slots, null);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates an interpreter running in frame mode if {@code slots} is non-null, and using the
+     * values of the constant expressions if {@code constants} is non-null. Both must have been
+     * computed over the tree that will be interpreted.
+     */
+    public Interpreter (Reactor reactor, SlotResolution slots, ConstantFolding constants) {
+        this(reactor, slots, constants, null);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Like {@link #Interpreter(Reactor, SlotResolution, ConstantFolding)}, additionally compiling
+     * hot functions if {@code tiers} is non-null. It must have been created for the tree that will
+     * be interpreted.
+     */
+    public Interpreter (Reactor reactor, SlotResolution slots, ConstantFolding constants,
+                        TieredExecution tiers) {
         this.reactor = reactor;
+        this.slots = slots;
+        this.constants = constants;
+        this.tiers = tiers;
 
         // expressions
         visitor.register(IntLiteralNode.class,           this::intLiteral);
@@ -93,6 +186,7 @@ public final class Interpreter
     // ---------------------------------------------------------------------------------------------
 
     public Object interpret (SighNode root) {
+        SemanticAnalysis.freeze(reactor, root);
         try {
             return run(root);
         } catch (PassthroughException e) {
@@ -105,24 +199,13 @@ public final class Interpreter
     private Object run (SighNode node) {
         try {
             return visitor.apply(node);
-        } catch (InterpreterException | Return | PassthroughException e) {
+        } catch (InterpreterException | PassthroughException e) {
             throw e;
         } catch (RuntimeException e) {
             throw new InterpreterException("exception while executing " + node, e);
         }
     }
 
-    // ---------------------------------------------------------------------------------------------
-
-    /**
-     * Used to implement the control flow of the return statement.
-     */
-    private static class Return extends NoStackException {
-        final Object value;
-        private Return (Object value) {
-            this.value = value;
-        }
-    }
 
     // ---------------------------------------------------------------------------------------------
 
@@ -152,16 +235,25 @@ public final class Interpreter
 
     // ---------------------------------------------------------------------------------------------
 
-    private Object[] arrayLiteral (ArrayLiteralNode node) {
-        return map(node.components, new Object[0], visitor);
+    private Object arrayLiteral (ArrayLiteralNode node) {
+        ArrayType type = (ArrayType) node.type();
+        return SighArrays.make(type.componentType, map(node.components, new Object[0], visitor));
     }
 
     // ---------------------------------------------------------------------------------------------
 
     private Object binaryExpression (BinaryExpressionNode node)
     {
-        Type leftType  = reactor.get(node.left, "type");
-        Type rightType = reactor.get(node.right, "type");
+        BinaryOperation operation = specializations.get(node);
+        if (operation == null && constants != null) {
+            Object value = constants.value(node);
+            if (value != null) {
+                operation = new BinaryOperation.Constant(value);
+                specializations.put(node, operation);
+            }
+        }
+        if (operation instanceof BinaryOperation.Constant)
+            return ((BinaryOperation.Constant) operation).value;
 
         // Cases where both operands should not be evaluated.
         switch (node.operator) {
@@ -172,24 +264,30 @@ public final class Interpreter
         Object left  = get(node.left);
         Object right = get(node.right);
 
-        if (node.operator == BinaryOperator.ADD
-                && (leftType instanceof StringType || rightType instanceof StringType))
-            return convertToString(left) + convertToString(right);
-
-        boolean floating = leftType instanceof FloatType || rightType instanceof FloatType;
-        boolean numeric  = floating || leftType instanceof IntType;
-
-        if (numeric)
-            return numericOp(node, floating, (Number) left, (Number) right);
+        if (operation == null) {
+            operation = BinaryOperation.specialize(node.operator,
+                node.left.type(), node.right.type(), left, right);
+            specializations.put(node, operation);
+        }
 
-        switch (node.operator) {
-            case EQUALITY:
-                return  leftType.isPrimitive() ? left.equals(right) : left == right;
-            case NOT_EQUALS:
-                return  leftType.isPrimitive() ? !left.equals(right) : left != right;
+        Object result = operation.apply(left, right);
+        if (result == BinaryOperation.DEOPTIMIZE) {
+            ++deoptimizations;
+            operation = operation.generic();
+            specializations.put(node, operation);
+            result = operation.apply(left, right);
         }
+        return result;
+    }
 
-        throw new Error("should not reach here");
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Number of times the specialized operation of a binary expression had to be replaced by a
+     * generic one, because the operand values did not match the specialization.
+     */
+    public int deoptimizations () {
+        return deoptimizations;
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -204,75 +302,28 @@ public final class Interpreter
 
     // ---------------------------------------------------------------------------------------------
 
-    private Object numericOp
-            (BinaryExpressionNode node, boolean floating, Number left, Number right)
-    {
-        long ileft, iright;
-        double fleft, fright;
-
-        if (floating) {
-            fleft  = left.doubleValue();
-            fright = right.doubleValue();
-            ileft = iright = 0;
-        } else {
-            ileft  = left.longValue();
-            iright = right.longValue();
-            fleft = fright = 0;
-        }
-
-        Object result;
-        if (floating)
-            switch (node.operator) {
-                case MULTIPLY:      return fleft *  fright;
-                case DIVIDE:        return fleft /  fright;
-                case REMAINDER:     return fleft %  fright;
-                case ADD:           return fleft +  fright;
-                case SUBTRACT:      return fleft -  fright;
-                case GREATER:       return fleft >  fright;
-                case LOWER:         return fleft <  fright;
-                case GREATER_EQUAL: return fleft >= fright;
-                case LOWER_EQUAL:   return fleft <= fright;
-                case EQUALITY:      return fleft == fright;
-                case NOT_EQUALS:    return fleft != fright;
-                default:
-                    throw new Error("should not reach here");
-            }
-        else
-            switch (node.operator) {
-                case MULTIPLY:      return ileft *  iright;
-                case DIVIDE:        return ileft /  iright;
-                case REMAINDER:     return ileft %  iright;
-                case ADD:           return ileft +  iright;
-                case SUBTRACT:      return ileft -  iright;
-                case GREATER:       return ileft >  iright;
-                case LOWER:         return ileft <  iright;
-                case GREATER_EQUAL: return ileft >= iright;
-                case LOWER_EQUAL:   return ileft <= iright;
-                case EQUALITY:      return ileft == iright;
-                case NOT_EQUALS:    return ileft != iright;
-                default:
-                    throw new Error("should not reach here");
-            }
-    }
-
-    // ---------------------------------------------------------------------------------------------
-
     public Object assignment (AssignmentNode node)
     {
         if (node.left instanceof ReferenceNode) {
-            Scope scope = reactor.get(node.left, "scope");
-            String name = ((ReferenceNode) node.left).name;
             Object rvalue = get(node.right);
-            assign(scope, name, rvalue, reactor.get(node, "type"));
+            if (slots != null) {
+                assign(slots.slot(node.left), rvalue, node.type());
+                return rvalue;
+            }
+            Scope scope = ((ReferenceNode) node.left).scope();
+            String name = ((ReferenceNode) node.left).name;
+            assign(scope, name, rvalue, node.type());
             return rvalue;
         }
 
         if (node.left instanceof ArrayAccessNode) {
             ArrayAccessNode arrayAccess = (ArrayAccessNode) node.left;
-            Object[] array = getNonNullArray(arrayAccess.array);
+            Object array = getNonNullArray(arrayAccess.array);
             int index = getIndex(arrayAccess.index);
             try {
-                return array[index] = get(node.right);
+                Object right = get(node.right);
+                SighArrays.set(array, index, right);
+                return right;
             } catch (ArrayIndexOutOfBoundsException e) {
                 throw new PassthroughException(e);
             }
@@ -284,9 +335,9 @@ public final class Interpreter
             if (object == Null.INSTANCE)
                 throw new PassthroughException(
                     new NullPointerException("accessing field of null object"));
-            Map<String, Object> struct = cast(object);
+            int index = fieldAccess.fieldIndex();
             Object right = get(node.right);
-            struct.put(fieldAccess.fieldName, right);
+            ((Struct) object).fields[index] = right;
             return right;
         }
 
@@ -307,12 +358,12 @@ public final class Interpreter
 
     // ---------------------------------------------------------------------------------------------
 
-    private Object[] getNonNullArray (ExpressionNode node)
+    private Object getNonNullArray (ExpressionNode node)
     {
         Object object = get(node);
         if (object == Null.INSTANCE)
             throw new PassthroughException(new NullPointerException("indexing null array"));
-        return (Object[]) object;
+        return object;
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -321,16 +372,17 @@ public final class Interpreter
     {
         // there is only NOT
         assert node.operator == UnaryOperator.NOT;
-        return ! (boolean) get(node.operand);
+        Object value = constants == null ? null : constants.value(node);
+        return value != null ? value : ! (boolean) get(node.operand);
     }
 
     // ---------------------------------------------------------------------------------------------
 
     private Object arrayAccess (ArrayAccessNode node)
     {
-        Object[] array = getNonNullArray(node.array);
+        Object array = getNonNullArray(node.array);
         try {
-            return array[getIndex(node.index)];
+            return SighArrays.get(array, getIndex(node.index));
         } catch (ArrayIndexOutOfBoundsException e) {
             throw new PassthroughException(e);
         }
@@ -340,28 +392,65 @@ public final class Interpreter
 
     private Object root (RootNode node)
     {
-        assert storage == null;
+        assert storage == null && frame == null;
         rootScope = reactor.get(node, "scope");
-        storage = rootStorage = new ScopeStorage(rootScope, null);
-        storage.initRoot(rootScope);
+
+        if (slots != null) {
+            frame = rootFrame = new Frame(slots.layout(node), null, null);
+            frame.initRoot(rootScope, slots);
+        } else {
+            storage = rootStorage = new ScopeStorage(rootScope, null);
+            storage.initRoot(rootScope);
+        }
 
         try {
-            node.statements.forEach(this::run);
-        } catch (Return r) {
-            return r.value;
-            // allow returning from the main script
+            runStatements(node.statements);
+            return popReturnValue(); // allow returning from the main script
         } finally {
             storage = null;
+            frame = null;
+            returning = false;
         }
-        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Runs the statements in order, stopping after a return statement.
+     */
+    private void runStatements (List<StatementNode> statements)
+    {
+        for (StatementNode statement: statements) {
+            run(statement);
+            if (returning) return;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * To be called after running the body of a function (or the main script): returns the
+     * returned value (or null if there was no return statement) and clears the return status.
+     */
+    private Object popReturnValue ()
+    {
+        if (!returning) return null;
+        returning = false;
+        Object value = returnValue;
+        returnValue = null;
+        return value;
     }
 
     // ---------------------------------------------------------------------------------------------
 
     private Void block (BlockNode node) {
-        Scope scope = reactor.get(node, "scope");
-        storage = new ScopeStorage(scope, storage);
-        node.statements.forEach(this::run);
+        if (slots != null) {
+            // block variables live in the frame of the surrounding function
+            runStatements(node.statements);
+            return null;
+        }
+        storage = new ScopeStorage(node.scope(), storage);
+        runStatements(node.statements);
         storage = storage.parent;
         return null;
     }
@@ -388,9 +477,9 @@ public final class Interpreter
         if (stem == Null.INSTANCE)
             throw new PassthroughException(
                 new NullPointerException("accessing field of null object"));
-        return stem instanceof Map
-                ? Util.<Map<String, Object>>cast(stem).get(node.fieldName)
-                : (long) ((Object[]) stem).length; // only field on arrays
+        return stem instanceof Struct
+                ? ((Struct) stem).fields[node.fieldIndex()]
+                : (long) SighArrays.length(stem); // only field on arrays
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -398,34 +487,232 @@ public final class Interpreter
     private Object funCall (FunCallNode node)
     {
         Object decl = get(node.function);
-        node.arguments.forEach(this::run);
         Object[] args = map(node.arguments, new Object[0], visitor);
 
         if (decl == Null.INSTANCE)
             throw new PassthroughException(new NullPointerException("calling a null function"));
 
-        if (decl instanceof SyntheticDeclarationNode)
-            return builtin(((SyntheticDeclarationNode) decl).name(), args);
+        CallSiteCache cache = callSiteCaches.get(node);
+        if (cache == null)
+            callSiteCaches.put(node, cache = new CallSiteCache());
+
+        Object key = CallSiteCache.key(decl);
+        CallSiteCache.Target target = cache.lookup(key);
+        if (target == null)
+            cache.add(target = resolveCallTarget(key));
+
+        if (target.builtin != null)
+            return builtin(target.builtin.name(), args);
+
+        if (target.struct != null)
+            return buildStruct(target.struct, args);
+
+        if (tiers != null) {
+            MethodHandle compiled = tiers.invoked(target.function);
+            if (compiled != null) {
+                Object result = compiledCall(target.function, compiled, args);
+                if (result != NOT_COMPILED) return result;
+            }
+        }
 
-        if (decl instanceof Constructor)
-            return buildStruct(((Constructor) decl).declaration, args);
+        if (slots != null)
+            return frameCall(target, args);
 
         ScopeStorage oldStorage = storage;
-        Scope scope = reactor.get(decl, "scope");
+        Scope scope = target.scope;
         storage = new ScopeStorage(scope, storage);
 
-        FunDeclarationNode funDecl = (FunDeclarationNode) decl;
-        coIterate(args, funDecl.parameters,
-                (arg, param) -> storage.set(scope, param.name, arg));
+        FunDeclarationNode funDecl = target.function;
+        ScopeStorage funStorage = storage;
 
         try {
-            get(funDecl.block);
-        } catch (Return r) {
-            return r.value;
+            for (Object[] arguments = args; arguments != null; arguments = popTailCallArguments()) {
+                coIterate(arguments, funDecl.parameters,
+                    (arg, param) -> funStorage.set(scope, param.name, arg));
+                get(funDecl.block);
+            }
+            return popReturnValue();
         } finally {
             storage = oldStorage;
         }
-        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Resolves everything needed to call the callee with the given cache key (see {@link
+     * CallSiteCache#key(Object)}) that does not depend on the execution state.
+     */
+    private CallSiteCache.Target resolveCallTarget (Object key)
+    {
+        if (key instanceof SyntheticDeclarationNode)
+            return new CallSiteCache.Target(key,
+                (SyntheticDeclarationNode) key, null, null, null, null, null);
+
+        if (key instanceof StructDeclarationNode)
+            return new CallSiteCache.Target(key,
+                null, (StructDeclarationNode) key, null, null, null, null);
+
+        FunDeclarationNode decl = (FunDeclarationNode) key;
+
+        if (slots == null)
+            return new CallSiteCache.Target(key,
+                null, null, decl, reactor.get(decl, "scope"), null, null);
+
+        int[] parameterIndices = new int[decl.parameters.size()];
+        for (int i = 0; i < parameterIndices.length; ++i)
+            parameterIndices[i] = slots.slot(decl.parameters.get(i)).index;
+
+        return new CallSiteCache.Target(key,
+            null, null, decl, null, slots.layout(decl), parameterIndices);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Object frameCall (CallSiteCache.Target target, Object[] args)
+    {
+        Frame oldFrame = frame;
+        FrameLayout layout = target.layout;
+        frame = new Frame(layout, staticLink(layout), frame);
+
+        Object[] values = frame.values;
+        int[] parameterIndices = target.parameterIndices;
+
+        try {
+            // self tail calls reuse the frame
+            for (Object[] arguments = args; arguments != null; arguments = popTailCallArguments()) {
+                for (int i = 0; i < parameterIndices.length; ++i)
+                    values[parameterIndices[i]] = arguments[i];
+                get(target.function.block);
+            }
+            return popReturnValue();
+        } finally {
+            frame = oldFrame;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Calls the compiled method of the given function (see {@link TieredExecution}), converting
+     * the values to and from the representation of compiled code. Returns {@link #NOT_COMPILED}
+     * if the function uses a top-level variable that has not been initialized yet.
+     */
+    private Object compiledCall (FunDeclarationNode function, MethodHandle compiled, Object[] args)
+    {
+        FunType type = reactor.get(function, "type");
+        List<DeclarationNode> free = tiers.freeVariables(function);
+        Object[] values = new Object[args.length + free.size()];
+
+        for (int i = 0; i < args.length; ++i)
+            values[i] = compiledValue(args[i], type.paramTypes[i]);
+
+        for (int i = 0; i < free.size(); ++i) {
+            DeclarationNode decl = free.get(i);
+            Object value = slots != null
+                ? rootFrame.values[slots.slot(decl).index]
+                : rootStorage.get(rootScope, decl.name());
+            if (value == null) return NOT_COMPILED;
+            values[args.length + i] = compiledValue(value, reactor.get(decl, "type"));
+        }
+
+        Object result;
+        try {
+            result = (Object) compiled.invokeExact(values);
+        } catch (ArrayIndexOutOfBoundsException | NullPointerException e) {
+            // thrown as such by the interpreted code as well
+            throw new PassthroughException(e);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw Exceptions.runtime(t);
+        }
+
+        return result == null && !(type.returnType instanceof VoidType)
+            ? Null.INSTANCE
+            : result;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Converts an interpreter value of the given static type to its compiled representation.
+     */
+    private static Object compiledValue (Object value, Type type)
+    {
+        if (value == Null.INSTANCE)
+            return null;
+        if (type instanceof FloatType && value instanceof Long) // no implicit conversion
+            return ((Long) value).doubleValue();
+        return value;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the inline cache of the given call site, or null if the call site has never been
+     * executed.
+     */
+    public CallSiteCache callSiteCache (FunCallNode node) {
+        return callSiteCaches.get(node);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the inline caches of all the call sites executed so far.
+     */
+    public Collection<CallSiteCache> callSiteCaches () {
+        return Collections.unmodifiableCollection(callSiteCaches.values());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * To be called after running the body of a function: if it ended with a self tail call,
+     * returns the arguments of the call and clears the return status, so that the body can be run
+     * again. Returns null otherwise.
+     */
+    private Object[] popTailCallArguments ()
+    {
+        Object[] arguments = tailCallArguments;
+        if (arguments != null) {
+            tailCallArguments = null;
+            returning = false;
+        }
+        return arguments;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the frame that the static link of a new frame with the given layout must point to:
+     * the latest active frame of the lexically enclosing function.
+     */
+    private Frame staticLink (FrameLayout layout)
+    {
+        if (layout.parent.depth == 0)
+            return rootFrame;
+        for (Frame caller = frame; caller != null; caller = caller.caller)
+            if (caller.layout == layout.parent)
+                return caller;
+        return null; // enclosing function is not active, using its variables will fail
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the frame holding the variable with the given slot, which must be accessible from
+     * the current frame.
+     */
+    private Frame frameFor (Slot slot)
+    {
+        if (slot.depth == 0)
+            return rootFrame;
+        Frame frame = this.frame;
+        while (frame.layout.depth != slot.depth)
+            frame = frame.link;
+        return frame;
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -440,12 +727,15 @@ public final class Interpreter
 
     // ---------------------------------------------------------------------------------------------
 
-    private String convertToString (Object arg)
+    /**
+     * Converts a runtime value to the string used to represent it when printing or concatenating.
+     */
+    public static String convertToString (Object arg)
     {
         if (arg == Null.INSTANCE)
             return "null";
-        else if (arg instanceof Object[])
-            return Arrays.deepToString((Object[]) arg);
+        else if (arg.getClass().isArray())
+            return SighArrays.toString(arg);
         else if (arg instanceof FunDeclarationNode)
             return ((FunDeclarationNode) arg).name;
         else if (arg instanceof StructDeclarationNode)
@@ -458,12 +748,8 @@ public final class Interpreter
 
     // ---------------------------------------------------------------------------------------------
 
-    private HashMap<String, Object> buildStruct (StructDeclarationNode node, Object[] args)
-    {
-        HashMap<String, Object> struct = new HashMap<>();
-        for (int i = 0; i < node.fields.size(); ++i)
-            struct.put(node.fields.get(i).name, args[i]);
-        return struct;
+    private Struct buildStruct (StructDeclarationNode node, Object[] args) {
+        return new Struct(node, args);
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -481,8 +767,11 @@ public final class Interpreter
 
     private Void whileStmt (WhileNode node)
     {
-        while (get(node.condition))
+        while (get(node.condition)) {
             get(node.body);
+            if (returning) break;
+            if (tiers != null) tiers.backEdge(node);
+        }
         return null;
     }
 
@@ -490,8 +779,20 @@ public final class Interpreter
 
     private Object reference (ReferenceNode node)
     {
-        Scope scope = reactor.get(node, "scope");
-        DeclarationNode decl = reactor.get(node, "decl");
+        if (constants != null) {
+            Object value = constants.value(node);
+            if (value != null) return value;
+        }
+
+        if (slots != null) {
+            Slot slot = slots.slot(node);
+            return slot != null
+                ? frameFor(slot).values[slot.index]
+                : node.decl(); // structure or function
+        }
+
+        Scope scope = node.scope();
+        DeclarationNode decl = node.decl();
 
         if (decl instanceof VarDeclarationNode
         || decl instanceof ParameterNode
@@ -506,26 +807,47 @@ public final class Interpreter
 
     // ---------------------------------------------------------------------------------------------
 
-    private Void returnStmt (ReturnNode node) {
-        throw new Return(node.expression == null ? null : get(node.expression));
+    private Void returnStmt (ReturnNode node)
+    {
+        if (node.tailCall())
+            // the call itself is performed by the caller of the current function body
+            tailCallArguments = map(((FunCallNode) node.expression).arguments, new Object[0], visitor);
+        else
+            returnValue = node.expression == null ? null : get(node.expression);
+        returning = true;
+        return null;
     }
 
     // ---------------------------------------------------------------------------------------------
 
     private Void varDecl (VarDeclarationNode node)
     {
-        Scope scope = reactor.get(node, "scope");
-        assign(scope, node.name, get(node.initializer), reactor.get(node, "type"));
+        if (slots != null) {
+            assign(slots.slot(node), get(node.initializer), node.variableType());
+            return null;
+        }
+        assign(node.scope(), node.name, get(node.initializer), node.variableType());
         return null;
     }
 
     // ---------------------------------------------------------------------------------------------
 
-    private void assign (Scope scope, String name, Object value, Type targetType)
-    {
-        if (value instanceof Long && targetType instanceof FloatType)
-            value = ((Long) value).doubleValue();
-        storage.set(scope, name, value);
+    private void assign (Scope scope, String name, Object value, Type targetType) {
+        storage.set(scope, name, implicitConversion(value, targetType));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void assign (Slot slot, Object value, Type targetType) {
+        frameFor(slot).values[slot.index] = implicitConversion(value, targetType);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Object implicitConversion (Object value, Type targetType) {
+        return value instanceof Long && targetType instanceof FloatType
+            ? ((Long) value).doubleValue()
+            : value;
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -5,7 +5,7 @@ package norswap.sigh.interpreter;
  * interpreter (i.e. to mark exceptions that aren't caused by a bug in the interpreter, but
  * are thrown on purpose).
  */
-final class PassthroughException extends RuntimeException {
+public final class PassthroughException extends RuntimeException {
     public PassthroughException (Throwable cause) {
         super(cause);
     }
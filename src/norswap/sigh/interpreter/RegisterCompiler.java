@@ -0,0 +1,817 @@
+package norswap.sigh.interpreter;
+
+import norswap.sigh.SemanticAnalysis;
+import norswap.sigh.ast.*;
+import norswap.sigh.scopes.RootScope;
+import norswap.sigh.scopes.SyntheticDeclarationNode;
+import norswap.sigh.types.ArrayType;
+import norswap.sigh.types.BoolType;
+import norswap.sigh.types.FloatType;
+import norswap.sigh.types.FunType;
+import norswap.sigh.types.IntType;
+import norswap.sigh.types.StringType;
+import norswap.sigh.types.Type;
+import norswap.uranium.Reactor;
+import norswap.utils.visitors.ValuedVisitor;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import static norswap.sigh.interpreter.RegisterFunction.*;
+import static norswap.sigh.interpreter.RegisterOps.*;
+
+/**
+ * Lowers a Sigh AST that was successfully analyzed by {@link SemanticAnalysis} into compact
+ * register-based code (see {@link RegisterOps}), packaged as a {@link RegisterProgram} to be run
+ * by the {@link RegisterVM}.
+ *
+ * <p>Every function (and the main script) becomes a {@link RegisterFunction}. Its registers are
+ * the slots of its {@link Frame} as computed by {@link SlotResolution}, followed by temporaries:
+ * variables of the function are read and written in place, and expressions are evaluated into
+ * temporaries, which are reused from one statement to the next.
+ *
+ * <p>Runtime values have the same representation as in the {@link Interpreter}, except that
+ * values of type {@code Int}, {@code Float} and {@code Bool} live unboxed in the {@code p}
+ * register file. As in the closure engine, implicit conversions from {@code Int} to {@code Float}
+ * apply to assignments, function arguments, array elements, struct fields and returned values.
+ *
+ * <p>Arguments are evaluated exactly once, into a block of consecutive registers of the caller,
+ * from which the VM copies them into the parameter registers of the callee.
+ *
+ * <p>The entry point into this class is {@link #compile(SighNode)}.
+ */
+public final class RegisterCompiler
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private final ValuedVisitor<SighNode, Integer> visitor = new ValuedVisitor<>();
+    private final Reactor reactor;
+    private SlotResolution slots;
+    private IdentityHashMap<FunDeclarationNode, RegisterFunction> functions;
+
+    /** Declared functions whose body still has to be compiled. */
+    private final ArrayDeque<FunDeclarationNode> pending = new ArrayDeque<>();
+
+    // ---------------------------------------------------------------------------------------------
+    // State for the function being compiled
+
+    /** Function being compiled, or null for the main script. */
+    private FunDeclarationNode function;
+
+    private FrameLayout layout;
+
+    private int[] code;
+    private int size;
+    private ArrayList<Long> longConstants;
+    private ArrayList<Object> constants;
+
+    /** Next free temporary register. */
+    private int nextTemp;
+
+    /** Number of registers used so far. */
+    private int registers;
+
+    /** Start of the last emitted instruction. */
+    private int lastPc;
+
+    /**
+     * Start of the last emitted instruction whose only effect is to write its first operand,
+     * whose destination register can therefore be changed after the fact (see {@link
+     * #move(int, int, boolean)}), or -1.
+     */
+    private int resultPc;
+
+    // ---------------------------------------------------------------------------------------------
+
+    public RegisterCompiler (Reactor reactor)
+    {
+        this.reactor = reactor;
+
+        // expressions
+        visitor.register(IntLiteralNode.class,           this::intLiteral);
+        visitor.register(FloatLiteralNode.class,         this::floatLiteral);
+        visitor.register(StringLiteralNode.class,        this::stringLiteral);
+        visitor.register(ReferenceNode.class,            this::reference);
+        visitor.register(ConstructorNode.class,          this::constructor);
+        visitor.register(ArrayLiteralNode.class,         this::arrayLiteral);
+        visitor.register(ParenthesizedNode.class,        this::parenthesized);
+        visitor.register(FieldAccessNode.class,          this::fieldAccess);
+        visitor.register(ArrayAccessNode.class,          this::arrayAccess);
+        visitor.register(FunCallNode.class,              this::funCall);
+        visitor.register(UnaryExpressionNode.class,      this::unaryExpression);
+        visitor.register(BinaryExpressionNode.class,     this::binaryExpression);
+        visitor.register(AssignmentNode.class,           this::assignment);
+
+        // statement groups & declarations
+        visitor.register(RootNode.class,                 this::root);
+        visitor.register(BlockNode.class,                this::block);
+        visitor.register(VarDeclarationNode.class,       this::varDecl);
+        visitor.register(FunDeclarationNode.class,       this::funDecl);
+        // other declarations have no runtime behaviour (use fallback)
+
+        // statements
+        visitor.register(ExpressionStatementNode.class,  this::expressionStmt);
+        visitor.register(IfNode.class,                   this::ifStmt);
+        visitor.register(WhileNode.class,                this::whileStmt);
+        visitor.register(ReturnNode.class,               this::returnStmt);
+
+        visitor.registerFallback(node -> null);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Lowers the given tree, which must have been successfully analyzed using the reactor passed
+     * to the constructor.
+     */
+    public RegisterProgram compile (SighNode root)
+    {
+        slots = SlotResolution.resolve(reactor, root);
+        functions = new IdentityHashMap<>();
+
+        RegisterFunction main = new RegisterFunction(
+            root, slots.layout(root), new int[0], new byte[0], OBJECT);
+        compileBody(main, null, root);
+
+        while (!pending.isEmpty()) {
+            FunDeclarationNode decl = pending.poll();
+            compileBody(function(decl), decl, decl.block);
+        }
+
+        RootScope scope = reactor.get(root, "scope");
+        return new RegisterProgram(main, scope, slots, functions);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void compileBody (RegisterFunction compiled, FunDeclarationNode decl, SighNode body)
+    {
+        function = decl;
+        layout = compiled.layout;
+        code = new int[64];
+        size = 0;
+        longConstants = new ArrayList<>();
+        constants = new ArrayList<>();
+        nextTemp = registers = layout.size();
+        lastPc = resultPc = -1;
+
+        visitor.apply(body);
+        emit(RETURN); // functions without return value, or main script without return
+
+        compiled.code = Arrays.copyOf(code, size);
+        compiled.longConstants = longConstants.stream().mapToLong(Long::longValue).toArray();
+        compiled.constants = constants.toArray();
+        compiled.registers = registers;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the compiled function for the given declaration, creating it if it is referenced
+     * before being compiled.
+     */
+    private RegisterFunction function (FunDeclarationNode decl)
+    {
+        return functions.computeIfAbsent(decl, it -> {
+            int[] indices = new int[it.parameters.size()];
+            byte[] kinds = new byte[indices.length];
+            for (int i = 0; i < indices.length; ++i) {
+                ParameterNode param = it.parameters.get(i);
+                indices[i] = slots.slot(param).index;
+                kinds[i] = kind(param);
+            }
+            FunType type = reactor.get(it, "type");
+            return new RegisterFunction(it, slots.layout(it), indices, kinds,
+                kind(type.returnType));
+        });
+    }
+
+    // =============================================================================================
+    // Emission
+
+    private void emit (int opcode, int... operands)
+    {
+        if (size + 1 + operands.length > code.length)
+            code = Arrays.copyOf(code, Math.max(code.length * 2, size + 1 + operands.length));
+        lastPc = size;
+        code[size++] = opcode;
+        for (int operand: operands)
+            code[size++] = operand;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Emits an instruction whose only effect is to write its first operand {@code d}, and returns
+     * {@code d}.
+     */
+    private int emitResult (int opcode, int d, int... operands)
+    {
+        int[] all = new int[operands.length + 1];
+        all[0] = d;
+        System.arraycopy(operands, 0, all, 1, operands.length);
+        emit(opcode, all);
+        resultPc = lastPc;
+        return d;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Emits a jump with an unknown target, and returns the index of the target operand, to be
+     * filled in by {@link #patch(int)}.
+     */
+    private int emitJump (int opcode, int... operands)
+    {
+        int[] all = Arrays.copyOf(operands, operands.length + 1);
+        emit(opcode, all);
+        return size - 1;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Sets the target of the jump whose target operand is at {@code hole} to the current pc. */
+    private void patch (int hole) {
+        code[hole] = size;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Moves the value in register {@code s} to register {@code d}. If the value was just computed
+     * into a temporary, the instruction that computed it is changed to write to {@code d} instead.
+     */
+    private void move (int d, int s, boolean primitive)
+    {
+        if (d == s) return;
+        if (resultPc >= 0 && resultPc == lastPc && code[resultPc + 1] == s && s >= layout.size()) {
+            code[resultPc + 1] = d;
+            return;
+        }
+        emit(primitive ? MOVE_P : MOVE_O, d, s);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private int temp () {
+        return temps(1);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Allocates {@code n} consecutive temporary registers and returns the first one. */
+    private int temps (int n) {
+        int start = nextTemp;
+        nextTemp += n;
+        registers = Math.max(registers, nextTemp);
+        return start;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private int longConstant (long value) {
+        longConstants.add(value);
+        return longConstants.size() - 1;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private int constant (Object value) {
+        constants.add(value);
+        return constants.size() - 1;
+    }
+
+    // =============================================================================================
+    // Kinds & conversions
+
+    private static byte kind (Type type)
+    {
+        if (type instanceof IntType)    return LONG;
+        if (type instanceof FloatType)  return DOUBLE;
+        if (type instanceof BoolType)   return BOOLEAN;
+        return OBJECT;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Returns the kind of the value of the given expression. */
+    private byte kind (ExpressionNode node) {
+        return kind(reactor.<Type>get(node, "type"));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the kind of the variable with the given declaration. Only user-declared variables
+     * are stored unboxed: the built-in variables are initialized by {@link Frame#initRoot}.
+     */
+    private byte kind (DeclarationNode decl) {
+        return decl instanceof VarDeclarationNode || decl instanceof ParameterNode
+            ? kind(reactor.<Type>get(decl, "type"))
+            : OBJECT;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private int box (int s, byte kind)
+    {
+        switch (kind) {
+            case LONG:    return emitResult(BOX_L, temp(), s);
+            case DOUBLE:  return emitResult(BOX_D, temp(), s);
+            case BOOLEAN: return emitResult(BOX_B, temp(), s);
+            default:      return s;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private int unbox (int s, byte kind)
+    {
+        switch (kind) {
+            case LONG:    return emitResult(UNBOX_L, temp(), s);
+            case DOUBLE:  return emitResult(UNBOX_D, temp(), s);
+            case BOOLEAN: return emitResult(UNBOX_B, temp(), s);
+            default:      return s;
+        }
+    }
+
+    // =============================================================================================
+    // Expressions
+
+    /** Compiles an expression, returning the register holding its value. */
+    private int expression (ExpressionNode node) {
+        return visitor.apply(node);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Compiles an expression whose value will be stored in a location of type {@code target},
+     * inserting an implicit conversion if required.
+     */
+    private int expressionAs (ExpressionNode node, Type target)
+    {
+        int s = expression(node);
+        Type type = reactor.get(node, "type");
+        return type instanceof IntType && target instanceof FloatType
+            ? emitResult(I2D, temp(), s)
+            : s;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Compiles the expressions into a block of consecutive registers, converting each of them to
+     * the corresponding target type, and boxing them if {@code boxed} is set. Returns the first
+     * register of the block.
+     */
+    private int argumentBlock (List<ExpressionNode> nodes, Type[] targets, boolean boxed)
+    {
+        int start = temps(nodes.size());
+        for (int i = 0; i < nodes.size(); ++i) {
+            byte kind = kind(targets[i]);
+            int value = expressionAs(nodes.get(i), targets[i]);
+            if (boxed)
+                move(start + i, box(value, kind), false);
+            else
+                move(start + i, value, kind != OBJECT);
+        }
+        return start;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * If {@code s} is a variable of the current frame and one of the {@code later} expressions,
+     * which are evaluated before the value in {@code s} is used, could modify variables, copies
+     * the value to a temporary and returns it, otherwise returns {@code s}.
+     */
+    private int protect (int s, byte kind, ExpressionNode... later)
+    {
+        if (s >= layout.size())
+            return s;
+        for (ExpressionNode node: later)
+            if (!pure(node))
+                return emitResult(kind != OBJECT ? MOVE_P : MOVE_O, temp(), s);
+        return s;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Whether evaluating the expression cannot modify any variable. */
+    private static boolean pure (ExpressionNode node)
+    {
+        if (node instanceof FunCallNode || node instanceof AssignmentNode)
+            return false;
+        if (node instanceof ParenthesizedNode)
+            return pure(((ParenthesizedNode) node).expression);
+        if (node instanceof UnaryExpressionNode)
+            return pure(((UnaryExpressionNode) node).operand);
+        if (node instanceof BinaryExpressionNode)
+            return pure(((BinaryExpressionNode) node).left)
+                && pure(((BinaryExpressionNode) node).right);
+        if (node instanceof FieldAccessNode)
+            return pure(((FieldAccessNode) node).stem);
+        if (node instanceof ArrayAccessNode)
+            return pure(((ArrayAccessNode) node).array)
+                && pure(((ArrayAccessNode) node).index);
+        if (node instanceof ArrayLiteralNode)
+            return ((ArrayLiteralNode) node).components.stream()
+                .allMatch(RegisterCompiler::pure);
+        return true;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Integer intLiteral (IntLiteralNode node) {
+        return emitResult(CONST_P, temp(), longConstant(node.value));
+    }
+
+    private Integer floatLiteral (FloatLiteralNode node) {
+        return emitResult(CONST_P, temp(), longConstant(Double.doubleToRawLongBits(node.value)));
+    }
+
+    private Integer stringLiteral (StringLiteralNode node) {
+        return emitResult(CONST_O, temp(), constant(node.value));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Integer parenthesized (ParenthesizedNode node) {
+        return expression(node.expression);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Integer arrayLiteral (ArrayLiteralNode node)
+    {
+        ArrayType type = reactor.get(node, "type");
+        Type[] targets = new Type[node.components.size()];
+        Arrays.fill(targets, type.componentType);
+        int start = argumentBlock(node.components, targets, false);
+        switch (kind(type.componentType)) {
+            case LONG:    return emitResult(NEW_ARRAY_L, temp(), start, targets.length);
+            case DOUBLE:  return emitResult(NEW_ARRAY_D, temp(), start, targets.length);
+            case BOOLEAN: return emitResult(NEW_ARRAY_B, temp(), start, targets.length);
+            default:      return emitResult(NEW_ARRAY_O, temp(), start, targets.length);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Integer reference (ReferenceNode node)
+    {
+        Slot slot = slots.slot(node);
+        DeclarationNode decl = reactor.get(node, "decl");
+        if (slot == null) // structure or function
+            return emitResult(CONST_O, temp(), constant(decl));
+
+        byte stored = kind(decl);
+        int hops = layout.depth - slot.depth;
+        int s = hops == 0
+            ? slot.index
+            : emitResult(stored != OBJECT ? LOAD_P : LOAD_O, temp(), hops, slot.index);
+
+        // built-in variables (true, false) are stored boxed
+        return stored == OBJECT ? unbox(s, kind(node)) : s;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Integer constructor (ConstructorNode node) {
+        // guaranteed safe by semantic analysis
+        StructDeclarationNode decl = reactor.get(node.ref, "decl");
+        return emitResult(CONST_O, temp(), constant(new Constructor(decl)));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Integer fieldAccess (FieldAccessNode node)
+    {
+        Type stemType = reactor.get(node.stem, "type");
+        int stem = expression(node.stem);
+        if (stemType instanceof ArrayType) // only field on arrays
+            return emitResult(LENGTH, temp(), stem);
+        int index = reactor.get(node, "fieldIndex");
+        int field = emitResult(GET_FIELD, temp(), stem, index);
+        return unbox(field, kind(node));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Integer arrayAccess (ArrayAccessNode node)
+    {
+        int array = protect(expression(node.array), OBJECT, node.index);
+        int index = expression(node.index);
+        switch (kind(node)) {
+            case LONG:    return emitResult(ALOAD_L, temp(), array, index);
+            case DOUBLE:  return emitResult(ALOAD_D, temp(), array, index);
+            case BOOLEAN: return emitResult(ALOAD_B, temp(), array, index);
+            default:      return emitResult(ALOAD_O, temp(), array, index);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Integer unaryExpression (UnaryExpressionNode node)
+    {
+        // there is only NOT
+        assert node.operator == UnaryOperator.NOT;
+        return emitResult(NOT, temp(), expression(node.operand));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Integer binaryExpression (BinaryExpressionNode node)
+    {
+        Type leftType  = reactor.get(node.left, "type");
+        Type rightType = reactor.get(node.right, "type");
+
+        switch (node.operator) {
+            case OR:  return shortCircuit(node, JUMP_TRUE);
+            case AND: return shortCircuit(node, JUMP_FALSE);
+        }
+
+        if (node.operator == BinaryOperator.ADD
+                && (leftType instanceof StringType || rightType instanceof StringType)) {
+            int left = protect(box(expression(node.left), kind(leftType)), OBJECT, node.right);
+            int right = box(expression(node.right), kind(rightType));
+            return emitResult(CONCAT, temp(), left, right);
+        }
+
+        boolean floating = leftType instanceof FloatType || rightType instanceof FloatType;
+        boolean numeric  = floating || leftType instanceof IntType;
+
+        if (numeric) {
+            Type target = floating ? FloatType.INSTANCE : IntType.INSTANCE;
+            int left = protect(expressionAs(node.left, target), LONG, node.right);
+            int right = expressionAs(node.right, target);
+            return emitResult(floating
+                ? floatingOp(node.operator)
+                : integerOp(node.operator),
+                temp(), left, right);
+        }
+
+        byte kind = kind(leftType);
+        int left = protect(expression(node.left), kind, node.right);
+        int right = expression(node.right);
+
+        switch (node.operator) {
+            case EQUALITY:
+                return emitResult(kind != OBJECT ? EQ_L
+                    : leftType.isPrimitive() ? EQV_O : EQ_O, temp(), left, right);
+            case NOT_EQUALS:
+                return emitResult(kind != OBJECT ? NE_L
+                    : leftType.isPrimitive() ? NEV_O : NE_O, temp(), left, right);
+        }
+
+        throw new Error("should not reach here");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Compiles {@code &&} (with {@code jump == JUMP_FALSE}) or {@code ||} (with {@code jump ==
+     * JUMP_TRUE}): the right operand is skipped if the left operand determines the result.
+     */
+    private int shortCircuit (BinaryExpressionNode node, int jump)
+    {
+        int result = temp();
+        move(result, expression(node.left), true);
+        int hole = emitJump(jump, result);
+        move(result, expression(node.right), true);
+        patch(hole);
+        resultPc = -1; // result is written by two instructions
+        return result;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static int integerOp (BinaryOperator operator)
+    {
+        switch (operator) {
+            case MULTIPLY:      return MUL_L;
+            case DIVIDE:        return DIV_L;
+            case REMAINDER:     return REM_L;
+            case ADD:           return ADD_L;
+            case SUBTRACT:      return SUB_L;
+            case GREATER:       return GT_L;
+            case LOWER:         return LT_L;
+            case GREATER_EQUAL: return GE_L;
+            case LOWER_EQUAL:   return LE_L;
+            case EQUALITY:      return EQ_L;
+            case NOT_EQUALS:    return NE_L;
+            default:
+                throw new Error("should not reach here");
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static int floatingOp (BinaryOperator operator)
+    {
+        switch (operator) {
+            case MULTIPLY:      return MUL_D;
+            case DIVIDE:        return DIV_D;
+            case REMAINDER:     return REM_D;
+            case ADD:           return ADD_D;
+            case SUBTRACT:      return SUB_D;
+            case GREATER:       return GT_D;
+            case LOWER:         return LT_D;
+            case GREATER_EQUAL: return GE_D;
+            case LOWER_EQUAL:   return LE_D;
+            case EQUALITY:      return EQ_D;
+            case NOT_EQUALS:    return NE_D;
+            default:
+                throw new Error("should not reach here");
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Integer assignment (AssignmentNode node)
+    {
+        Type type = reactor.get(node, "type");
+        byte kind = kind(type);
+
+        if (node.left instanceof ReferenceNode)
+            return store(reactor.get(node.left, "decl"), expressionAs(node.right, type));
+
+        if (node.left instanceof ArrayAccessNode) {
+            ArrayAccessNode arrayAccess = (ArrayAccessNode) node.left;
+            int array = protect(expression(arrayAccess.array), OBJECT,
+                arrayAccess.index, node.right);
+            int index = protect(expression(arrayAccess.index), LONG, node.right);
+            int value = expressionAs(node.right, type);
+            switch (kind) {
+                case LONG:    emit(ASTORE_L, array, index, value); break;
+                case DOUBLE:  emit(ASTORE_D, array, index, value); break;
+                case BOOLEAN: emit(ASTORE_B, array, index, value); break;
+                default:      emit(ASTORE_O, array, index, value);
+            }
+            return value;
+        }
+
+        if (node.left instanceof FieldAccessNode) {
+            FieldAccessNode fieldAccess = (FieldAccessNode) node.left;
+            int stem = protect(expression(fieldAccess.stem), OBJECT, node.right);
+            int value = expressionAs(node.right, type);
+            int index = reactor.get(fieldAccess, "fieldIndex");
+            emit(PUT_FIELD, stem, index, box(value, kind));
+            return value;
+        }
+
+        throw new Error("should not reach here");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Stores the value in register {@code s} into the variable, and returns its register. */
+    private int store (DeclarationNode decl, int s)
+    {
+        Slot slot = slots.slot(decl);
+        byte kind = kind(decl);
+        int hops = layout.depth - slot.depth;
+        if (hops == 0) {
+            move(slot.index, s, kind != OBJECT);
+            return slot.index;
+        }
+        emit(kind != OBJECT ? STORE_P : STORE_O, hops, slot.index, s);
+        return s;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Integer funCall (FunCallNode node)
+    {
+        FunType type = reactor.get(node.function, "type");
+
+        if (node.function instanceof ReferenceNode) {
+            Object decl = reactor.get(node.function, "decl");
+            if (decl instanceof SyntheticDeclarationNode) // print, the only built-in
+                return emitResult(PRINT, temp(), expression(node.arguments.get(0)));
+            if (decl instanceof FunDeclarationNode) {
+                RegisterFunction callee = function((FunDeclarationNode) decl);
+                int start = argumentBlock(node.arguments, type.paramTypes, false);
+                int hops = layout.depth - callee.layout.parent.depth;
+                return emitResult(CALL, temp(), constant(callee), hops, start);
+            }
+        }
+
+        if (node.function instanceof ConstructorNode) {
+            StructDeclarationNode decl = reactor.get(((ConstructorNode) node.function).ref, "decl");
+            int start = argumentBlock(node.arguments, type.paramTypes, true);
+            return emitResult(NEW_STRUCT, temp(), constant(decl), start, node.arguments.size());
+        }
+
+        // The callee is only known at run time: arguments and result are boxed.
+        int callee = expression(node.function);
+        int start = argumentBlock(node.arguments, type.paramTypes, true);
+        int result = emitResult(CALL_DYNAMIC, temp(), callee, start, node.arguments.size());
+        return unbox(result, kind(type.returnType));
+    }
+
+    // =============================================================================================
+    // Statements
+
+    /** Compiles a statement. Temporaries used by the previous statement can be reused. */
+    private void statement (SighNode node) {
+        nextTemp = layout.size();
+        visitor.apply(node);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Integer root (RootNode node) {
+        node.statements.forEach(this::statement);
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Integer block (BlockNode node) {
+        node.statements.forEach(this::statement);
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Integer varDecl (VarDeclarationNode node) {
+        store(node, expressionAs(node.initializer, reactor.get(node, "type")));
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Integer funDecl (FunDeclarationNode node) {
+        pending.add(node); // compiled after the enclosing function
+        return null; // nothing to execute at the declaration site
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Integer expressionStmt (ExpressionStatementNode node) {
+        visitor.apply(node.expression); // value is discarded
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Integer ifStmt (IfNode node)
+    {
+        int elseHole = emitJump(JUMP_FALSE, expression(node.condition));
+        statement(node.trueStatement);
+        if (node.falseStatement == null) {
+            patch(elseHole);
+            return null;
+        }
+        int endHole = emitJump(JUMP);
+        patch(elseHole);
+        statement(node.falseStatement);
+        patch(endHole);
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Integer whileStmt (WhileNode node)
+    {
+        int start = size;
+        int endHole = emitJump(JUMP_FALSE, expression(node.condition));
+        statement(node.body);
+        emit(JUMP, start);
+        patch(endHole);
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Integer returnStmt (ReturnNode node)
+    {
+        if (node.expression == null) {
+            emit(RETURN);
+            return null;
+        }
+
+        if (function == null) { // main script
+            emit(RETURN_O, box(expression(node.expression), kind(node.expression)));
+            return null;
+        }
+
+        FunType type = reactor.get(function, "type");
+
+        if (reactor.get(node, "tailCall")) {
+            List<ExpressionNode> arguments = ((FunCallNode) node.expression).arguments;
+            emit(TAIL_CALL, argumentBlock(arguments, type.paramTypes, false));
+            return null;
+        }
+
+        int value = expressionAs(node.expression, type.returnType);
+        emit(kind(type.returnType) != OBJECT ? RETURN_P : RETURN_O, value);
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,82 @@
+package norswap.sigh.interpreter;
+
+import norswap.sigh.ast.FunDeclarationNode;
+import norswap.sigh.ast.RootNode;
+
+/**
+ * A function (or the main script) lowered to register-based code by the {@link RegisterCompiler},
+ * to be executed by the {@link RegisterVM}.
+ *
+ * <p>Instances are created as soon as the function is first referenced, which may happen before
+ * the declaration is compiled, so the code and constant pools are filled in later.
+ */
+public final class RegisterFunction
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /** Kinds of values, determining the register file they are stored in. */
+    static final byte OBJECT = 0, LONG = 1, DOUBLE = 2, BOOLEAN = 3;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** The {@link FunDeclarationNode}, or the {@link RootNode} for the main script. */
+    public final Object declaration;
+
+    public final FrameLayout layout;
+
+    /** Frame slot index (= register) of each parameter. */
+    final int[] parameterIndices;
+
+    /** Kind of each parameter. */
+    final byte[] parameterKinds;
+
+    /** Kind of the returned value ({@link #OBJECT} for functions that do not return a value). */
+    final byte returnKind;
+
+    /** The instructions, see {@link RegisterOps}. */
+    int[] code;
+
+    /** Constant pool for {@link RegisterOps#CONST_P}, with doubles as raw long bits. */
+    long[] longConstants;
+
+    /** Constant pool for all other instructions referring to constants. */
+    Object[] constants;
+
+    /** Number of registers in each register file: the frame slots, followed by temporaries. */
+    int registers;
+
+    // ---------------------------------------------------------------------------------------------
+
+    RegisterFunction (Object declaration, FrameLayout layout, int[] parameterIndices,
+                      byte[] parameterKinds, byte returnKind) {
+        this.declaration = declaration;
+        this.layout = layout;
+        this.parameterIndices = parameterIndices;
+        this.parameterKinds = parameterKinds;
+        this.returnKind = returnKind;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Number of ints in the code array. */
+    public int codeSize () {
+        return code.length;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Number of registers in each register file. */
+    public int registers () {
+        return registers;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public String toString () {
+        return declaration instanceof FunDeclarationNode
+            ? ((FunDeclarationNode) declaration).name
+            : "<main>";
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
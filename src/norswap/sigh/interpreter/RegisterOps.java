@@ -0,0 +1,184 @@
+package norswap.sigh.interpreter;
+
+/**
+ * Opcodes of the register-based code executed by the {@link RegisterVM}.
+ *
+ * <p>An instruction is an opcode followed by its operands, all encoded as ints in the code array
+ * of a {@link RegisterFunction}. Operands are register numbers (written {@code d} for the
+ * destination, {@code s}, {@code a}, {@code b}, ... for sources), constant pool indices ({@code
+ * k}), jump targets ({@code t}, an index in the code array) or small literal integers.
+ *
+ * <p>Every frame has two register files of the same size: {@code p} holds unboxed {@code Int},
+ * {@code Float} (as raw long bits) and {@code Bool} (0 or 1) values, {@code o} holds all other
+ * values. The comment next to each opcode gives its operands and the register files they refer
+ * to.
+ */
+public final class RegisterOps
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private RegisterOps () {}
+
+    // ---------------------------------------------------------------------------------------------
+    // constants & moves
+
+    /** {@code d k}: p[d] = long constant k */
+    public static final int CONST_P       = 0;
+    /** {@code d k}: o[d] = object constant k */
+    public static final int CONST_O       = 1;
+    /** {@code d s}: p[d] = p[s] */
+    public static final int MOVE_P        = 2;
+    /** {@code d s}: o[d] = o[s] */
+    public static final int MOVE_O        = 3;
+
+    /** {@code d hops i}: p[d] = p[i] in the frame {@code hops} static links away */
+    public static final int LOAD_P        = 4;
+    /** {@code d hops i}: o[d] = o[i] in the frame {@code hops} static links away */
+    public static final int LOAD_O        = 5;
+    /** {@code hops i s}: p[i] in the frame {@code hops} static links away = p[s] */
+    public static final int STORE_P       = 6;
+    /** {@code hops i s}: o[i] in the frame {@code hops} static links away = o[s] */
+    public static final int STORE_O       = 7;
+
+    // ---------------------------------------------------------------------------------------------
+    // conversions
+
+    /** {@code d s}: o[d] = (Long) p[s] */
+    public static final int BOX_L         = 8;
+    /** {@code d s}: o[d] = (Double) p[s] */
+    public static final int BOX_D         = 9;
+    /** {@code d s}: o[d] = (Boolean) p[s] */
+    public static final int BOX_B         = 10;
+    /** {@code d s}: p[d] = (Long) o[s] */
+    public static final int UNBOX_L       = 11;
+    /** {@code d s}: p[d] = (Double) o[s] */
+    public static final int UNBOX_D       = 12;
+    /** {@code d s}: p[d] = (Boolean) o[s] */
+    public static final int UNBOX_B       = 13;
+    /** {@code d s}: p[d] = (double) p[s] */
+    public static final int I2D           = 14;
+
+    // ---------------------------------------------------------------------------------------------
+    // operators (all operands in p, except for CONCAT and the _O comparisons)
+
+    /** {@code d s}: p[d] = !p[s] */
+    public static final int NOT           = 15;
+
+    /** {@code d a b} */
+    public static final int ADD_L         = 16;
+    public static final int SUB_L         = 17;
+    public static final int MUL_L         = 18;
+    public static final int DIV_L         = 19;
+    public static final int REM_L         = 20;
+    public static final int EQ_L          = 21;
+    public static final int NE_L          = 22;
+    public static final int LT_L          = 23;
+    public static final int LE_L          = 24;
+    public static final int GT_L          = 25;
+    public static final int GE_L          = 26;
+
+    /** {@code d a b} */
+    public static final int ADD_D         = 27;
+    public static final int SUB_D         = 28;
+    public static final int MUL_D         = 29;
+    public static final int DIV_D         = 30;
+    public static final int REM_D         = 31;
+    public static final int EQ_D          = 32;
+    public static final int NE_D          = 33;
+    public static final int LT_D          = 34;
+    public static final int LE_D          = 35;
+    public static final int GT_D          = 36;
+    public static final int GE_D          = 37;
+
+    /** {@code d a b}: p[d] = o[a] == o[b] */
+    public static final int EQ_O          = 38;
+    /** {@code d a b}: p[d] = o[a] != o[b] */
+    public static final int NE_O          = 39;
+    /** {@code d a b}: p[d] = o[a].equals(o[b]) */
+    public static final int EQV_O         = 40;
+    /** {@code d a b}: p[d] = !o[a].equals(o[b]) */
+    public static final int NEV_O         = 41;
+    /** {@code d a b}: o[d] = string(o[a]) + string(o[b]) */
+    public static final int CONCAT        = 42;
+
+    // ---------------------------------------------------------------------------------------------
+    // control flow
+
+    /** {@code t} */
+    public static final int JUMP          = 43;
+    /** {@code s t}: jump to t if p[s] is false */
+    public static final int JUMP_FALSE    = 44;
+    /** {@code s t}: jump to t if p[s] is true */
+    public static final int JUMP_TRUE     = 45;
+
+    // ---------------------------------------------------------------------------------------------
+    // arrays & structs
+
+    /** {@code d start n}: o[d] = new long[] { p[start], ..., p[start + n - 1] } */
+    public static final int NEW_ARRAY_L   = 46;
+    /** {@code d start n}: o[d] = new double[] { p[start], ..., p[start + n - 1] } */
+    public static final int NEW_ARRAY_D   = 47;
+    /** {@code d start n}: o[d] = new boolean[] { p[start], ..., p[start + n - 1] } */
+    public static final int NEW_ARRAY_B   = 48;
+    /** {@code d start n}: o[d] = new Object[] { o[start], ..., o[start + n - 1] } */
+    public static final int NEW_ARRAY_O   = 49;
+
+    /** {@code d a i}: p[d] = o[a][p[i]] */
+    public static final int ALOAD_L       = 50;
+    public static final int ALOAD_D       = 51;
+    public static final int ALOAD_B       = 52;
+    /** {@code d a i}: o[d] = o[a][p[i]] */
+    public static final int ALOAD_O       = 53;
+
+    /** {@code a i s}: o[a][p[i]] = p[s] */
+    public static final int ASTORE_L      = 54;
+    public static final int ASTORE_D      = 55;
+    public static final int ASTORE_B      = 56;
+    /** {@code a i s}: o[a][p[i]] = o[s] */
+    public static final int ASTORE_O      = 57;
+
+    /** {@code d a}: p[d] = o[a].length */
+    public static final int LENGTH        = 58;
+
+    /** {@code d s i}: o[d] = field i of struct o[s] */
+    public static final int GET_FIELD     = 59;
+    /** {@code s i v}: field i of struct o[s] = o[v] */
+    public static final int PUT_FIELD     = 60;
+    /** {@code d k start n}: o[d] = new struct of declaration k with fields o[start ... n - 1] */
+    public static final int NEW_STRUCT    = 61;
+
+    // ---------------------------------------------------------------------------------------------
+    // calls
+
+    /** {@code d s}: o[d] = print(o[s]) */
+    public static final int PRINT         = 62;
+
+    /**
+     * {@code d k hops start}: calls the {@link RegisterFunction} constant k, whose static link is
+     * {@code hops} static links away, passing the arguments in registers {@code start} to {@code
+     * start + n - 1}, in the register file matching each parameter. The result goes to p[d] or
+     * o[d] depending on the return type of the function.
+     */
+    public static final int CALL          = 63;
+
+    /**
+     * {@code d f start n}: calls the function value o[f], passing the (boxed) arguments in o[start]
+     * to o[start + n - 1]. The (boxed) result goes to o[d].
+     */
+    public static final int CALL_DYNAMIC  = 64;
+
+    /**
+     * {@code start}: self tail call, passing the arguments as for {@link #CALL}: the arguments are
+     * copied to the parameters, then execution restarts at the start of the function.
+     */
+    public static final int TAIL_CALL     = 65;
+
+    /** {@code s}: returns p[s] */
+    public static final int RETURN_P      = 66;
+    /** {@code s}: returns o[s] */
+    public static final int RETURN_O      = 67;
+    /** no operands: returns without value */
+    public static final int RETURN        = 68;
+
+    // ---------------------------------------------------------------------------------------------
+}
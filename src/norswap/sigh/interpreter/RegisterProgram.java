@@ -0,0 +1,69 @@
+package norswap.sigh.interpreter;
+
+import norswap.sigh.ast.FunDeclarationNode;
+import norswap.sigh.scopes.RootScope;
+import norswap.utils.exceptions.Exceptions;
+import java.util.Map;
+
+/**
+ * A Sigh program lowered by the {@link RegisterCompiler}, which can be run any number of times by
+ * the {@link RegisterVM}.
+ */
+public final class RegisterProgram
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private final RegisterFunction main;
+    private final RootScope rootScope;
+    private final SlotResolution slots;
+    private final Map<FunDeclarationNode, RegisterFunction> functions;
+
+    // ---------------------------------------------------------------------------------------------
+
+    RegisterProgram (RegisterFunction main, RootScope rootScope, SlotResolution slots,
+                     Map<FunDeclarationNode, RegisterFunction> functions) {
+        this.main = main;
+        this.rootScope = rootScope;
+        this.slots = slots;
+        this.functions = functions;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the lowered main script.
+     */
+    public RegisterFunction main () {
+        return main;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the lowered function for the given declaration.
+     */
+    public RegisterFunction function (FunDeclarationNode declaration) {
+        return functions.get(declaration);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Runs the program and returns the value returned by the main script, or null if it does not
+     * return a value.
+     */
+    public Object run ()
+    {
+        Frame frame = new Frame(main.layout, null, null, main.registers);
+        frame.initRoot(rootScope, slots);
+        try {
+            return new RegisterVM(functions).execute(main, frame);
+        } catch (PassthroughException e) {
+            throw Exceptions.runtime(e.getCause());
+        } catch (RuntimeException e) {
+            throw new InterpreterException("exception while executing register code", e);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
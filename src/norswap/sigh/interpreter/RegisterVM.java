@@ -0,0 +1,449 @@
+package norswap.sigh.interpreter;
+
+import norswap.sigh.ast.FunDeclarationNode;
+import norswap.sigh.ast.StructDeclarationNode;
+import norswap.sigh.scopes.SyntheticDeclarationNode;
+import java.util.Arrays;
+import java.util.Map;
+
+import static norswap.sigh.interpreter.RegisterFunction.*;
+import static norswap.sigh.interpreter.RegisterOps.*;
+
+/**
+ * Executes the register-based code produced by the {@link RegisterCompiler}.
+ *
+ * <p>Every invocation of a {@link RegisterFunction} gets a {@link Frame} whose {@link
+ * Frame#primitives} and {@link Frame#values} arrays are the {@code p} and {@code o} register
+ * files (see {@link RegisterOps}), and is executed by a single dispatch loop in {@link
+ * #execute(RegisterFunction, Frame)}. Calls recurse into this method.
+ */
+public final class RegisterVM
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private final Map<FunDeclarationNode, RegisterFunction> functions;
+
+    /** Result of the last function that returned a value in the {@code p} register file. */
+    private long primitiveResult;
+
+    // ---------------------------------------------------------------------------------------------
+
+    RegisterVM (Map<FunDeclarationNode, RegisterFunction> functions) {
+        this.functions = functions;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Runs the function in the given frame, which must already contain the arguments. Returns the
+     * value returned by the function if it is stored in the {@code o} register file, otherwise
+     * stores it in {@link #primitiveResult} and returns null.
+     */
+    Object execute (RegisterFunction function, Frame frame)
+    {
+        final int[] code = function.code;
+        final long[] lc = function.longConstants;
+        final Object[] oc = function.constants;
+        final long[] p = frame.primitives;
+        final Object[] o = frame.values;
+        int pc = 0;
+
+        try {
+            while (true) {
+                switch (code[pc]) {
+                    case CONST_P:
+                        p[code[pc + 1]] = lc[code[pc + 2]];
+                        pc += 3; break;
+                    case CONST_O:
+                        o[code[pc + 1]] = oc[code[pc + 2]];
+                        pc += 3; break;
+                    case MOVE_P:
+                        p[code[pc + 1]] = p[code[pc + 2]];
+                        pc += 3; break;
+                    case MOVE_O:
+                        o[code[pc + 1]] = o[code[pc + 2]];
+                        pc += 3; break;
+                    case LOAD_P:
+                        p[code[pc + 1]] = outer(frame, code[pc + 2]).primitives[code[pc + 3]];
+                        pc += 4; break;
+                    case LOAD_O:
+                        o[code[pc + 1]] = outer(frame, code[pc + 2]).values[code[pc + 3]];
+                        pc += 4; break;
+                    case STORE_P:
+                        outer(frame, code[pc + 1]).primitives[code[pc + 2]] = p[code[pc + 3]];
+                        pc += 4; break;
+                    case STORE_O:
+                        outer(frame, code[pc + 1]).values[code[pc + 2]] = o[code[pc + 3]];
+                        pc += 4; break;
+
+                    case BOX_L:
+                        o[code[pc + 1]] = p[code[pc + 2]];
+                        pc += 3; break;
+                    case BOX_D:
+                        o[code[pc + 1]] = d(p[code[pc + 2]]);
+                        pc += 3; break;
+                    case BOX_B:
+                        o[code[pc + 1]] = p[code[pc + 2]] != 0;
+                        pc += 3; break;
+                    case UNBOX_L:
+                        p[code[pc + 1]] = (Long) o[code[pc + 2]];
+                        pc += 3; break;
+                    case UNBOX_D:
+                        p[code[pc + 1]] = bits((Double) o[code[pc + 2]]);
+                        pc += 3; break;
+                    case UNBOX_B:
+                        p[code[pc + 1]] = (Boolean) o[code[pc + 2]] ? 1 : 0;
+                        pc += 3; break;
+                    case I2D:
+                        p[code[pc + 1]] = bits((double) p[code[pc + 2]]);
+                        pc += 3; break;
+
+                    case NOT:
+                        p[code[pc + 1]] = p[code[pc + 2]] ^ 1;
+                        pc += 3; break;
+
+                    case ADD_L:
+                        p[code[pc + 1]] = p[code[pc + 2]] + p[code[pc + 3]];
+                        pc += 4; break;
+                    case SUB_L:
+                        p[code[pc + 1]] = p[code[pc + 2]] - p[code[pc + 3]];
+                        pc += 4; break;
+                    case MUL_L:
+                        p[code[pc + 1]] = p[code[pc + 2]] * p[code[pc + 3]];
+                        pc += 4; break;
+                    case DIV_L:
+                        p[code[pc + 1]] = p[code[pc + 2]] / p[code[pc + 3]];
+                        pc += 4; break;
+                    case REM_L:
+                        p[code[pc + 1]] = p[code[pc + 2]] % p[code[pc + 3]];
+                        pc += 4; break;
+                    case EQ_L:
+                        p[code[pc + 1]] = p[code[pc + 2]] == p[code[pc + 3]] ? 1 : 0;
+                        pc += 4; break;
+                    case NE_L:
+                        p[code[pc + 1]] = p[code[pc + 2]] != p[code[pc + 3]] ? 1 : 0;
+                        pc += 4; break;
+                    case LT_L:
+                        p[code[pc + 1]] = p[code[pc + 2]] < p[code[pc + 3]] ? 1 : 0;
+                        pc += 4; break;
+                    case LE_L:
+                        p[code[pc + 1]] = p[code[pc + 2]] <= p[code[pc + 3]] ? 1 : 0;
+                        pc += 4; break;
+                    case GT_L:
+                        p[code[pc + 1]] = p[code[pc + 2]] > p[code[pc + 3]] ? 1 : 0;
+                        pc += 4; break;
+                    case GE_L:
+                        p[code[pc + 1]] = p[code[pc + 2]] >= p[code[pc + 3]] ? 1 : 0;
+                        pc += 4; break;
+
+                    case ADD_D:
+                        p[code[pc + 1]] = bits(d(p[code[pc + 2]]) + d(p[code[pc + 3]]));
+                        pc += 4; break;
+                    case SUB_D:
+                        p[code[pc + 1]] = bits(d(p[code[pc + 2]]) - d(p[code[pc + 3]]));
+                        pc += 4; break;
+                    case MUL_D:
+                        p[code[pc + 1]] = bits(d(p[code[pc + 2]]) * d(p[code[pc + 3]]));
+                        pc += 4; break;
+                    case DIV_D:
+                        p[code[pc + 1]] = bits(d(p[code[pc + 2]]) / d(p[code[pc + 3]]));
+                        pc += 4; break;
+                    case REM_D:
+                        p[code[pc + 1]] = bits(d(p[code[pc + 2]]) % d(p[code[pc + 3]]));
+                        pc += 4; break;
+                    case EQ_D:
+                        p[code[pc + 1]] = d(p[code[pc + 2]]) == d(p[code[pc + 3]]) ? 1 : 0;
+                        pc += 4; break;
+                    case NE_D:
+                        p[code[pc + 1]] = d(p[code[pc + 2]]) != d(p[code[pc + 3]]) ? 1 : 0;
+                        pc += 4; break;
+                    case LT_D:
+                        p[code[pc + 1]] = d(p[code[pc + 2]]) < d(p[code[pc + 3]]) ? 1 : 0;
+                        pc += 4; break;
+                    case LE_D:
+                        p[code[pc + 1]] = d(p[code[pc + 2]]) <= d(p[code[pc + 3]]) ? 1 : 0;
+                        pc += 4; break;
+                    case GT_D:
+                        p[code[pc + 1]] = d(p[code[pc + 2]]) > d(p[code[pc + 3]]) ? 1 : 0;
+                        pc += 4; break;
+                    case GE_D:
+                        p[code[pc + 1]] = d(p[code[pc + 2]]) >= d(p[code[pc + 3]]) ? 1 : 0;
+                        pc += 4; break;
+
+                    case EQ_O:
+                        p[code[pc + 1]] = o[code[pc + 2]] == o[code[pc + 3]] ? 1 : 0;
+                        pc += 4; break;
+                    case NE_O:
+                        p[code[pc + 1]] = o[code[pc + 2]] != o[code[pc + 3]] ? 1 : 0;
+                        pc += 4; break;
+                    case EQV_O:
+                        p[code[pc + 1]] = o[code[pc + 2]].equals(o[code[pc + 3]]) ? 1 : 0;
+                        pc += 4; break;
+                    case NEV_O:
+                        p[code[pc + 1]] = o[code[pc + 2]].equals(o[code[pc + 3]]) ? 0 : 1;
+                        pc += 4; break;
+                    case CONCAT:
+                        o[code[pc + 1]] = Interpreter.convertToString(o[code[pc + 2]])
+                            + Interpreter.convertToString(o[code[pc + 3]]);
+                        pc += 4; break;
+
+                    case JUMP:
+                        pc = code[pc + 1]; break;
+                    case JUMP_FALSE:
+                        pc = p[code[pc + 1]] == 0 ? code[pc + 2] : pc + 3; break;
+                    case JUMP_TRUE:
+                        pc = p[code[pc + 1]] != 0 ? code[pc + 2] : pc + 3; break;
+
+                    case NEW_ARRAY_L: {
+                        long[] array = new long[code[pc + 3]];
+                        System.arraycopy(p, code[pc + 2], array, 0, array.length);
+                        o[code[pc + 1]] = array;
+                        pc += 4; break;
+                    }
+                    case NEW_ARRAY_D: {
+                        double[] array = new double[code[pc + 3]];
+                        for (int i = 0, start = code[pc + 2]; i < array.length; ++i)
+                            array[i] = d(p[start + i]);
+                        o[code[pc + 1]] = array;
+                        pc += 4; break;
+                    }
+                    case NEW_ARRAY_B: {
+                        boolean[] array = new boolean[code[pc + 3]];
+                        for (int i = 0, start = code[pc + 2]; i < array.length; ++i)
+                            array[i] = p[start + i] != 0;
+                        o[code[pc + 1]] = array;
+                        pc += 4; break;
+                    }
+                    case NEW_ARRAY_O:
+                        o[code[pc + 1]] =
+                            Arrays.copyOfRange(o, code[pc + 2], code[pc + 2] + code[pc + 3]);
+                        pc += 4; break;
+
+                    case ALOAD_L:
+                        p[code[pc + 1]] =
+                            ((long[]) array(o[code[pc + 2]]))[index(p[code[pc + 3]])];
+                        pc += 4; break;
+                    case ALOAD_D:
+                        p[code[pc + 1]] =
+                            bits(((double[]) array(o[code[pc + 2]]))[index(p[code[pc + 3]])]);
+                        pc += 4; break;
+                    case ALOAD_B:
+                        p[code[pc + 1]] =
+                            ((boolean[]) array(o[code[pc + 2]]))[index(p[code[pc + 3]])] ? 1 : 0;
+                        pc += 4; break;
+                    case ALOAD_O:
+                        o[code[pc + 1]] =
+                            ((Object[]) array(o[code[pc + 2]]))[index(p[code[pc + 3]])];
+                        pc += 4; break;
+                    case ASTORE_L:
+                        ((long[]) array(o[code[pc + 1]]))[index(p[code[pc + 2]])] = p[code[pc + 3]];
+                        pc += 4; break;
+                    case ASTORE_D:
+                        ((double[]) array(o[code[pc + 1]]))[index(p[code[pc + 2]])] =
+                            d(p[code[pc + 3]]);
+                        pc += 4; break;
+                    case ASTORE_B:
+                        ((boolean[]) array(o[code[pc + 1]]))[index(p[code[pc + 2]])] =
+                            p[code[pc + 3]] != 0;
+                        pc += 4; break;
+                    case ASTORE_O:
+                        ((Object[]) array(o[code[pc + 1]]))[index(p[code[pc + 2]])] =
+                            o[code[pc + 3]];
+                        pc += 4; break;
+                    case LENGTH:
+                        p[code[pc + 1]] = SighArrays.length(object(o[code[pc + 2]]));
+                        pc += 3; break;
+
+                    case GET_FIELD:
+                        o[code[pc + 1]] = ((Struct) object(o[code[pc + 2]])).fields[code[pc + 3]];
+                        pc += 4; break;
+                    case PUT_FIELD:
+                        ((Struct) object(o[code[pc + 1]])).fields[code[pc + 2]] = o[code[pc + 3]];
+                        pc += 4; break;
+                    case NEW_STRUCT:
+                        o[code[pc + 1]] = new Struct((StructDeclarationNode) oc[code[pc + 2]],
+                            Arrays.copyOfRange(o, code[pc + 3], code[pc + 3] + code[pc + 4]));
+                        pc += 5; break;
+
+                    case PRINT:
+                        o[code[pc + 1]] = print(o[code[pc + 2]]);
+                        pc += 3; break;
+
+                    case CALL: {
+                        RegisterFunction callee = (RegisterFunction) oc[code[pc + 2]];
+                        Frame calleeFrame = new Frame(callee.layout, outer(frame, code[pc + 3]),
+                            frame, callee.registers);
+                        bind(callee, calleeFrame, frame, code[pc + 4]);
+                        Object result = execute(callee, calleeFrame);
+                        if (callee.returnKind == OBJECT)
+                            o[code[pc + 1]] = result;
+                        else
+                            p[code[pc + 1]] = primitiveResult;
+                        pc += 5; break;
+                    }
+                    case CALL_DYNAMIC:
+                        o[code[pc + 1]] =
+                            callDynamic(o[code[pc + 2]], frame, code[pc + 3], code[pc + 4]);
+                        pc += 5; break;
+                    case TAIL_CALL:
+                        // the arguments are in temporaries, distinct from the parameters
+                        bind(function, frame, frame, code[pc + 1]);
+                        pc = 0; break;
+
+                    case RETURN_P:
+                        primitiveResult = p[code[pc + 1]];
+                        return null;
+                    case RETURN_O:
+                        return o[code[pc + 1]];
+                    case RETURN:
+                        return null;
+
+                    default:
+                        throw new Error("should not reach here");
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new PassthroughException(e);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Copies the arguments from the register block starting at {@code start} in the caller's frame
+     * to the parameter registers in the callee's frame.
+     */
+    private static void bind (RegisterFunction callee, Frame calleeFrame, Frame caller, int start)
+    {
+        int[] indices = callee.parameterIndices;
+        byte[] kinds = callee.parameterKinds;
+        for (int i = 0; i < indices.length; ++i)
+            if (kinds[i] == OBJECT)
+                calleeFrame.values[indices[i]] = caller.values[start + i];
+            else
+                calleeFrame.primitives[indices[i]] = caller.primitives[start + i];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Calls a function value, using the same function representations as the {@link Interpreter},
+     * with the (boxed) arguments in the register block starting at {@code start}. Returns the
+     * boxed result.
+     */
+    private Object callDynamic (Object callee, Frame frame, int start, int count)
+    {
+        Object[] o = frame.values;
+
+        if (callee == Null.INSTANCE)
+            throw new PassthroughException(new NullPointerException("calling a null function"));
+
+        if (callee instanceof SyntheticDeclarationNode)
+            return print(o[start]); // only built-in at the moment
+
+        if (callee instanceof Constructor)
+            return new Struct(((Constructor) callee).declaration,
+                Arrays.copyOfRange(o, start, start + count));
+
+        RegisterFunction function = functions.get((FunDeclarationNode) callee);
+        Frame calleeFrame = new Frame(function.layout, staticLink(function, frame), frame,
+            function.registers);
+
+        for (int i = 0; i < count; ++i) {
+            int index = function.parameterIndices[i];
+            Object value = o[start + i];
+            switch (function.parameterKinds[i]) {
+                case LONG:    calleeFrame.primitives[index] = (Long) value; break;
+                case DOUBLE:  calleeFrame.primitives[index] = bits((Double) value); break;
+                case BOOLEAN: calleeFrame.primitives[index] = (Boolean) value ? 1 : 0; break;
+                default:      calleeFrame.values[index] = value;
+            }
+        }
+
+        Object result = execute(function, calleeFrame);
+        switch (function.returnKind) {
+            case LONG:    return primitiveResult;
+            case DOUBLE:  return d(primitiveResult);
+            case BOOLEAN: return primitiveResult != 0;
+            default:      return result;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the frame that the static link of a new frame for the function must point to, when
+     * called from the given frame: the latest active frame of the lexically enclosing function.
+     */
+    private static Frame staticLink (RegisterFunction function, Frame frame)
+    {
+        if (function.layout.parent.depth == 0)
+            return outer(frame, frame.layout.depth);
+        for (Frame caller = frame; caller != null; caller = caller.caller)
+            if (caller.layout == function.layout.parent)
+                return caller;
+        return null; // enclosing function is not active, using its variables will fail
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Returns the frame {@code hops} static links away from the given frame. */
+    private static Frame outer (Frame frame, int hops)
+    {
+        for (int i = 0; i < hops; ++i)
+            frame = frame.link;
+        return frame;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static double d (long bits) {
+        return Double.longBitsToDouble(bits);
+    }
+
+    private static long bits (double value) {
+        return Double.doubleToRawLongBits(value);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static Object array (Object array)
+    {
+        if (array == Null.INSTANCE)
+            throw new PassthroughException(new NullPointerException("indexing null array"));
+        return array;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static Object object (Object object)
+    {
+        if (object == Null.INSTANCE)
+            throw new PassthroughException(
+                new NullPointerException("accessing field of null object"));
+        return object;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static int index (long index)
+    {
+        if (index < 0)
+            throw new ArrayIndexOutOfBoundsException("Negative index: " + index);
+        if (index >= Integer.MAX_VALUE - 1)
+            throw new ArrayIndexOutOfBoundsException(
+                "Index exceeds max array index (2ˆ31 - 2): " + index);
+        return (int) index;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static String print (Object value)
+    {
+        String out = Interpreter.convertToString(value);
+        System.out.println(out);
+        return out;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
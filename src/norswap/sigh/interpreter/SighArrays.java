@@ -0,0 +1,111 @@
+package norswap.sigh.interpreter;
+
+import norswap.sigh.types.BoolType;
+import norswap.sigh.types.FloatType;
+import norswap.sigh.types.IntType;
+import norswap.sigh.types.Type;
+import java.util.Arrays;
+
+/**
+ * Operations on the runtime representation of arrays in the interpreter.
+ *
+ * <p>Arrays of {@code Int}, {@code Float} and {@code Bool} are backed by {@code long[]}, {@code
+ * double[]} and {@code boolean[]} respectively (matching what the bytecode compiler does), while
+ * all other arrays are backed by {@code Object[]}. The operations in this class box and unbox
+ * values as required.
+ */
+public final class SighArrays
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private SighArrays () {}
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates an array with the given component type, holding the given values.
+     */
+    public static Object make (Type componentType, Object[] values)
+    {
+        if (componentType instanceof IntType) {
+            long[] array = new long[values.length];
+            for (int i = 0; i < values.length; ++i)
+                array[i] = (Long) values[i];
+            return array;
+        }
+        if (componentType instanceof FloatType) {
+            double[] array = new double[values.length];
+            for (int i = 0; i < values.length; ++i)
+                array[i] = ((Number) values[i]).doubleValue(); // implicit conversion
+            return array;
+        }
+        if (componentType instanceof BoolType) {
+            boolean[] array = new boolean[values.length];
+            for (int i = 0; i < values.length; ++i)
+                array[i] = (Boolean) values[i];
+            return array;
+        }
+        return values;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the (boxed) value at the given index in the array.
+     */
+    public static Object get (Object array, int index)
+    {
+        if (array instanceof long[])
+            return ((long[]) array)[index];
+        if (array instanceof double[])
+            return ((double[]) array)[index];
+        if (array instanceof boolean[])
+            return ((boolean[]) array)[index];
+        return ((Object[]) array)[index];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Sets the value at the given index in the array, unboxing it if required.
+     */
+    public static void set (Object array, int index, Object value)
+    {
+        if (array instanceof long[])
+            ((long[]) array)[index] = (Long) value;
+        else if (array instanceof double[])
+            ((double[]) array)[index] = ((Number) value).doubleValue(); // implicit conversion
+        else if (array instanceof boolean[])
+            ((boolean[]) array)[index] = (Boolean) value;
+        else
+            ((Object[]) array)[index] = value;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    public static int length (Object array)
+    {
+        if (array instanceof long[])
+            return ((long[]) array).length;
+        if (array instanceof double[])
+            return ((double[]) array).length;
+        if (array instanceof boolean[])
+            return ((boolean[]) array).length;
+        return ((Object[]) array).length;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    public static String toString (Object array)
+    {
+        if (array instanceof long[])
+            return Arrays.toString((long[]) array);
+        if (array instanceof double[])
+            return Arrays.toString((double[]) array);
+        if (array instanceof boolean[])
+            return Arrays.toString((boolean[]) array);
+        return Arrays.deepToString((Object[]) array);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
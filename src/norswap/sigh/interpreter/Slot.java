@@ -0,0 +1,23 @@
+package norswap.sigh.interpreter;
+
+/**
+ * The location of a variable in a {@link Frame}, as computed by {@link SlotResolution}.
+ *
+ * <p>{@link #depth} is the function nesting depth of the frame holding the variable (0 for the
+ * root frame, 1 for top-level functions, etc) and {@link #index} is the index of the variable
+ * in this frame.
+ */
+public final class Slot
+{
+    public final int depth;
+    public final int index;
+
+    public Slot (int depth, int index) {
+        this.depth = depth;
+        this.index = index;
+    }
+
+    @Override public String toString () {
+        return "Slot(" + depth + ", " + index + ")";
+    }
+}
@@ -0,0 +1,166 @@
+package norswap.sigh.interpreter;
+
+import norswap.sigh.SemanticAnalysis;
+import norswap.sigh.ast.*;
+import norswap.sigh.scopes.RootScope;
+import norswap.uranium.Reactor;
+import norswap.utils.visitors.ReflectiveFieldWalker;
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+
+import static norswap.utils.visitors.WalkVisitType.POST_VISIT;
+import static norswap.utils.visitors.WalkVisitType.PRE_VISIT;
+
+/**
+ * A resolution pass, to be run after {@link SemanticAnalysis}, that assigns a {@link Slot} to
+ * every variable ({@link VarDeclarationNode}, {@link ParameterNode} and built-in variables) and
+ * to every {@link ReferenceNode} that references a variable.
+ *
+ * <p>This enables the {@link Interpreter} to run in frame mode: every function invocation
+ * (and the main script) gets a single flat {@link Frame}, holding the variables of all the blocks
+ * in the function. Variables of sibling blocks share the same slots.
+ *
+ * <p>The entry point into this class is {@link #resolve(Reactor, SighNode)}.
+ */
+public final class SlotResolution
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private final Reactor reactor;
+
+    /** Slots for variable declarations and references to variables. */
+    private final IdentityHashMap<SighNode, Slot> slots = new IdentityHashMap<>();
+
+    /** Layouts for the root node and function declarations. */
+    private final IdentityHashMap<SighNode, FrameLayout> layouts = new IdentityHashMap<>();
+
+    /** Layout of the function currently being walked. */
+    private FrameLayout layout;
+
+    /** Index of the next slot to allocate in {@link #layout}. */
+    private int nextIndex;
+
+    /** Values of {@link #nextIndex} to restore when exiting blocks and functions. */
+    private final ArrayDeque<Integer> savedIndices = new ArrayDeque<>();
+
+    // ---------------------------------------------------------------------------------------------
+
+    private SlotResolution (Reactor reactor) {
+        this.reactor = reactor;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Runs the resolution pass over the given tree, which must have been successfully analyzed
+     * using the given reactor.
+     */
+    public static SlotResolution resolve (Reactor reactor, SighNode root)
+    {
+        ReflectiveFieldWalker<SighNode> walker = new ReflectiveFieldWalker<>(
+            SighNode.class, PRE_VISIT, POST_VISIT);
+
+        SlotResolution resolution = new SlotResolution(reactor);
+
+        walker.register(RootNode.class,             PRE_VISIT,  resolution::root);
+        walker.register(FunDeclarationNode.class,   PRE_VISIT,  resolution::funDecl);
+        walker.register(BlockNode.class,            PRE_VISIT,  resolution::block);
+        walker.register(VarDeclarationNode.class,   PRE_VISIT,  resolution::declare);
+        walker.register(ParameterNode.class,        PRE_VISIT,  resolution::declare);
+        walker.register(ReferenceNode.class,        PRE_VISIT,  resolution::reference);
+
+        walker.register(FunDeclarationNode.class,   POST_VISIT, resolution::popFunction);
+        walker.register(BlockNode.class,            POST_VISIT, resolution::popBlock);
+
+        walker.registerFallback(PRE_VISIT,  node -> {});
+        walker.registerFallback(POST_VISIT, node -> {});
+
+        walker.walk(root);
+        return resolution;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the slot of the given variable declaration or variable reference, or null if the
+     * node is neither.
+     */
+    public Slot slot (SighNode node) {
+        return slots.get(node);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the frame layout for the given {@link RootNode} or {@link FunDeclarationNode}.
+     */
+    public FrameLayout layout (SighNode node) {
+        return layouts.get(node);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void root (RootNode node)
+    {
+        assert layout == null;
+        layout = new FrameLayout(node, null);
+        layouts.put(node, layout);
+        nextIndex = 0;
+
+        RootScope scope = reactor.get(node, "scope");
+        declare(scope._true);
+        declare(scope._false);
+        declare(scope._null);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void funDecl (FunDeclarationNode node)
+    {
+        savedIndices.push(nextIndex);
+        layout = new FrameLayout(node, layout);
+        layouts.put(node, layout);
+        nextIndex = 0;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void popFunction (FunDeclarationNode node) {
+        layout = layout.parent;
+        nextIndex = savedIndices.pop();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void block (BlockNode node) {
+        savedIndices.push(nextIndex);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void popBlock (BlockNode node) {
+        // the variables of the block are dead, their slots can be reused
+        nextIndex = savedIndices.pop();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void declare (DeclarationNode node)
+    {
+        slots.put(node, new Slot(layout.depth, nextIndex++));
+        layout.reserve(nextIndex);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void reference (ReferenceNode node)
+    {
+        // Variables must be declared before use, so the slot of the declaration is already known.
+        DeclarationNode decl = reactor.get(node, "decl");
+        Slot slot = slots.get(decl);
+        if (slot != null)
+            slots.put(node, slot);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,55 @@
+package norswap.sigh.interpreter;
+
+import norswap.sigh.ast.StructDeclarationNode;
+import java.util.Arrays;
+
+/**
+ * Runtime representation of struct instances in the interpreter.
+ *
+ * <p>The declaration acts as the shape of the struct, shared by all its instances, and the field
+ * values are stored in an array, in declaration order. The index of an accessed field is given by
+ * the {@code fieldIndex} attribute of the {@link norswap.sigh.ast.FieldAccessNode}.
+ */
+public final class Struct
+{
+    // ---------------------------------------------------------------------------------------------
+
+    public final StructDeclarationNode declaration;
+    public final Object[] fields;
+
+    // ---------------------------------------------------------------------------------------------
+
+    public Struct (StructDeclarationNode declaration, Object[] fields) {
+        this.declaration = declaration;
+        this.fields = fields;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public int hashCode () {
+        return 31 * System.identityHashCode(declaration) + Arrays.hashCode(fields);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public boolean equals (Object other) {
+        return other instanceof Struct
+            && ((Struct) other).declaration == declaration
+            && Arrays.equals(((Struct) other).fields, fields);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public String toString ()
+    {
+        StringBuilder builder = new StringBuilder(declaration.name).append("{");
+        for (int i = 0; i < fields.length; ++i) {
+            if (i > 0) builder.append(", ");
+            builder.append(declaration.fields.get(i).name()).append("=")
+                .append(Interpreter.convertToString(fields[i]));
+        }
+        return builder.append("}").toString();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
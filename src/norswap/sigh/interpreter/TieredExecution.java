@@ -0,0 +1,240 @@
+package norswap.sigh.interpreter;
+
+import norswap.sigh.ast.*;
+import norswap.sigh.bytecode.BytecodeCompiler;
+import norswap.sigh.bytecode.ByteArrayClassLoader;
+import norswap.sigh.bytecode.ClosureConversion;
+import norswap.sigh.scopes.RootScope;
+import norswap.sigh.types.*;
+import norswap.uranium.Reactor;
+import norswap.utils.visitors.ReflectiveFieldWalker;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import static norswap.utils.visitors.WalkVisitType.POST_VISIT;
+import static norswap.utils.visitors.WalkVisitType.PRE_VISIT;
+
+/**
+ * Profiles the functions run by the {@link Interpreter}, and compiles the ones that become hot
+ * with the {@link BytecodeCompiler}, so that the interpreter can call the compiled code instead.
+ *
+ * <p>Each function has a counter, incremented on every invocation and on every back edge of the
+ * loops it contains. When the counter of an eligible function reaches the threshold, the whole
+ * source unit is compiled (once) and loaded, and all subsequent calls to the function made by the
+ * interpreter are dispatched to the compiled method. Calls made by compiled code stay in compiled
+ * code. There is no on-stack replacement: a hot loop only benefits from the compiled code the next
+ * time its function is called, and loops in top-level code are never compiled.
+ *
+ * <p>A function is eligible if the values it exchanges with the interpreter have the same
+ * representation in both engines: its parameters, its return value and its free variables (see
+ * {@link ClosureConversion}) must be of type {@code Int}, {@code Float}, {@code Bool}, {@code
+ * String} or arrays of the first three. Its free variables must moreover be top-level variables
+ * that are never assigned after their declaration, as the compiled code receives a copy of their
+ * value.
+ */
+public final class TieredExecution
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /** Default number of invocations and back edges after which a function is compiled. */
+    public static final int DEFAULT_THRESHOLD = 1000;
+
+    /** Binary name of the class that the source unit is compiled to. */
+    private static final String CLASS_NAME = "SighTiered";
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Profiling and compilation state of a function. */
+    private static final class Profile
+    {
+        final FunDeclarationNode function;
+        final boolean eligible;
+        int counter;
+        MethodHandle compiled;
+
+        Profile (FunDeclarationNode function, boolean eligible) {
+            this.function = function;
+            this.eligible = eligible;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private final Reactor reactor;
+    private final SighNode root;
+    private final int threshold;
+    private final ClosureConversion closures;
+
+    private final IdentityHashMap<FunDeclarationNode, Profile> profiles = new IdentityHashMap<>();
+
+    /** Maps loops to the profile of their enclosing function (absent for top-level loops). */
+    private final IdentityHashMap<WhileNode, Profile> loops = new IdentityHashMap<>();
+
+    /** The class the source unit was compiled to, null if it was not compiled (yet). */
+    private Class<?> compiledClass;
+
+    /** Whether the compilation of the source unit failed, disabling further attempts. */
+    private boolean failed = false;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates a tiered execution policy for the given tree, which must have been successfully
+     * analyzed using the given reactor, with the {@link #DEFAULT_THRESHOLD}.
+     */
+    public TieredExecution (Reactor reactor, SighNode root) {
+        this(reactor, root, DEFAULT_THRESHOLD);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates a tiered execution policy for the given tree, which must have been successfully
+     * analyzed using the given reactor, compiling functions whose counter reaches {@code
+     * threshold}.
+     */
+    public TieredExecution (Reactor reactor, SighNode root, int threshold)
+    {
+        this.reactor = reactor;
+        this.root = root;
+        this.threshold = threshold;
+        this.closures = ClosureConversion.convert(reactor, root);
+
+        ArrayDeque<Profile> functions = new ArrayDeque<>();
+        ReflectiveFieldWalker<SighNode> walker = new ReflectiveFieldWalker<>(
+            SighNode.class, PRE_VISIT, POST_VISIT);
+
+        walker.register(FunDeclarationNode.class, PRE_VISIT, node -> {
+            Profile profile = new Profile(node, isEligible(node));
+            profiles.put(node, profile);
+            functions.push(profile);
+        });
+        walker.register(WhileNode.class, PRE_VISIT, node -> {
+            if (!functions.isEmpty()) loops.put(node, functions.peek());
+        });
+        walker.register(FunDeclarationNode.class, POST_VISIT, node -> functions.pop());
+        walker.registerFallback(PRE_VISIT,  node -> {});
+        walker.registerFallback(POST_VISIT, node -> {});
+        walker.walk(root);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private boolean isEligible (FunDeclarationNode node)
+    {
+        FunType type = reactor.get(node, "type");
+        if (!(type.returnType instanceof VoidType || isShared(type.returnType)))
+            return false;
+        for (Type paramType: type.paramTypes)
+            if (!isShared(paramType)) return false;
+        for (DeclarationNode decl: closures.freeVariables(node))
+            if (closures.isBoxed(decl)
+                    || !(reactor.get(decl, "scope") instanceof RootScope)
+                    || !isShared(reactor.get(decl, "type")))
+                return false;
+        return true;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether values of the given type have the same representation in the interpreter and in
+     * compiled code (null excepted).
+     */
+    private static boolean isShared (Type type)
+    {
+        if (type instanceof ArrayType) {
+            // arrays of other types are Object[] in the interpreter only
+            Type component = ((ArrayType) type).componentType;
+            return component instanceof IntType
+                || component instanceof FloatType
+                || component instanceof BoolType;
+        }
+        return type instanceof IntType
+            || type instanceof FloatType
+            || type instanceof BoolType
+            || type instanceof StringType;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Records an invocation of the given function, and returns the method handle to call instead
+     * of interpreting it, or null if the function is not compiled.
+     *
+     * <p>The handle takes the arguments followed by the values of the {@link #freeVariables} of
+     * the function, in a single array, and returns the result of the function (null for void
+     * functions).
+     */
+    MethodHandle invoked (FunDeclarationNode function)
+    {
+        Profile profile = profiles.get(function);
+        if (profile.compiled == null && profile.eligible && ++profile.counter >= threshold)
+            compile(profile);
+        return profile.compiled;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Records a back edge of the given loop.
+     */
+    void backEdge (WhileNode loop)
+    {
+        Profile profile = loops.get(loop);
+        if (profile != null && profile.compiled == null && profile.eligible)
+            ++profile.counter; // compiled on the next invocation
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the free variables of the function, whose values must be passed to its compiled
+     * method after the arguments.
+     */
+    List<DeclarationNode> freeVariables (FunDeclarationNode function) {
+        return closures.freeVariables(function);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether calls to the given function are dispatched to compiled code.
+     */
+    public boolean isCompiled (FunDeclarationNode function) {
+        Profile profile = profiles.get(function);
+        return profile != null && profile.compiled != null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void compile (Profile profile)
+    {
+        if (failed) return;
+
+        try {
+            if (compiledClass == null)
+                compiledClass = new BytecodeCompiler(reactor)
+                    .compile(CLASS_NAME, root)
+                    .load(new ByteArrayClassLoader());
+
+            String name = closures.methodName(profile.function);
+            for (Method method: compiledClass.getMethods()) {
+                if (!method.getName().equals(name)) continue;
+                MethodHandle handle = MethodHandles.publicLookup().unreflect(method);
+                profile.compiled = handle
+                    .asType(handle.type().generic())
+                    .asSpreader(Object[].class, method.getParameterCount());
+            }
+        } catch (RuntimeException | IllegalAccessException | LinkageError e) {
+            // e.g. a construct not supported by the compiler: stay in the interpreter
+            failed = true;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -3,6 +3,8 @@ package norswap.sigh.scopes;
 import norswap.sigh.ast.RootNode;
 import norswap.sigh.types.*;
 import norswap.uranium.Reactor;
+import java.util.ArrayList;
+import java.util.List;
 
 import static norswap.sigh.scopes.DeclarationKind.*;
 
@@ -14,9 +16,14 @@ public final class RootScope extends Scope
 {
     // ---------------------------------------------------------------------------------------------
 
+    private final List<SyntheticDeclarationNode> builtins = new ArrayList<>();
+
+    // ---------------------------------------------------------------------------------------------
+
     private SyntheticDeclarationNode decl (String name, DeclarationKind kind) {
         SyntheticDeclarationNode decl = new SyntheticDeclarationNode(name, kind);
         declare(name,  decl);
+        builtins.add(decl);
         return decl;
     }
 
@@ -38,11 +45,36 @@ public final class RootScope extends Scope
     // root scope functions
     public final SyntheticDeclarationNode print = decl("print", FUNCTION);
 
+    private final FunType printType = new FunType(StringType.INSTANCE, StringType.INSTANCE);
+
     // ---------------------------------------------------------------------------------------------
 
     public RootScope (RootNode node, Reactor reactor) {
         super(node, null);
+        setAttributes(reactor);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Removes all declarations from this scope except the default ones, whose attributes are set
+     * again in the given reactor. This lets the analysis of a new version of a tree reuse this
+     * scope, and the attributes that refer to it (see {@link
+     * norswap.sigh.SemanticAnalysis#reanalyze}). The attributes of the previous tree that refer
+     * to this scope are invalid afterwards. {@link #node} remains the root of the tree for which
+     * the scope was created.
+     */
+    public void reset (Reactor reactor) {
+        clear();
+        for (SyntheticDeclarationNode decl: builtins)
+            declare(decl.name(), decl);
+        setAttributes(reactor);
+    }
+
+    // ---------------------------------------------------------------------------------------------
 
+    private void setAttributes (Reactor reactor)
+    {
         reactor.set(Bool,   "type",       TypeType.INSTANCE);
         reactor.set(Int,    "type",       TypeType.INSTANCE);
         reactor.set(Float,  "type",       TypeType.INSTANCE);
@@ -61,7 +93,7 @@ public final class RootScope extends Scope
         reactor.set(_false, "type",       BoolType.INSTANCE);
         reactor.set(_null,  "type",       NullType.INSTANCE);
 
-        reactor.set(print,  "type", new FunType(StringType.INSTANCE, StringType.INSTANCE));
+        reactor.set(print,  "type",       printType);
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -43,6 +43,15 @@ public class Scope
 
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * Removes all declarations from this scope.
+     */
+    protected void clear () {
+        declarations.clear();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     /**
      * Looks up the name in the scope and its parents, returning a context comprising the
      * found declaration and the scope in which it occurs, or null if not found.
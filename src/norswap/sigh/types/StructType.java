@@ -19,6 +19,7 @@ public final class StructType extends Type
     }
 
     @Override public int hashCode () {
-        return node.hashCode();
+        // consistent with equals, and avoids hashing the declaration reflectively
+        return System.identityHashCode(node);
     }
 }
@@ -3,17 +3,37 @@ import norswap.autumn.ParseOptions;
 import norswap.autumn.ParseResult;
 import norswap.sigh.SemanticAnalysis;
 import norswap.sigh.SighGrammar;
+import norswap.sigh.SighRunner;
 import norswap.sigh.ast.SighNode;
 import norswap.sigh.bytecode.ByteArrayClassLoader;
 import norswap.sigh.bytecode.BytecodeCompiler;
+import norswap.sigh.bytecode.CompilationCache;
 import norswap.sigh.bytecode.CompilationResult;
 import norswap.uranium.Reactor;
 import norswap.utils.IO;
 import norswap.utils.visitors.Walker;
 import org.testng.annotations.Test;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import static norswap.utils.Util.cast;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertThrows;
 
 @SuppressWarnings("FieldCanBeLocal")
 public class BytecodeTests
@@ -22,11 +42,45 @@ public class BytecodeTests
 
     // ---------------------------------------------------------------------------------------------
 
+    /** Whether {@link #check} compiles string concatenations to invokedynamic. */
+    private boolean indyConcat = BytecodeCompiler.INDY_CONCAT_AVAILABLE;
+
+    /** Whether {@link #check} replaces structs that do not escape by local variables. */
+    private boolean scalarReplacement = false;
+
+    // ---------------------------------------------------------------------------------------------
+
     /**
      * Checks that the input program can be compiled, run and prints the {@code expected} string if
      * non-null (to which a newline is appended if not empty).
      */
     public void check (String input, String expected)
+    {
+        Class<?> mainClass = load(input);
+
+        if (expected == null) {
+            CompilationResult.callMain(mainClass);
+            return;
+        }
+
+        // TODO utils capture stdout with runnable
+        String capture = IO.captureStdout(() -> {
+            CompilationResult.callMain(mainClass);
+            return null;
+        }).a;
+
+        if (!expected.isEmpty())
+            expected = expected + "\n";
+
+        assertEquals(capture, expected);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Compiles the input program and loads the resulting class.
+     */
+    private Class<?> load (String input)
     {
         SighGrammar grammar = new SighGrammar();
         ParseOptions options = ParseOptions.builder().recordCallStack(true).get();
@@ -43,27 +97,11 @@ public class BytecodeTests
             throw new AssertionError(reactor.reportErrors(Object::toString));
 
         String className = "BytecodeTestsRun";
-        BytecodeCompiler compiler = new BytecodeCompiler(reactor);
+        BytecodeCompiler compiler = new BytecodeCompiler(reactor, indyConcat, scalarReplacement);
         CompilationResult result = compiler.compile(className, tree);
 
         // using a new loader each time allows to overwrite the class every time.
-        Class<?> mainClass = result.load(new ByteArrayClassLoader());
-
-        if (expected == null) {
-            CompilationResult.callMain(mainClass);
-            return;
-        }
-
-        // TODO utils capture stdout with runnable
-        String capture = IO.captureStdout(() -> {
-            CompilationResult.callMain(mainClass);
-            return null;
-        }).a;
-
-        if (!expected.isEmpty())
-            expected = expected + "\n";
-
-        assertEquals(capture, expected);
+        return result.load(new ByteArrayClassLoader());
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -217,6 +255,7 @@ public class BytecodeTests
         checkExpr("[1, 2, 3][2]", "3");
         checkExpr("[\"a\", \"b\", \"c\"][0]", "a");
         checkExpr("[\"a\", \"b\", \"c\"][2]", "c");
+        checkExpr("[1, 2, 3].length", "3");
 
         check("var x: Float[] = [1.0, 2.0]; x[0] = 3.0; print(\"\" + x[0])", "3.0");
         check("var x: Float[] = [1.0, 2.0]; x[0] = 3; print(\"\" + x[0])", "3.0");
@@ -252,10 +291,234 @@ public class BytecodeTests
         check("var x: Int = 1 ; while x <= 3 { " + printx + " ; x = x + 1 }", "1\n2\n3");
     }
 
+    @Test public void testFrames() {
+        // uninitialized object on the stack at a join
+        check("struct P { var a: Bool ; var b: String } " +
+            "var p: P = $P(1 < 2 && !(2 > 3), \"x\") ; print(\"\" + p.a + p.b)", "truex");
+        // local initialized to null and assigned in a loop
+        check("var s: String = null ; var i: Int = 0 ; " +
+            "while (i < 2) { var t: Float = i ; s = \"\" + t ; i = i + 1 } print(s)", "1.0");
+        // unreachable code after returns
+        check("fun f (b: Bool): Int { if (b) return 1 else return 2 } " +
+            "print(\"\" + f(true) + f(false))", "12");
+        check("fun g (): Int { return 1 ; print(\"dead\") } print(\"\" + g())", "1");
+    }
+
+    @Test public void testScalarReplacement() {
+        scalarReplacement = true;
+        try {
+            checkScalarReplacement();
+        } finally {
+            scalarReplacement = false;
+        }
+        checkScalarReplacement();
+    }
+
+    private void checkScalarReplacement() {
+        // struct only used through its fields, including implicit conversions
+        check(makePair + "var p: Pair = $Pair(1, 2) ; var i: Int = 0 ; " +
+            "while (i < 3) { p.x = p.x + i ; p.y = p.y * 2 ; i = i + 1 } " +
+            "print(\"\" + p.x + \":\" + p.y)", "4:16.0");
+        // two non-escaping instances of the same struct, in a function
+        check(makePair + "fun f (): Int { var a: Pair = $Pair(1, 2) ; var b: Pair = $Pair(a.x + 1, 0) ; " +
+            "b.x = b.x * 10 ; return a.x + b.x } print(\"\" + f())", "21");
+        // escaping structs: passed, compared, reassigned, captured
+        check(makePair + "fun get (q: Pair): Int { return q.x } var p: Pair = $Pair(5, 0) ; " +
+            "print(\"\" + get(p) + (p == p))", "5true");
+        check(makePair + "var p: Pair = $Pair(5, 0) ; p = $Pair(6, 0) ; print(\"\" + p.x)", "6");
+        check(makePair + "var p: Pair = $Pair(5, 0) ; fun f (): Int { return p.x } print(\"\" + f())", "5");
+    }
+
     @Test public void testMethod() {
         check("fun test (x: String):String { return x } print(test(\"a\"))", "a");
         check("fun test (x: String) { print(x) } ; test(\"a\")", "a");
         check("fun test () { fun foo() { print(\"a\") } foo() foo() } test()", "a\na");
+
+        // self tail calls must not grow the stack
+        check("fun count (n: Int, acc: Float): Float { if (n == 0) return acc ; return count(n - 1, acc + 1) } " +
+            "print(\"\" + count(1000000, 0))", "1000000.0");
+    }
+
+    @Test public void testInlining() {
+        String helpers =
+            "fun sum_pair (a: Int, b: Int): Int { return a + b } " +
+            "fun validate5 (x: Int): Bool { if (x == 5) return true ; return false } " +
+            "fun half (x: Float): Float { return x / 2 } ";
+        // constant and variable arguments, nested calls, operands on the stack below the call
+        check(helpers + "var n: Int = 3 ; print(\"\" + sum_pair(1, 2) + sum_pair(n, sum_pair(n, 1)) " +
+            "+ validate5(5) + validate5(n) + half(3) + (1 + sum_pair(sum_pair(1, 1), n)))",
+            "37truefalse1.56");
+        // return in a loop, void function, assigned parameter, free variable
+        check("var total: Int = 0 ; " +
+            "fun first (xs: Int[], k: Int): Int { var i: Int = 0 ; " +
+            "while (i < xs.length) { if (xs[i] > k) return xs[i] ; i = i + 1 } return 0 - 1 } " +
+            "fun add (x: Int) { x = x * 2 ; total = total + x } " +
+            "fun loop (): Int { var j: Int = 0 ; while (j < 3) { add(j) ; j = j + 1 } return total } " +
+            "print(\"\" + first([1, 4, 9], 3) + first([1], 3) + \":\" + loop())", "4-1:6");
+        // recursive functions are not inlined
+        check("fun even (n: Int): Bool { if (n == 0) return true ; return odd(n - 1) } " +
+            "fun odd (n: Int): Bool { if (n == 0) return false ; return even(n - 1) } " +
+            "print(\"\" + even(10) + odd(10))", "truefalse");
+        // functions with loops are not inlined when the stack holds values (here, the
+        // uninitialized struct), as these would cross the back edge of the loop
+        check(makePair + "fun first (xs: Int[], k: Int): Int { var i: Int = 0 ; " +
+            "while (i < xs.length) { if (xs[i] > k) return xs[i] ; i = i + 1 } return 0 - 1 } " +
+            "var p: Pair = $Pair(first([1, 4, 9], 3), 1) ; var r: Pair = p ; " +
+            "var q: Int = first([5], 3) ; print(\"\" + r.x + \":\" + r.y + \":\" + q)", "4:1.0:5");
+    }
+
+    @Test public void testManyFunctions() {
+        // functions are compiled concurrently, then assembled in declaration order
+        StringBuilder b = new StringBuilder("var total: Int = 0 ; ");
+        for (int i = 0; i < 300; ++i)
+            b.append("fun f").append(i).append(" (x: Int): Int { fun g (): Int { return x + ")
+             .append(i).append(" } return g() } total = total + f").append(i).append("(1) ; ");
+        check(b + "struct S { var x: Int } print(\"\" + total + $S(2).x)", "451502");
+    }
+
+    @Test public void testSplitTopLevel() {
+        // top-level code above the method size limit is split into several methods, sharing the
+        // top-level variables (including an assigned captured variable, and a struct that would
+        // otherwise be scalar-replaced) through the fields of a frame object
+        StringBuilder b = new StringBuilder("struct P { var a: Int } var p: P = $P(0) ; " +
+            "var x: Int = 0 ; var count: Int = 0 ; fun inc () { count = count + 1 } ");
+        for (int i = 0; i < 3000; ++i)
+            b.append("inc() ; p.a = p.a + 2 ; { var y: Int = x + 1 ; x = y } ");
+        scalarReplacement = true;
+        try {
+            check(b + "print(\"\" + x + \":\" + count + \":\" + p.a)",
+                "3000:3000:6000");
+        } finally {
+            scalarReplacement = false;
+        }
+
+        // each call to run has its own frame
+        Class<?> mainClass = load(b + "return x + count + p.a");
+        for (Field field: mainClass.getDeclaredFields())
+            assertFalse(Modifier.isStatic(field.getModifiers()));
+        List<Object> results = IntStream.range(0, 8).parallel()
+            .mapToObj(i -> CompilationResult.callRun(mainClass, new String[0]))
+            .collect(Collectors.toList());
+        assertEquals(results, Collections.nCopies(8, 12000L));
+
+        // a single statement that cannot fit in a method
+        StringBuilder big = new StringBuilder("var x: Int = 0 ; { var y: Int = 0 ; ");
+        for (int i = 0; i < 20000; ++i)
+            big.append("y = y + x ; ");
+        assertThrows(UnsupportedOperationException.class, () -> load(big + "}"));
+    }
+
+    @Test public void testFunctionValues() {
+        String funs =
+            "fun add (a: Int, b: Int): Int { return a + b } " +
+            "fun sub (a: Int, b: Int): Int { return a - b } ";
+        check(funs + "print(\"\" + (add)(1, 2))", "3");
+        check(funs + "print(\"\" + [add, sub][1](5, 3))", "2");
+        check(funs + "var i: Int = 0 ; while (i < 2) { print(\"\" + [add, sub][i](5, 3)) ; i = i + 1 }",
+            "8\n2");
+        check("(print)(\"a\")", "a");
+        check("print([print][0](\"a\"))", "a\na");
+        check(makePair + "var y: Pair = [$Pair][0](3, 4) ; print(\"\" + y.x + \":\" + y.y)", "3:4.0");
+    }
+
+    @Test public void testClosures() {
+        // functions with the same name in different blocks are lifted to different methods
+        check("var c: Bool = true ; var r: Int = 0 ; " +
+            "if (c) { fun g (): Int { return 1 } r = g() } else { fun g (): Int { return 2 } r = g() } " +
+            "{ fun g (): Int { return 3 } r = r + g() } " +
+            "fun outer (): Int { { fun g (): Int { return 4 } r = r + g() } " +
+            "{ fun g (): Int { return 5 } return r + g() } } print(\"\" + outer())", "13");
+        // captured parameter
+        check("fun outer (x: Int): Int { fun inner (y: Int): Int { return x + y } return inner(1) } " +
+            "print(\"\" + outer(41))", "42");
+        // captured top-level variables, read and assigned
+        check("var a: Int = 2 ; fun f (): Int { return a * 3 } print(\"\" + f())", "6");
+        check("var count: Int = 0 ; fun inc () { count = count + 1 } inc() inc() print(\"\" + count)", "2");
+        // transitive capture through a sibling function, assigned captured variable
+        check("fun outer (): Int { var n: Int = 0 ; fun add (k: Int) { n = n + k } " +
+            "fun twice (k: Int) { add(k) add(k) } twice(3) ; return n } print(\"\" + outer())", "6");
+        // assigned captured parameter
+        check("fun outer (x: Float): Float { fun bump () { x = x + 1 } bump() ; return x } " +
+            "print(\"\" + outer(1))", "2.0");
+        // function value of a closure
+        check("fun outer (x: Int): Int { fun inner (y: Int): Int { return x + y } return [inner][0](2) } " +
+            "print(\"\" + outer(1))", "3");
+        // nested functions with the same name
+        check("fun a (): Int { fun h (): Int { return 1 } return h() } " +
+            "fun b (): Int { fun h (): Int { return 2 } return h() } print(\"\" + a() + b())", "12");
+    }
+
+    @Test public void testCompilationCache() throws IOException {
+        Path directory = Files.createTempDirectory("sigh-cache");
+        CompilationCache cache = new CompilationCache(directory);
+        String source = "struct P { var x: Int } var p: P = $P(42) ; return p.x";
+
+        boolean indy = BytecodeCompiler.INDY_CONCAT_AVAILABLE;
+
+        assertNull(cache.get("CacheRun", source, indy, false));
+        CompilationResult compiled = new SighRunner().compile("CacheRun", source, cache);
+        CompilationResult cached = cache.get("CacheRun", source, indy, false);
+        assertNotNull(cached);
+        assertNull(cache.get("CacheRun", source + " ", indy, false));
+        assertNull(cache.get("OtherName", source, indy, false));
+
+        // each set of compiler options has its own entry
+        assertNull(cache.get("CacheRun", source, indy, true));
+        assertNull(cache.get("CacheRun", source, !indy, false));
+        CompilationResult replaced =
+            new SighRunner().compile("CacheRun", source, cache, indy, true);
+        assertEquals(cache.get("CacheRun", source, indy, true).mainClass.bytes(),
+            replaced.mainClass.bytes());
+        assertFalse(Arrays.equals(replaced.mainClass.bytes(), compiled.mainClass.bytes()));
+        assertEquals(cache.get("CacheRun", source, indy, false).mainClass.bytes(),
+            compiled.mainClass.bytes());
+
+        assertEquals(cached.mainClass.bytes(), compiled.mainClass.bytes());
+        assertEquals(cached.structures.size(), 1);
+        assertEquals(cached.structures.get(0).bytes(), compiled.structures.get(0).bytes());
+        Class<?> mainClass = cached.load(new ByteArrayClassLoader());
+        assertEquals(CompilationResult.callRun(mainClass, new String[0]), 42L);
+    }
+
+    @Test public void testJar() throws Exception {
+        String source = "struct P { var x: Int } var p: P = $P(42) ; return \"\" + p.x + null";
+        CompilationResult result = new SighRunner().compile("JarRun", source, null);
+        Path jar = Files.createTempFile("sigh", ".jar");
+        result.writeJar(jar);
+
+        try (JarFile file = new JarFile(jar.toFile())) {
+            assertEquals(file.getManifest().getMainAttributes().get(Attributes.Name.MAIN_CLASS),
+                "JarRun");
+            assertNotNull(file.getEntry("P.class"));
+        }
+
+        // no parent: the JAR must be self-contained
+        try (URLClassLoader loader = new URLClassLoader(new URL[]{ jar.toUri().toURL() }, null)) {
+            Class<?> mainClass = loader.loadClass("JarRun");
+            assertEquals(CompilationResult.callRun(mainClass, new String[0]), "42null");
+        }
+    }
+
+    @Test public void testConcatenation() {
+        StringBuilder chain = new StringBuilder("\"\"");
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 250; ++i) {
+            chain.append(" + ").append(i);
+            expected.append(i);
+        }
+
+        boolean saved = indyConcat;
+        try {
+            for (boolean indy: new boolean[]{ false, BytecodeCompiler.INDY_CONCAT_AVAILABLE }) {
+                indyConcat = indy;
+                checkExpr("\"a\" + 1 + 2.0 + true + null + [1, 2] + (\"b\" + (3 + 4))",
+                    "a12.0truenull[1, 2]b7");
+                checkExpr("1 + 2 + \"a\" + (1 + 2)", "3a3");
+                checkExpr(chain.toString(), expected.toString());
+            }
+        } finally {
+            indyConcat = saved;
+        }
     }
 
     private final String makePair =
@@ -0,0 +1,203 @@
+import norswap.sigh.IncrementalAnalysis;
+import norswap.sigh.SemanticAnalysis;
+import norswap.sigh.SighRunner;
+import norswap.sigh.ast.FunDeclarationNode;
+import norswap.sigh.ast.SighNode;
+import norswap.sigh.ast.RootNode;
+import norswap.sigh.ast.StatementNode;
+import norswap.uranium.Reactor;
+import norswap.utils.visitors.ReflectiveFieldWalker;
+import org.testng.annotations.Test;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static norswap.utils.visitors.WalkVisitType.POST_VISIT;
+import static norswap.utils.visitors.WalkVisitType.PRE_VISIT;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+public class IncrementalAnalysisTests
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private IncrementalAnalysis analysis;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Updates the analysis with the given source, and checks that it reused the given number of
+     * statements, and yields the same tree (including spans) and the same number of semantic
+     * errors as a parse and analysis from scratch. Returns whether there are errors.
+     */
+    private boolean check (String source, int reused)
+    {
+        assertTrue(analysis.update(source));
+        assertEquals(analysis.reusedStatements(), reused);
+
+        RootNode expected = new SighRunner().parse(source);
+        Reactor reactor = new Reactor();
+        SemanticAnalysis.createWalker(reactor).walk(expected);
+        reactor.run();
+        assertEquals(analysis.errors().size(), reactor.errors().size());
+
+        RootNode actual = analysis.root();
+        assertEquals(actual.statements.size(), expected.statements.size());
+        for (int i = 0; i < expected.statements.size(); ++i) {
+            StatementNode statement = actual.statements.get(i);
+            assertTrue(statement.equals(expected.statements.get(i), false), statement.toString());
+        }
+        return !reactor.errors().isEmpty();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testIncrementalAnalysis()
+    {
+        analysis = new IncrementalAnalysis();
+
+        String prefix =
+            "fun add (a: Int, b: Int): Int { return a + b }\n" +
+            "var x: Int = add(1, 2)\n" +
+            "var y: Int = x\n";
+
+        assertFalse(check(prefix + "print(\"\" + y)", 0));
+
+        // edit in the last statement: the statements before the one preceding it are reused
+        assertFalse(check(prefix + "print(\"\" + y + x)", 2));
+
+        // edit introducing an error
+        assertTrue(check(prefix + "print(\"\" + y + z)", 2));
+
+        // edit of the first statement, changing the type of a declaration used later
+        assertTrue(check(prefix.replace("): Int {", "): Float {") + "print(\"\" + y + x)", 0));
+
+        // edit that cannot be parsed, then back to a valid source
+        assertFalse(analysis.update(prefix + "print(\"\" + "));
+        assertNull(analysis.root());
+        assertFalse(check(prefix + "print(\"\" + y)", 0));
+
+        // unchanged source
+        assertFalse(check(prefix + "print(\"\" + y)", 0));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testAttributeReuse()
+    {
+        analysis = new IncrementalAnalysis();
+
+        String prefix =
+            "fun add (a: Int, b: Int): Int { return a + b }\n" +
+            "var x: Int = add(1, 2)\n" +
+            "var y: Int = x\n";
+
+        assertFalse(check(prefix + "print(\"\" + y)", 0));
+        Reactor previous = analysis.reactor();
+        SemanticAnalysis.freeze(previous, analysis.root());
+
+        // the reused statements keep their attributes, and can therefore be frozen again
+        assertFalse(check(prefix + "print(\"\" + y + x)", 2));
+        FunDeclarationNode add = (FunDeclarationNode) analysis.root().statements.get(0);
+        assertSame(analysis.reactor().get(add, "type"), previous.get(add, "type"));
+        assertSame(analysis.reactor().get(add.block, "scope"), previous.get(add.block, "scope"));
+        SemanticAnalysis.freeze(analysis.reactor(), analysis.root());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testInvalidation()
+    {
+        analysis = new IncrementalAnalysis();
+
+        String forward =
+            "var a: Int = 1\n" +
+            "fun f (): Int { return g() }\n" +
+            "var b: Int = a\n" +
+            "var c: Int = b\n" +
+            "fun g (): Int { return 1 }\n";
+
+        assertFalse(check(forward + "print(\"\" + f())", 0));
+
+        // f refers to g, which is declared after the edit
+        assertTrue(check(forward.replace("g (): Int", "g (): Float") + "print(\"\" + f())", 1));
+        assertFalse(check(forward + "print(\"\" + f())", 1));
+
+        String missing =
+            "var a: Int = 1\n" +
+            "var b: Int = 2\n" +
+            "fun f (): Int { return h() }\n" +
+            "var c: Int = 3\n" +
+            "var d: Int = 4\n";
+
+        assertTrue(check(missing, 0));
+
+        // statements with errors are not reused, even if their text did not change
+        assertFalse(check(missing + "fun h (): Int { return 1 }", 2));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    @Test public void testCopiedAttributes() throws IOException
+    {
+        // every attribute used by the analysis is copied for reused nodes
+        String code = new String(Files.readAllBytes(
+            Paths.get("src/norswap/sigh/SemanticAnalysis.java")), StandardCharsets.UTF_8);
+        Matcher matcher = Pattern
+            .compile("\\b(?:set|rule|using|attr|get)\\((?:[\\w.() ]+,\\s*)?\"(\\w+)\"")
+            .matcher(code);
+        while (matcher.find())
+            assertTrue(SemanticAnalysis.ATTRIBUTES.contains(matcher.group(1)), matcher.group(1));
+
+        analysis = new IncrementalAnalysis();
+
+        String prefix =
+            "struct P { var x: Int ; var y: Int[] }\n" +
+            "fun count (n: Int): Int { if (n == 0) return 0 ; return count(n - 1) }\n" +
+            "var p: P = $P(1, [2, 3])\n" +
+            "var z: Int = p.x + p.y[1] + count(2) + p.y.length\n" +
+            "print(\"\" + z)\n";
+
+        assertFalse(check(prefix + "var w: Int = z", 0));
+        assertFalse(check(prefix + "var w: Int = z + 1", 4));
+
+        // reused nodes have the same attributes as after an analysis from scratch
+        RootNode expected = new SighRunner().parse(analysis.source());
+        Reactor reactor = new Reactor();
+        SemanticAnalysis.createWalker(reactor).walk(expected);
+        reactor.run();
+
+        List<SighNode> actualNodes = nodes(analysis.root());
+        List<SighNode> expectedNodes = nodes(expected);
+        assertEquals(actualNodes.size(), expectedNodes.size());
+        for (int i = 0; i < actualNodes.size(); ++i)
+            for (String attribute: SemanticAnalysis.ATTRIBUTES)
+                assertEquals(
+                    analysis.reactor().get(actualNodes.get(i), attribute) != null,
+                    reactor.get(expectedNodes.get(i), attribute) != null,
+                    expectedNodes.get(i) + "::" + attribute);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static List<SighNode> nodes (SighNode root)
+    {
+        List<SighNode> nodes = new ArrayList<>();
+        ReflectiveFieldWalker<SighNode> walker = new ReflectiveFieldWalker<>(
+            SighNode.class, PRE_VISIT, POST_VISIT);
+        walker.registerFallback(PRE_VISIT,  nodes::add);
+        walker.registerFallback(POST_VISIT, node -> {});
+        walker.walk(root);
+        return nodes;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -3,11 +3,21 @@ import norswap.autumn.Grammar;
 import norswap.autumn.Grammar.rule;
 import norswap.autumn.ParseResult;
 import norswap.autumn.positions.LineMapString;
+import norswap.sigh.ConstantFolding;
 import norswap.sigh.SemanticAnalysis;
 import norswap.sigh.SighGrammar;
+import norswap.sigh.ast.FunDeclarationNode;
+import norswap.sigh.ast.ReturnNode;
+import norswap.sigh.ast.RootNode;
 import norswap.sigh.ast.SighNode;
+import norswap.sigh.ast.StatementNode;
+import norswap.sigh.closures.ClosureCompiler;
+import norswap.sigh.interpreter.CallSiteCache;
 import norswap.sigh.interpreter.Interpreter;
 import norswap.sigh.interpreter.Null;
+import norswap.sigh.interpreter.RegisterCompiler;
+import norswap.sigh.interpreter.SlotResolution;
+import norswap.sigh.interpreter.TieredExecution;
 import norswap.uranium.Reactor;
 import norswap.uranium.SemanticError;
 import norswap.utils.IO;
@@ -15,11 +25,16 @@ import norswap.utils.TestFixture;
 import norswap.utils.data.wrappers.Pair;
 import norswap.utils.visitors.Walker;
 import org.testng.annotations.Test;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Set;
+import java.util.function.BiFunction;
 
+import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
 import static org.testng.Assert.assertThrows;
+import static org.testng.Assert.assertTrue;
 
 public final class InterpreterTests extends TestFixture {
 
@@ -55,7 +70,35 @@ public final class InterpreterTests extends TestFixture {
 
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * The execution engines every check is run against, given the analysis reactor and the root.
+     */
+    private static final List<BiFunction<Reactor, SighNode, Object>> ENGINES = Arrays.asList(
+        (reactor, root) -> new Interpreter(reactor).interpret(root),
+        (reactor, root) ->
+            new Interpreter(reactor, SlotResolution.resolve(reactor, root)).interpret(root),
+        (reactor, root) -> new Interpreter(reactor, SlotResolution.resolve(reactor, root),
+            ConstantFolding.fold(reactor, root)).interpret(root),
+        (reactor, root) -> new Interpreter(reactor, SlotResolution.resolve(reactor, root), null,
+            new TieredExecution(reactor, root, 1)).interpret(root),
+        (reactor, root) -> new ClosureCompiler(reactor).compile(root).run(),
+        (reactor, root) -> new RegisterCompiler(reactor).compile(root).run());
+
+    // ---------------------------------------------------------------------------------------------
+
     private void check (rule rule, String input, Object expectedReturn, String expectedOutput) {
+        Pair<Reactor, SighNode> analysis = analyze(rule, input);
+        for (BiFunction<Reactor, SighNode, Object> engine: ENGINES) {
+            Pair<String, Object> result =
+                IO.captureStdout(() -> engine.apply(analysis.a, analysis.b));
+            assertEquals(result.b, expectedReturn);
+            if (expectedOutput != null) assertEquals(result.a, expectedOutput);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Pair<Reactor, SighNode> analyze (rule rule, String input) {
         // TODO
         // (1) write proper parsing tests
         // (2) write some kind of automated runner, and use it here
@@ -66,7 +109,6 @@ public final class InterpreterTests extends TestFixture {
 
         Reactor reactor = new Reactor();
         Walker<SighNode> walker = SemanticAnalysis.createWalker(reactor);
-        Interpreter interpreter = new Interpreter(reactor);
         walker.walk(root);
         reactor.run();
         Set<SemanticError> errors = reactor.errors();
@@ -81,9 +123,7 @@ public final class InterpreterTests extends TestFixture {
             throw new AssertionError(report);
         }
 
-        Pair<String, Object> result = IO.captureStdout(() -> interpreter.interpret(root));
-        assertEquals(result.b, expectedReturn);
-        if (expectedOutput != null) assertEquals(result.a, expectedOutput);
+        return new Pair<>(reactor, root);
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -103,7 +143,10 @@ public final class InterpreterTests extends TestFixture {
     // ---------------------------------------------------------------------------------------------
 
     private void checkThrows (String input, Class<? extends Throwable> expected) {
-        assertThrows(expected, () -> check(input, null));
+        assertNotNull(rule, "You forgot to initialize the rule field.");
+        Pair<Reactor, SighNode> analysis = analyze(rule, input);
+        for (BiFunction<Reactor, SighNode, Object> engine: ENGINES)
+            assertThrows(expected, () -> engine.apply(analysis.a, analysis.b));
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -114,7 +157,7 @@ public final class InterpreterTests extends TestFixture {
         checkExpr("42.0", 42.0d);
         checkExpr("\"hello\"", "hello");
         checkExpr("(42)", 42L);
-        checkExpr("[1, 2, 3]", new Object[]{1L, 2L, 3L});
+        checkExpr("[1, 2, 3]", new long[]{1L, 2L, 3L});
         checkExpr("true", true);
         checkExpr("false", false);
         checkExpr("null", Null.INSTANCE);
@@ -218,6 +261,12 @@ public final class InterpreterTests extends TestFixture {
 
         // implicit conversions
         check("var x: Float = 1; x = 2; return x", 2.0d);
+
+        // primitive variables mixed with boxed uses
+        check("var x: Float = 1; var b: Bool = x < 2; var i: Int = 0;" +
+            "while (i < 3) { x = x + i; i = i + 1 }" +
+            "if (b) return [x, i][0]; return 0.0",
+            4.0d);
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -251,16 +300,146 @@ public final class InterpreterTests extends TestFixture {
                 "return add(4, 7)",
             11L);
 
-        HashMap<String, Object> point = new HashMap<>();
-        point.put("x", 1L);
-        point.put("y", 2L);
-
         check(
             "struct Point { var x: Int; var y: Int }" +
-                "return $Point(1, 2)",
-            point);
+                "return \"\" + $Point(1, 2)",
+            "Point{x=1, y=2}");
 
         check("var str: String = null; return print(str + 1)", "null1", "null1\n");
+
+        check(
+            "fun fib (n: Int): Int { if (n <= 1) return n ; return fib(n - 1) + fib(n - 2) } " +
+                "return fib(10)",
+            55L);
+
+        // arguments are evaluated once, left operands before right operands
+        check(
+            "fun one (): Int { print(\"one\") ; return 1 } " +
+                "fun id (a: Int): Int { return a } " +
+                "return id(one())",
+            1L, "one\n");
+
+        check(
+            "var x: Int = 1 ; " +
+                "fun set (): Int { x = 5 ; return 0 } " +
+                "return x + set() + x",
+            6L);
+
+        // self tail calls must not grow the stack
+        check(
+            "fun count (n: Int, acc: Float): Float { if (n == 0) return acc ; return count(n - 1, acc + 1) } " +
+                "return count(100000, 0)",
+            100000d);
+
+        check(
+            "fun outer (a: Int): Int { " +
+                "var b: Int = 2 ; " +
+                "fun inner (c: Int): Int { return a * b + c } " +
+                "{ var d: Int = 3 ; b = b + d } " +
+                "{ var e: Int = 4 ; return inner(e) } " +
+            "} " +
+            "return outer(10)",
+            54L);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test
+    public void testCallSiteCaches () {
+        rule = grammar.root;
+        Pair<Reactor, SighNode> analysis = analyze(rule,
+            "fun fib (n: Int): Int { if (n <= 1) return n ; return fib(n - 1) + fib(n - 2) } " +
+                "return fib(10)");
+
+        SlotResolution resolved = SlotResolution.resolve(analysis.a, analysis.b);
+        for (SlotResolution slots: Arrays.asList(null, resolved)) {
+            Interpreter interpreter = new Interpreter(analysis.a, slots);
+            assertEquals(interpreter.interpret(analysis.b), 55L);
+
+            // 177 calls over three monomorphic call sites
+            long hits = 0, misses = 0;
+            for (CallSiteCache cache: interpreter.callSiteCaches()) {
+                assertEquals(cache.size(), 1);
+                hits += cache.hits();
+                misses += cache.misses();
+            }
+            assertEquals(misses, 3L);
+            assertEquals(hits, 174L);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test
+    public void testSpecialization () {
+        rule = grammar.root;
+        String input =
+            "fun add (x: Float, y: Float): Float { return x + y } " +
+            "var a: Float = add(1.5, 2.5) ; " +
+            "return add(1, 2)";
+
+        check(input, 3d);
+
+        // The first call specializes the addition for doubles, but the interpreter passes the
+        // second call's arguments as longs.
+        Pair<Reactor, SighNode> analysis = analyze(rule, input);
+        Interpreter interpreter = new Interpreter(analysis.a);
+        assertEquals(interpreter.interpret(analysis.b), 3d);
+        assertEquals(interpreter.deoptimizations(), 1);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Returns the folded value of the expression returned by the last statement of the input. */
+    private Object foldedReturn (String input) {
+        Pair<Reactor, SighNode> analysis = analyze(grammar.root, input);
+        List<StatementNode> statements = ((RootNode) analysis.b).statements;
+        ReturnNode ret = (ReturnNode) statements.get(statements.size() - 1);
+        return ConstantFolding.fold(analysis.a, analysis.b).value(ret.expression);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test
+    public void testConstantFolding () {
+        rule = grammar.root;
+
+        assertEquals(foldedReturn("return 1 + 3 * 4 * (1 + 3) / 12"), 5L);
+        assertEquals(
+            foldedReturn("var a: Int = 5 ; var f: Float = a ; return \"\" + (f * 2 > 9) + a"),
+            "true5");
+        assertEquals(foldedReturn("return false && 1 / 0 == 0"), false);
+        assertNull(foldedReturn("var b: Int = 0 ; b = 2 ; return b + 1"));
+        assertNull(foldedReturn("return 1 / 0"));
+        assertNull(foldedReturn("var zero: Int = 0 ; return 1 % zero"));
+        assertNull(foldedReturn("return \"a\" == \"a\""));
+
+        // pruned branches
+        check("var debug: Bool = false ; if (debug) print(\"debug\") else print(\"ok\")",
+            null, "ok\n");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test
+    public void testTieredExecution () {
+        Pair<Reactor, SighNode> analysis = analyze(grammar.root,
+            "var base: Int = 10 ; " +
+            "fun add (x: Int, y: Float): Float { return base + x + y } " +
+            "fun count (n: Int): Int { var i: Int = 0 ; while (i < n) { i = i + 1 } return i } " +
+            "var sum: Float = 0 ; var i: Int = 0 ; " +
+            "while (i < 5) { sum = sum + add(i, 1) ; i = i + 1 } " +
+            "return \"\" + sum + \":\" + count(3)");
+
+        List<StatementNode> statements = ((RootNode) analysis.b).statements;
+        TieredExecution tiers = new TieredExecution(analysis.a, analysis.b, 3);
+        Object result = new Interpreter(analysis.a, SlotResolution.resolve(analysis.a, analysis.b),
+            null, tiers).interpret(analysis.b);
+
+        assertEquals(result, "65.0:3");
+        assertTrue(tiers.isCompiled((FunDeclarationNode) statements.get(1)));
+        // hot after its loop, but there is no on-stack replacement
+        assertFalse(tiers.isCompiled((FunDeclarationNode) statements.get(2)));
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -282,11 +461,20 @@ public final class InterpreterTests extends TestFixture {
         checkThrows("var array: Int[] = null; return array.length", NullPointerException.class);
 
         check("var x: Int[] = [0, 1]; x[0] = 3; return x[0]", 3L);
+        check("var x: Float[] = [1, 2.5]; x[0] = 3; return x[0] + x[1]", 5.5d);
+        check("var x: Bool[] = [true, false]; x[1] = !x[1]; return x[1]", true);
+        check("return \"\" + [[1, 2], [3]]", "[[1, 2], [3]]");
         checkThrows("var x: Int[] = []; x[0] = 3; return x[0]",
             ArrayIndexOutOfBoundsException.class);
         checkThrows("var x: Int[] = null; x[0] = 3",
             NullPointerException.class);
 
+        // also when running as compiled code, see TieredExecution
+        checkThrows("fun get (a: Int[], i: Int): Int { return a[i] } return get([1], 2)",
+            ArrayIndexOutOfBoundsException.class);
+        checkThrows("fun get (a: Int[], i: Int): Int { return a[i] } return get(null, 0)",
+            NullPointerException.class);
+
         check(
             "struct P { var x: Int; var y: Int }" +
                 "return $P(1, 2).y",
@@ -322,6 +510,16 @@ public final class InterpreterTests extends TestFixture {
         check("if (false) return 1 else if (false) return 2 else return 3 ", 3L);
 
         check("var i: Int = 0; while (i < 3) { print(\"\" + i); i = i + 1 } ", null, "0\n1\n2\n");
+
+        // return from within nested blocks and loops
+        check(
+            "fun f (n: Int): Int {" +
+            "    var i: Int = 0;" +
+            "    while (true) { { i = i + 1; if (i == n) return i }; print(\"\" + i) }" +
+            "    return 0" +
+            "}" +
+            "var x: Int = f(3); print(\"x\"); return x",
+            3L, "1\n2\nx\n");
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -8,6 +8,8 @@ import norswap.uranium.UraniumTestFixture;
 import norswap.utils.visitors.Walker;
 import org.testng.annotations.Test;
 
+import static org.testng.Assert.assertThrows;
+
 /**
  * NOTE(norswap): These tests were derived from the {@link InterpreterTests} and don't test anything
  * more, but show how to idiomatically test semantic analysis. using {@link UraniumTestFixture}.
@@ -313,5 +315,23 @@ public final class SemanticAnalysisTests extends UraniumTestFixture
             "Missing return in function");
     }
 
+    // ---------------------------------------------------------------------------------------------
+    @Test public void testFreeze()
+    {
+        SighNode tree = (SighNode) parse(
+            "struct P { var x: Int } fun f (p: P): Int { return p.x } var y: Int = f($P(1))");
+        Reactor reactor = new Reactor();
+        configureSemanticAnalysis(reactor, tree);
+        reactor.run();
+
+        // freezing again with the same reactor is allowed, but not with another one
+        SemanticAnalysis.freeze(reactor, tree);
+        SemanticAnalysis.freeze(reactor, tree);
+        Reactor other = new Reactor();
+        configureSemanticAnalysis(other, tree);
+        other.run();
+        assertThrows(IllegalStateException.class, () -> SemanticAnalysis.freeze(other, tree));
+    }
+
     // ---------------------------------------------------------------------------------------------
 }